@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2015 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs the file attachment transfers of the synced_pending_files rows on a
+ * bounded pool of threads, shared by all the tables being synced.
+ * <p>
+ * At most maxTransfersPerHost transfers are in flight to any one host; the
+ * thread submitting a transfer waits until the host has a free slot. The
+ * results of a Batch are taken in the order the transfers were submitted, so
+ * the submitting thread can update each row's sync state in turn.
+ */
+final class AttachmentTransferEngine {
+
+  private final ExecutorService executor;
+  private final int maxTransfers;
+  private final int maxTransfersPerHost;
+  private final Map<String, Semaphore> hostSlots = new HashMap<String, Semaphore>();
+
+  /**
+   * A transfer that frees its host slot once its callable has returned. This
+   * is not done in done(), which runs as soon as the task is cancelled, while
+   * an interrupted callable may still be running.
+   */
+  private static final class Transfer<T> extends FutureTask<T> {
+    private final Semaphore slots;
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    Transfer(Callable<T> callable, Semaphore slots) {
+      super(callable);
+      this.slots = slots;
+    }
+
+    @Override
+    public void run() {
+      try {
+        super.run();
+      } finally {
+        slots.release();
+        finished.countDown();
+      }
+    }
+
+    /**
+     * Wait until run() has returned, even if the waiting thread is
+     * interrupted. The caller is responsible for restoring the interrupt.
+     */
+    void awaitFinished() {
+      for (;;) {
+        try {
+          finished.await();
+          return;
+        } catch (InterruptedException e) {
+          // keep waiting
+        }
+      }
+    }
+  }
+
+  /**
+   * The transfers submitted by one thread, whose results are taken in order.
+   * Only the submitting thread may use a Batch.
+   */
+  final class Batch<T> {
+    private final LinkedList<Transfer<T>> pending = new LinkedList<Transfer<T>>();
+
+    /**
+     * Start a transfer once the host has a free slot.
+     *
+     * @param uri
+     *          the URI of the server being transferred to or from
+     * @param transfer
+     * @throws InterruptedException
+     */
+    void submit(String uri, Callable<T> transfer) throws InterruptedException {
+      Semaphore slots = slotsFor(uri);
+      slots.acquire();
+      Transfer<T> task = new Transfer<T>(transfer, slots);
+      try {
+        executor.execute(task);
+      } catch (RuntimeException e) {
+        slots.release();
+        throw e;
+      }
+      pending.add(task);
+    }
+
+    /**
+     * @return true if the number of transfers awaiting their results is at
+     *         the limit of the pool; the caller should take the next result
+     *         before submitting more.
+     */
+    boolean isFull() {
+      return pending.size() >= maxTransfers;
+    }
+
+    boolean isEmpty() {
+      return pending.isEmpty();
+    }
+
+    /**
+     * Wait for the earliest submitted transfer still pending.
+     *
+     * @return its result
+     * @throws ExecutionException
+     *           if the transfer threw an exception.
+     * @throws InterruptedException
+     */
+    T next() throws ExecutionException, InterruptedException {
+      return pending.removeFirst().get();
+    }
+
+    /**
+     * Wait for the pending transfers to finish, ignoring their results,
+     * e.g., after an earlier transfer failed. The transfers are not
+     * interrupted, so no file is left half-written. If the waiting thread is
+     * interrupted, the transfers that have not yet started are skipped, but
+     * those that are running are still waited for; the interrupt is then
+     * restored.
+     */
+    void drain() {
+      boolean interrupted = false;
+      while (!pending.isEmpty()) {
+        Transfer<T> task = pending.removeFirst();
+        if (!interrupted) {
+          try {
+            task.get();
+            continue;
+          } catch (ExecutionException e) {
+            continue;
+          } catch (CancellationException e) {
+            continue;
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+        task.cancel(false);
+        task.awaitFinished();
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * @param maxTransfers
+   *          the number of transfers that may run at once.
+   * @param maxTransfersPerHost
+   *          the number of transfers that may run at once to the same host.
+   */
+  AttachmentTransferEngine(int maxTransfers, int maxTransfersPerHost) {
+    this.maxTransfers = Math.max(1, maxTransfers);
+    this.maxTransfersPerHost = Math.max(1, Math.min(maxTransfersPerHost, this.maxTransfers));
+    this.executor = Executors.newFixedThreadPool(this.maxTransfers);
+  }
+
+  <T> Batch<T> newBatch() {
+    return new Batch<T>();
+  }
+
+  private Semaphore slotsFor(String uri) {
+    // transfers whose host is unknown share the slots of the "" host.
+    String host = "";
+    if (uri != null) {
+      try {
+        URI u = URI.create(uri);
+        if (u.getHost() != null) {
+          host = u.getHost().toLowerCase(Locale.US) + ":" + u.getPort();
+        }
+      } catch (IllegalArgumentException e) {
+        // not a valid URI
+      }
+    }
+    synchronized (hostSlots) {
+      Semaphore slots = hostSlots.get(host);
+      if (slots == null) {
+        slots = new Semaphore(maxTransfersPerHost);
+        hostSlots.put(host, slots);
+      }
+      return slots;
+    }
+  }
+
+  /**
+   * Stop the pool's threads. Any transfers still running are interrupted.
+   */
+  void shutdown() {
+    executor.shutdownNow();
+  }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2015 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.opendatakit.aggregate.odktables.rest.SavepointTypeManipulator;
+import org.opendatakit.aggregate.odktables.rest.SyncState;
+import org.opendatakit.aggregate.odktables.rest.entity.Scope;
+import org.opendatakit.common.android.data.ColumnDefinition;
+import org.opendatakit.common.android.provider.DataTableColumns;
+import org.opendatakit.common.android.utilities.ODKFileUtils;
+
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Applies server rows to a local data table through compiled statements.
+ * <p>
+ * One INSERT, UPDATE and DELETE statement is compiled (on first use) for the
+ * table and reused for every row; row values are bound positionally in the
+ * sorted order of the unit-of-retention columns, which is the order in which
+ * SyncRow holds its values. This avoids building a ContentValues map and an
+ * SQL string for every row. Rows applied in a synced state also have their
+ * fingerprint recorded in RowFingerprints.
+ * <p>
+ * The caller owns the transaction; close() must be called when done.
+ */
+final class BulkRowApplier {
+
+  /**
+   * Metadata columns written on insert, in bind order.
+   */
+  private static final String[] INSERT_METADATA_COLUMNS = { DataTableColumns.ID,
+      DataTableColumns.ROW_ETAG, DataTableColumns.SYNC_STATE, DataTableColumns.CONFLICT_TYPE,
+      DataTableColumns.FILTER_TYPE, DataTableColumns.FILTER_VALUE, DataTableColumns.FORM_ID,
+      DataTableColumns.LOCALE, DataTableColumns.SAVEPOINT_TYPE,
+      DataTableColumns.SAVEPOINT_TIMESTAMP, DataTableColumns.SAVEPOINT_CREATOR };
+
+  /**
+   * Metadata columns written on update, in bind order. The conflict type of
+   * the local row is left unchanged.
+   */
+  private static final String[] UPDATE_METADATA_COLUMNS = { DataTableColumns.ROW_ETAG,
+      DataTableColumns.SYNC_STATE, DataTableColumns.FILTER_TYPE, DataTableColumns.FILTER_VALUE,
+      DataTableColumns.FORM_ID, DataTableColumns.LOCALE, DataTableColumns.SAVEPOINT_TYPE,
+      DataTableColumns.SAVEPOINT_TIMESTAMP, DataTableColumns.SAVEPOINT_CREATOR };
+
+  private final SQLiteDatabase db;
+  private final String appName;
+  private final String tableId;
+  private final String quotedTableId;
+
+  /**
+   * The element keys of the unit-of-retention columns, sorted.
+   */
+  private final String[] dataColumns;
+
+  /**
+   * The last column dictionary found to be equal to dataColumns.
+   */
+  private String[] matchedColumns = null;
+
+  private SQLiteStatement insertStmt = null;
+  private SQLiteStatement updateStmt = null;
+  private SQLiteStatement deleteStmt = null;
+  private SQLiteStatement fingerprintStmt = null;
+
+  BulkRowApplier(SQLiteDatabase db, String appName, String tableId,
+      ArrayList<ColumnDefinition> orderedColumns) {
+    this.db = db;
+    this.appName = appName;
+    this.tableId = tableId;
+    this.quotedTableId = "\"" + tableId + "\"";
+
+    List<String> retained = new ArrayList<String>();
+    for (ColumnDefinition cd : orderedColumns) {
+      if (cd.isUnitOfRetention()) {
+        retained.add(cd.getElementKey());
+      }
+    }
+    this.dataColumns = retained.toArray(new String[retained.size()]);
+    Arrays.sort(this.dataColumns);
+  }
+
+  private SQLiteStatement getInsertStatement() {
+    if (insertStmt == null) {
+      StringBuilder b = new StringBuilder();
+      StringBuilder p = new StringBuilder();
+      b.append("INSERT INTO ").append(quotedTableId).append(" (");
+      boolean first = true;
+      for (String name : INSERT_METADATA_COLUMNS) {
+        if (!first) {
+          b.append(",");
+          p.append(",");
+        }
+        first = false;
+        b.append(name);
+        p.append("?");
+      }
+      for (String name : dataColumns) {
+        b.append(",\"").append(name).append("\"");
+        p.append(",?");
+      }
+      b.append(") VALUES (").append(p).append(")");
+      insertStmt = db.compileStatement(b.toString());
+    }
+    return insertStmt;
+  }
+
+  private SQLiteStatement getUpdateStatement() {
+    if (updateStmt == null) {
+      StringBuilder b = new StringBuilder();
+      b.append("UPDATE ").append(quotedTableId).append(" SET ");
+      boolean first = true;
+      for (String name : UPDATE_METADATA_COLUMNS) {
+        if (!first) {
+          b.append(",");
+        }
+        first = false;
+        b.append(name).append("=?");
+      }
+      for (String name : dataColumns) {
+        b.append(",\"").append(name).append("\"=?");
+      }
+      b.append(" WHERE ").append(DataTableColumns.ID).append("=?");
+      updateStmt = db.compileStatement(b.toString());
+    }
+    return updateStmt;
+  }
+
+  private SQLiteStatement getDeleteStatement() {
+    if (deleteStmt == null) {
+      deleteStmt = db.compileStatement("DELETE FROM " + quotedTableId + " WHERE "
+          + DataTableColumns.ID + "=?");
+    }
+    return deleteStmt;
+  }
+
+  /**
+   * A row applied in a synced state holds what the server has; remember its
+   * fingerprint (see RowFingerprints).
+   */
+  private void recordFingerprint(SyncRow row, SyncState state) {
+    if (state != SyncState.synced && state != SyncState.synced_pending_files) {
+      return;
+    }
+    if (fingerprintStmt == null) {
+      fingerprintStmt = db.compileStatement(RowFingerprints.RECORD_SQL);
+    }
+    RowFingerprints.bindRecord(fingerprintStmt, tableId, row);
+    fingerprintStmt.executeInsert();
+  }
+
+  private static void bind(SQLiteStatement stmt, int index, String value) {
+    if (value == null) {
+      stmt.bindNull(index);
+    } else {
+      stmt.bindString(index, value);
+    }
+  }
+
+  private static String filterType(Scope filterScope) {
+    Scope.Type type = (filterScope == null) ? null : filterScope.getType();
+    return (type == null) ? Scope.Type.DEFAULT.name() : type.name();
+  }
+
+  private static String filterValue(Scope filterScope) {
+    return (filterScope == null) ? null : filterScope.getValue();
+  }
+
+  /**
+   * Bind the row's values for the data columns starting at index. Both the
+   * row's values and dataColumns are sorted by column name, so this is a
+   * single merge pass. Columns not present in the row are bound to null.
+   *
+   * @return the next unused bind index
+   */
+  private int bindDataValues(SQLiteStatement stmt, int index, SyncRow row) {
+    String[] columns = row.getColumns();
+    if (columns == matchedColumns || Arrays.equals(columns, dataColumns)) {
+      // the usual case: the row holds exactly the table's columns. Rows of
+      // a RowBatch share their column array, so remember it.
+      matchedColumns = columns;
+      for (int i = 0; i < columns.length; ++i) {
+        bind(stmt, index++, row.getValue(i));
+      }
+      return index;
+    }
+    int iValue = 0;
+    for (String name : dataColumns) {
+      String value = null;
+      while (iValue < columns.length) {
+        int cmp = columns[iValue].compareTo(name);
+        if (cmp < 0) {
+          ++iValue;
+        } else {
+          if (cmp == 0) {
+            value = row.getValue(iValue);
+            ++iValue;
+          }
+          break;
+        }
+      }
+      bind(stmt, index++, value);
+    }
+    return index;
+  }
+
+  /**
+   * Insert the server row with the given sync state and conflict type.
+   *
+   * @param row
+   * @param state
+   * @param conflictType
+   *          null unless inserting a server in_conflict row.
+   */
+  void insert(SyncRow row, SyncState state, Integer conflictType) {
+    SQLiteStatement stmt = getInsertStatement();
+    stmt.clearBindings();
+    int idx = 1;
+    bind(stmt, idx++, row.getRowId());
+    bind(stmt, idx++, row.getRowETag());
+    bind(stmt, idx++, state.name());
+    if (conflictType == null) {
+      stmt.bindNull(idx++);
+    } else {
+      stmt.bindLong(idx++, conflictType);
+    }
+    bind(stmt, idx++, filterType(row.getFilterScope()));
+    bind(stmt, idx++, filterValue(row.getFilterScope()));
+    bind(stmt, idx++, row.getFormId());
+    bind(stmt, idx++, row.getLocale());
+    // a row arriving from the server is never a local checkpoint
+    bind(stmt, idx++, (row.getSavepointType() == null) ? SavepointTypeManipulator.complete()
+        : row.getSavepointType());
+    bind(stmt, idx++, row.getSavepointTimestamp());
+    bind(stmt, idx++, row.getSavepointCreator());
+    bindDataValues(stmt, idx, row);
+    if (stmt.executeInsert() == -1) {
+      throw new SQLException("Unable to insert row " + row.getRowId() + " into " + tableId);
+    }
+    recordFingerprint(row, state);
+  }
+
+  /**
+   * Overwrite the local row having the server row's rowId with the server
+   * row's values and the given sync state.
+   *
+   * @param row
+   * @param state
+   */
+  void update(SyncRow row, SyncState state) {
+    SQLiteStatement stmt = getUpdateStatement();
+    stmt.clearBindings();
+    int idx = 1;
+    bind(stmt, idx++, row.getRowETag());
+    bind(stmt, idx++, state.name());
+    bind(stmt, idx++, filterType(row.getFilterScope()));
+    bind(stmt, idx++, filterValue(row.getFilterScope()));
+    bind(stmt, idx++, row.getFormId());
+    bind(stmt, idx++, row.getLocale());
+    bind(stmt, idx++, row.getSavepointType());
+    bind(stmt, idx++, row.getSavepointTimestamp());
+    bind(stmt, idx++, row.getSavepointCreator());
+    idx = bindDataValues(stmt, idx, row);
+    bind(stmt, idx, row.getRowId());
+    stmt.executeUpdateDelete();
+    recordFingerprint(row, state);
+  }
+
+  /**
+   * Physically delete all local rows having this rowId, and remove the
+   * instance folder holding their attachments.
+   *
+   * @param rowId
+   */
+  void delete(String rowId) {
+    SQLiteStatement stmt = getDeleteStatement();
+    stmt.clearBindings();
+    bind(stmt, 1, rowId);
+    stmt.executeUpdateDelete();
+    RowFingerprints.remove(db, tableId, rowId);
+
+    File instanceFolder = new File(ODKFileUtils.getInstanceFolder(appName, tableId, rowId));
+    deleteRecursively(instanceFolder);
+  }
+
+  private static void deleteRecursively(File f) {
+    if (f.isDirectory()) {
+      File[] children = f.listFiles();
+      if (children != null) {
+        for (File child : children) {
+          deleteRecursively(child);
+        }
+      }
+    }
+    if (f.exists()) {
+      f.delete();
+    }
+  }
+
+  void close() {
+    if (insertStmt != null) {
+      insertStmt.close();
+      insertStmt = null;
+    }
+    if (updateStmt != null) {
+      updateStmt.close();
+      updateStmt = null;
+    }
+    if (deleteStmt != null) {
+      deleteStmt.close();
+      deleteStmt = null;
+    }
+    if (fingerprintStmt != null) {
+      fingerprintStmt.close();
+      fingerprintStmt = null;
+    }
+  }
+}
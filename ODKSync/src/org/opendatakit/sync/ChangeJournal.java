@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2015 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opendatakit.aggregate.odktables.rest.SyncState;
+import org.opendatakit.common.android.provider.DataTableColumns;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Persistent journal of the rows that have been changed locally and not yet
+ * acknowledged by the server.
+ * <p>
+ * Triggers on each synchronized data table append the rowId to the journal,
+ * under a monotonically increasing sequence number, whenever a row is
+ * inserted or updated into the new_row, changed or deleted sync state. The
+ * push phase drains the journal in sequence order and, in the same
+ * transaction that records the outcomes of each alterRows request,
+ * acknowledges the highest sequence number it has sent. An interrupted push
+ * therefore resumes after the last acknowledged segment, and preparing the
+ * push costs time proportional to the number of changed rows.
+ */
+final class ChangeJournal {
+
+  static final String JOURNAL_TABLE = "_sync_change_journal";
+  static final String ACK_TABLE = "_sync_change_journal_acks";
+
+  private static final String SEQ = "seq";
+  private static final String TABLE_ID = "table_id";
+  private static final String ROW_ID = "row_id";
+  private static final String ACKED_SEQ = "acked_seq";
+
+  private static final String INSERT_TRIGGER_SUFFIX = "_journal_insert";
+  private static final String UPDATE_TRIGGER_SUFFIX = "_journal_update";
+  private static final String DELETE_TRIGGER_SUFFIX = "_journal_delete";
+
+  /**
+   * A rowId that has been changed, and the sequence number of its most recent
+   * change.
+   */
+  static final class Entry {
+    final long seq;
+    final String rowId;
+
+    Entry(long seq, String rowId) {
+      this.seq = seq;
+      this.rowId = rowId;
+    }
+  }
+
+  private ChangeJournal() {
+  }
+
+  private static String quote(String literal) {
+    return "'" + literal.replace("'", "''") + "'";
+  }
+
+  private static String dirtyStates() {
+    return "(" + quote(SyncState.new_row.name()) + "," + quote(SyncState.changed.name()) + ","
+        + quote(SyncState.deleted.name()) + ")";
+  }
+
+  /**
+   * Create the journal tables and the triggers on the data table if they do
+   * not exist. When the triggers are (re-)created, any journal entries for
+   * the table are discarded and the journal is seeded with the rows that are
+   * currently awaiting a push.
+   *
+   * @param db
+   * @param tableId
+   */
+  static void ensureInstalled(SQLiteDatabase db, String tableId) {
+    db.beginTransaction();
+    try {
+      db.execSQL("CREATE TABLE IF NOT EXISTS " + JOURNAL_TABLE + " (" + SEQ
+          + " INTEGER PRIMARY KEY AUTOINCREMENT, " + TABLE_ID + " TEXT NOT NULL, " + ROW_ID
+          + " TEXT NOT NULL)");
+      db.execSQL("CREATE INDEX IF NOT EXISTS " + JOURNAL_TABLE + "_idx ON " + JOURNAL_TABLE
+          + " (" + TABLE_ID + ", " + SEQ + ")");
+      db.execSQL("CREATE TABLE IF NOT EXISTS " + ACK_TABLE + " (" + TABLE_ID
+          + " TEXT PRIMARY KEY, " + ACKED_SEQ + " INTEGER NOT NULL)");
+
+      String[] triggers = { tableId + INSERT_TRIGGER_SUFFIX, tableId + UPDATE_TRIGGER_SUFFIX,
+          tableId + DELETE_TRIGGER_SUFFIX };
+      int triggerCount = 0;
+      int ackCount = 0;
+      Cursor c = null;
+      try {
+        c = db.rawQuery("SELECT COUNT(*) FROM sqlite_master WHERE type='trigger' AND name IN (?,?,?)",
+            triggers);
+        if (c.moveToFirst()) {
+          triggerCount = c.getInt(0);
+        }
+        c.close();
+        c = db.rawQuery("SELECT COUNT(*) FROM " + ACK_TABLE + " WHERE " + TABLE_ID + "=?",
+            new String[] { tableId });
+        if (c.moveToFirst()) {
+          ackCount = c.getInt(0);
+        }
+      } finally {
+        if (c != null && !c.isClosed()) {
+          c.close();
+        }
+      }
+
+      if (triggerCount != triggers.length || ackCount != 1) {
+        String quotedTableId = "\"" + tableId + "\"";
+        String journalInsert = "INSERT INTO " + JOURNAL_TABLE + " (" + TABLE_ID + ", " + ROW_ID
+            + ") VALUES (" + quote(tableId) + ", NEW." + DataTableColumns.ID + ")";
+
+        for (String trigger : triggers) {
+          db.execSQL("DROP TRIGGER IF EXISTS \"" + trigger + "\"");
+        }
+        db.execSQL("CREATE TRIGGER \"" + triggers[0] + "\" AFTER INSERT ON " + quotedTableId
+            + " WHEN NEW." + DataTableColumns.SYNC_STATE + " IN " + dirtyStates() + " BEGIN "
+            + journalInsert + "; END");
+        db.execSQL("CREATE TRIGGER \"" + triggers[1] + "\" AFTER UPDATE ON " + quotedTableId
+            + " WHEN NEW." + DataTableColumns.SYNC_STATE + " IN " + dirtyStates() + " BEGIN "
+            + journalInsert + "; END");
+        // once every row with this rowId is gone there is nothing to push.
+        db.execSQL("CREATE TRIGGER \"" + triggers[2] + "\" AFTER DELETE ON " + quotedTableId
+            + " WHEN NOT EXISTS (SELECT 1 FROM " + quotedTableId + " WHERE "
+            + DataTableColumns.ID + "=OLD." + DataTableColumns.ID + ") BEGIN DELETE FROM "
+            + JOURNAL_TABLE + " WHERE " + TABLE_ID + "=" + quote(tableId) + " AND " + ROW_ID
+            + "=OLD." + DataTableColumns.ID + "; END");
+
+        // reset and seed the journal for this table
+        db.execSQL("DELETE FROM " + JOURNAL_TABLE + " WHERE " + TABLE_ID + "=?",
+            new Object[] { tableId });
+        db.execSQL("DELETE FROM " + ACK_TABLE + " WHERE " + TABLE_ID + "=?",
+            new Object[] { tableId });
+        db.execSQL("INSERT INTO " + ACK_TABLE + " (" + TABLE_ID + ", " + ACKED_SEQ
+            + ") VALUES (?, 0)", new Object[] { tableId });
+        db.execSQL("INSERT INTO " + JOURNAL_TABLE + " (" + TABLE_ID + ", " + ROW_ID + ") SELECT ?, "
+            + DataTableColumns.ID + " FROM " + quotedTableId + " WHERE "
+            + DataTableColumns.SYNC_STATE + " IN " + dirtyStates() + " ORDER BY "
+            + DataTableColumns.ID, new Object[] { tableId });
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * Get the rowIds changed since the last acknowledged sequence number, each
+   * listed once, ordered by the sequence number of its most recent change.
+   *
+   * @param db
+   * @param tableId
+   * @return the unacknowledged journal entries, in order.
+   */
+  static List<Entry> getPendingEntries(SQLiteDatabase db, String tableId) {
+    List<Entry> entries = new ArrayList<Entry>();
+    Cursor c = null;
+    try {
+      c = db.rawQuery("SELECT " + ROW_ID + ", MAX(" + SEQ + ") AS max_seq FROM " + JOURNAL_TABLE
+          + " WHERE " + TABLE_ID + "=? AND " + SEQ + " > (SELECT " + ACKED_SEQ + " FROM "
+          + ACK_TABLE + " WHERE " + TABLE_ID + "=?) GROUP BY " + ROW_ID + " ORDER BY max_seq ASC",
+          new String[] { tableId, tableId });
+      while (c.moveToNext()) {
+        entries.add(new Entry(c.getLong(1), c.getString(0)));
+      }
+    } finally {
+      if (c != null) {
+        c.close();
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * Append an entry for the rowId so that it is pushed again, e.g., when the
+   * server did not act upon it.
+   *
+   * @param db
+   * @param tableId
+   * @param rowId
+   */
+  static void record(SQLiteDatabase db, String tableId, String rowId) {
+    db.execSQL("INSERT INTO " + JOURNAL_TABLE + " (" + TABLE_ID + ", " + ROW_ID
+        + ") VALUES (?, ?)", new Object[] { tableId, rowId });
+  }
+
+  /**
+   * Record that all changes up to and including seq have been acknowledged
+   * by the server, and discard those journal entries. Should be called
+   * within the transaction that records the outcome of the push.
+   *
+   * @param db
+   * @param tableId
+   * @param seq
+   */
+  static void acknowledge(SQLiteDatabase db, String tableId, long seq) {
+    db.execSQL("UPDATE " + ACK_TABLE + " SET " + ACKED_SEQ + "=? WHERE " + TABLE_ID + "=? AND "
+        + ACKED_SEQ + " < ?", new Object[] { seq, tableId, seq });
+    db.execSQL("DELETE FROM " + JOURNAL_TABLE + " WHERE " + TABLE_ID + "=? AND " + SEQ + " <= ?",
+        new Object[] { tableId, seq });
+  }
+}
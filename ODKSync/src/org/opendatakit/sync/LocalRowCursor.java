@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2015 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync;
+
+import java.util.Comparator;
+import java.util.List;
+
+import org.opendatakit.aggregate.odktables.rest.SyncState;
+import org.opendatakit.aggregate.odktables.rest.entity.Scope;
+import org.opendatakit.common.android.provider.DataTableColumns;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Reads local rows in rowId order, one row at a time: either the rows having
+ * any of a sorted list of rowIds, or the rows in given sync states.
+ * <p>
+ * The rowIds are queried ROW_ID_LOOKUP_BATCH_SIZE at a time; because they are
+ * sorted, each query covers the next range and the rows come back in a
+ * single ascending sequence. Only the current row is held in memory, so the
+ * caller can stream-merge the rows against a sorted page of server changes.
+ * All local rows with a given rowId (e.g., the local and server rows of a
+ * conflict) are returned consecutively.
+ */
+final class LocalRowCursor {
+
+  /**
+   * The order of SQLite's BINARY collation on _id: by Unicode code point
+   * (i.e., UTF-8 byte order), which differs from String.compareTo for
+   * characters outside the Basic Multilingual Plane.
+   */
+  static final Comparator<String> ROW_ID_ORDER = new Comparator<String>() {
+
+    @Override
+    public int compare(String a, String b) {
+      int i = 0;
+      int j = 0;
+      while (i < a.length() && j < b.length()) {
+        int ca = a.codePointAt(i);
+        int cb = b.codePointAt(j);
+        if (ca != cb) {
+          return (ca < cb) ? -1 : 1;
+        }
+        i += Character.charCount(ca);
+        j += Character.charCount(cb);
+      }
+      return (i < a.length()) ? 1 : ((j < b.length()) ? -1 : 0);
+    }
+  };
+
+  private final SQLiteDatabase db;
+  private final String quotedTableId;
+  private final RowBatch localRows;
+  private final List<String> sortedRowIds;
+  private final int batchSize;
+
+  // when reading by sync state
+  private final String selection;
+  private final String[] selectionArgs;
+
+  private int nextOffset = 0;
+  private Cursor c = null;
+
+  // column indexes of the current cursor
+  private int idxId;
+  private int idxRowETag;
+  private int idxSyncState;
+  private int idxConflictType;
+  private int idxFilterType;
+  private int idxFilterValue;
+  private int idxFormId;
+  private int idxLocale;
+  private int idxSavepointType;
+  private int idxSavepointTimestamp;
+  private int idxSavepointCreator;
+  private int[] idxValues;
+
+  /**
+   * @param db
+   * @param tableId
+   * @param localRows
+   *          supplies the column dictionary of the SyncRows
+   * @param sortedRowIds
+   *          the rowIds to read, sorted by ROW_ID_ORDER
+   * @param batchSize
+   *          the number of rowIds to query at a time
+   */
+  LocalRowCursor(SQLiteDatabase db, String tableId, RowBatch localRows,
+      List<String> sortedRowIds, int batchSize) {
+    this.db = db;
+    this.quotedTableId = "\"" + tableId + "\"";
+    this.localRows = localRows;
+    this.sortedRowIds = sortedRowIds;
+    this.batchSize = batchSize;
+    this.selection = null;
+    this.selectionArgs = null;
+  }
+
+  /**
+   * Read the rows in any of the given sync states, with a single query.
+   *
+   * @param db
+   * @param tableId
+   * @param localRows
+   *          supplies the column dictionary of the SyncRows
+   * @param states
+   */
+  LocalRowCursor(SQLiteDatabase db, String tableId, RowBatch localRows, SyncState[] states) {
+    this.db = db;
+    this.quotedTableId = "\"" + tableId + "\"";
+    this.localRows = localRows;
+    this.sortedRowIds = null;
+    this.batchSize = 0;
+    StringBuilder b = new StringBuilder();
+    b.append(DataTableColumns.SYNC_STATE).append(" IN (");
+    this.selectionArgs = new String[states.length];
+    for (int i = 0; i < states.length; ++i) {
+      if (i != 0) {
+        b.append(",");
+      }
+      b.append("?");
+      selectionArgs[i] = states[i].name();
+    }
+    b.append(")");
+    this.selection = b.toString();
+  }
+
+  private boolean hasNextQuery() {
+    return (sortedRowIds == null) ? (nextOffset == 0) : (nextOffset < sortedRowIds.size());
+  }
+
+  private void openNextQuery() {
+    StringBuilder b = new StringBuilder();
+    b.append("SELECT * FROM ").append(quotedTableId).append(" WHERE ");
+    String[] args;
+    if (sortedRowIds == null) {
+      b.append(selection);
+      args = selectionArgs;
+      nextOffset = 1;
+    } else {
+      int max = Math.min(nextOffset + batchSize, sortedRowIds.size());
+      b.append(DataTableColumns.ID).append(" IN (");
+      args = new String[max - nextOffset];
+      for (int i = nextOffset; i < max; ++i) {
+        if (i != nextOffset) {
+          b.append(",");
+        }
+        b.append("?");
+        args[i - nextOffset] = sortedRowIds.get(i);
+      }
+      b.append(")");
+      nextOffset = max;
+    }
+    b.append(" ORDER BY ").append(DataTableColumns.ID).append(" ASC");
+
+    c = db.rawQuery(b.toString(), args);
+    idxId = c.getColumnIndexOrThrow(DataTableColumns.ID);
+    idxRowETag = c.getColumnIndexOrThrow(DataTableColumns.ROW_ETAG);
+    idxSyncState = c.getColumnIndexOrThrow(DataTableColumns.SYNC_STATE);
+    idxConflictType = c.getColumnIndexOrThrow(DataTableColumns.CONFLICT_TYPE);
+    idxFilterType = c.getColumnIndexOrThrow(DataTableColumns.FILTER_TYPE);
+    idxFilterValue = c.getColumnIndexOrThrow(DataTableColumns.FILTER_VALUE);
+    idxFormId = c.getColumnIndexOrThrow(DataTableColumns.FORM_ID);
+    idxLocale = c.getColumnIndexOrThrow(DataTableColumns.LOCALE);
+    idxSavepointType = c.getColumnIndexOrThrow(DataTableColumns.SAVEPOINT_TYPE);
+    idxSavepointTimestamp = c.getColumnIndexOrThrow(DataTableColumns.SAVEPOINT_TIMESTAMP);
+    idxSavepointCreator = c.getColumnIndexOrThrow(DataTableColumns.SAVEPOINT_CREATOR);
+    String[] columns = localRows.getColumns();
+    idxValues = new int[columns.length];
+    for (int i = 0; i < columns.length; ++i) {
+      idxValues[i] = c.getColumnIndexOrThrow(columns[i]);
+    }
+  }
+
+  /**
+   * Advance to the next local row.
+   *
+   * @return false when there are no more rows.
+   */
+  boolean moveToNext() {
+    for (;;) {
+      if (c != null) {
+        if (c.moveToNext()) {
+          return true;
+        }
+        c.close();
+        c = null;
+      }
+      if (!hasNextQuery()) {
+        return false;
+      }
+      openNextQuery();
+    }
+  }
+
+  /**
+   * Values are returned in SQLite's text form, as rawSqlQuery() returned them,
+   * so the values pushed to the server and fingerprinted are unchanged (e.g.,
+   * a REAL of 1e10 is "10000000000.0", not Java's "1.0E10").
+   */
+  private String getString(int idx) {
+    if (c.isNull(idx)) {
+      return null;
+    }
+    return c.getString(idx);
+  }
+
+  String getRowId() {
+    return getString(idxId);
+  }
+
+  SyncState getSyncState() {
+    String state = getString(idxSyncState);
+    return (state == null) ? null : SyncState.valueOf(state);
+  }
+
+  /**
+   * @return the conflict type, or null if the row is not in conflict.
+   */
+  Integer getConflictType() {
+    return c.isNull(idxConflictType) ? null : c.getInt(idxConflictType);
+  }
+
+  /**
+   * @return the current row as a SyncRow of the localRows batch.
+   */
+  SyncRow toSyncRow() {
+    String[] values = new String[idxValues.length];
+    for (int i = 0; i < idxValues.length; ++i) {
+      values[i] = getString(idxValues[i]);
+    }
+    return localRows.newLocalRow(getRowId(), getString(idxRowETag), getString(idxFormId),
+        getString(idxLocale), getString(idxSavepointType), getString(idxSavepointTimestamp),
+        getString(idxSavepointCreator),
+        Scope.asScope(getString(idxFilterType), getString(idxFilterValue)), values);
+  }
+
+  void close() {
+    if (c != null) {
+      c.close();
+      c = null;
+    }
+  }
+}
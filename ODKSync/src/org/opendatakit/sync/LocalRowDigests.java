@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2015 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.opendatakit.aggregate.odktables.rest.ConflictType;
+import org.opendatakit.aggregate.odktables.rest.SyncState;
+import org.opendatakit.common.android.provider.DataTableColumns;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * The device's side of a RowDigests comparison.
+ * <p>
+ * Besides the bucket digests of the local (rowId, rowETag) pairs, a bucket is
+ * marked unverified if any of its rows may hold content other than the
+ * server's version under its rowETag: rows with local changes or conflicts,
+ * and new_row rows (e.g., rows reset by a schema change) whose content does
+ * not match the fingerprint recorded when the server last acknowledged them.
+ * Equal digests only prove that the rowETags agree, so an unverified bucket
+ * must be pulled even if its digest matches.
+ */
+final class LocalRowDigests {
+
+  final long[] bucketDigests;
+  final boolean[] unverified;
+
+  private LocalRowDigests(int bucketCount) {
+    this.bucketDigests = new long[bucketCount];
+    this.unverified = new boolean[bucketCount];
+  }
+
+  /**
+   * Scan the rows of the table.
+   *
+   * @param db
+   * @param tableId
+   * @param localRows
+   *          supplies the column dictionary of the rows
+   * @param bucketCount
+   *          a power of two
+   * @param batchSize
+   *          the number of fingerprints to look up at a time
+   * @return the digests
+   */
+  static LocalRowDigests compute(SQLiteDatabase db, String tableId, RowBatch localRows,
+      int bucketCount, int batchSize) {
+    LocalRowDigests digests = new LocalRowDigests(bucketCount);
+    List<SyncRow> unacknowledged = new ArrayList<SyncRow>();
+    LocalRowCursor local = new LocalRowCursor(db, tableId, localRows, SyncState.values());
+    try {
+      while (local.moveToNext()) {
+        SyncState state = local.getSyncState();
+        String rowId = local.getRowId();
+        int bucket = RowDigests.bucketOf(rowId, bucketCount);
+        if (state == SyncState.in_conflict) {
+          digests.unverified[bucket] = true;
+          Integer conflictType = local.getConflictType();
+          if (conflictType != null
+              && (conflictType == ConflictType.SERVER_DELETED_OLD_VALUES
+              || conflictType == ConflictType.SERVER_UPDATED_UPDATED_VALUES)) {
+            // the server's version of the row; the local version carries the
+            // rowETag it was based upon.
+            continue;
+          }
+        } else if (state != SyncState.synced && state != SyncState.synced_pending_files
+            && state != SyncState.new_row) {
+          digests.unverified[bucket] = true;
+        }
+        SyncRow row = local.toSyncRow();
+        RowDigests.add(digests.bucketDigests, rowId, row.getRowETag());
+        if (state == SyncState.new_row) {
+          unacknowledged.add(row);
+          if (unacknowledged.size() == batchSize) {
+            digests.verify(db, tableId, unacknowledged);
+          }
+        }
+      }
+    } finally {
+      local.close();
+    }
+    digests.verify(db, tableId, unacknowledged);
+    return digests;
+  }
+
+  /**
+   * Mark the buckets of the rows whose content is not what the server last
+   * acknowledged as unverified.
+   */
+  private void verify(SQLiteDatabase db, String tableId, List<SyncRow> rows) {
+    if (rows.isEmpty()) {
+      return;
+    }
+    List<String> rowIds = new ArrayList<String>(rows.size());
+    for (SyncRow row : rows) {
+      rowIds.add(row.getRowId());
+    }
+    Map<String, RowFingerprints.Entry> entries = RowFingerprints.getEntries(db, tableId, rowIds,
+        rows.size());
+    for (SyncRow row : rows) {
+      RowFingerprints.Entry entry = entries.get(row.getRowId());
+      if (entry == null || !entry.matches(row)) {
+        unverified[RowDigests.bucketOf(row.getRowId(), unverified.length)] = true;
+      }
+    }
+    rows.clear();
+  }
+
+  /**
+   * Return the new_row rows outside the given buckets to the synced state.
+   * These rows have been verified to be the server's current versions. The
+   * caller is responsible for the transaction.
+   *
+   * @param db
+   * @param tableId
+   * @param pulled
+   *          the buckets whose rows are pulled from the server
+   * @param state
+   *          the sync state to give the rows (synced or synced_pending_files)
+   * @param batchSize
+   *          the number of rowIds to read at a time
+   * @return the number of rows updated
+   */
+  static int markRowsSynced(SQLiteDatabase db, String tableId, boolean[] pulled,
+      SyncState state, int batchSize) {
+    String quotedTableId = "\"" + tableId + "\"";
+    String query = "SELECT " + DataTableColumns.ID + " FROM " + quotedTableId + " WHERE "
+        + DataTableColumns.SYNC_STATE + "=? AND " + DataTableColumns.ID + ">? ORDER BY "
+        + DataTableColumns.ID + " ASC LIMIT " + batchSize;
+    SQLiteStatement stmt = db.compileStatement("UPDATE " + quotedTableId + " SET "
+        + DataTableColumns.SYNC_STATE + "=? WHERE " + DataTableColumns.ID + "=? AND "
+        + DataTableColumns.SYNC_STATE + "=?");
+    int count = 0;
+    try {
+      // the updated rows leave the selection, so page by rowId rather than
+      // holding a cursor open across the updates.
+      String lastRowId = "";
+      List<String> rowIds = new ArrayList<String>(batchSize);
+      for (;;) {
+        rowIds.clear();
+        Cursor c = null;
+        try {
+          c = db.rawQuery(query, new String[] { SyncState.new_row.name(), lastRowId });
+          while (c.moveToNext()) {
+            rowIds.add(c.getString(0));
+          }
+        } finally {
+          if (c != null && !c.isClosed()) {
+            c.close();
+          }
+        }
+        if (rowIds.isEmpty()) {
+          break;
+        }
+        lastRowId = rowIds.get(rowIds.size() - 1);
+        for (String rowId : rowIds) {
+          if (pulled[RowDigests.bucketOf(rowId, pulled.length)]) {
+            continue;
+          }
+          stmt.clearBindings();
+          stmt.bindString(1, state.name());
+          stmt.bindString(2, rowId);
+          stmt.bindString(3, SyncState.new_row.name());
+          count += stmt.executeUpdateDelete();
+        }
+      }
+    } finally {
+      stmt.close();
+    }
+    return count;
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2015 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync;
+
+/**
+ * Chooses the number of rows to request in each page of server changes
+ * (the fetchLimit) for one table.
+ * <p>
+ * The cost of a page is modeled as a fixed round-trip latency plus, for each
+ * row, its transfer time (bytes per row over the observed throughput) and its
+ * local apply time. The page size is chosen so that a page takes about
+ * TARGET_PAGE_MS: fast links get large pages and few round trips, slow links
+ * get small pages that complete (or fail) quickly. The size may at most
+ * double from one page to the next, and is halved when a fetch fails.
+ * <p>
+ * Fetches are observed on the prefetch thread and applies on the sync thread,
+ * so all methods are synchronized.
+ */
+final class PageSizeController {
+
+  static final int INITIAL_FETCH_LIMIT = 100;
+  static final int MIN_FETCH_LIMIT = 20;
+  static final int MAX_FETCH_LIMIT = 2000;
+
+  /**
+   * Aim for pages that take this long to fetch and apply.
+   */
+  private static final long TARGET_PAGE_MS = 4000L;
+
+  /**
+   * Weight of the newest observation in the moving averages.
+   */
+  private static final double ALPHA = 0.3;
+
+  private int fetchLimit = INITIAL_FETCH_LIMIT;
+
+  // moving averages; negative until the first observation.
+  private double latencyMs = -1.0;
+  private double bytesPerMs = -1.0;
+  private double bytesPerRow = -1.0;
+  private double applyMsPerRow = -1.0;
+
+  private static double average(double current, double observed) {
+    return (current < 0.0) ? observed : (ALPHA * observed + (1.0 - ALPHA) * current);
+  }
+
+  /**
+   * @return the number of rows to request in the next page.
+   */
+  synchronized int getFetchLimit() {
+    return fetchLimit;
+  }
+
+  /**
+   * Record a completed fetch of a page.
+   *
+   * @param elapsedMs
+   *          time from issuing the request to the end of the response.
+   * @param firstByteMs
+   *          time from issuing the request to the start of the response body.
+   * @param bytes
+   *          size of the response body.
+   * @param rows
+   *          number of rows in the page.
+   */
+  synchronized void fetchCompleted(long elapsedMs, long firstByteMs, long bytes, int rows) {
+    latencyMs = average(latencyMs, Math.max(0L, firstByteMs));
+    long transferMs = elapsedMs - firstByteMs;
+    if (bytes > 0 && transferMs > 0) {
+      bytesPerMs = average(bytesPerMs, ((double) bytes) / transferMs);
+    }
+    if (rows > 0) {
+      bytesPerRow = average(bytesPerRow, ((double) bytes) / rows);
+    }
+    recompute();
+  }
+
+  /**
+   * Record the time taken to apply a page to the local database.
+   *
+   * @param elapsedMs
+   * @param rows
+   */
+  synchronized void applyCompleted(long elapsedMs, int rows) {
+    if (rows > 0) {
+      applyMsPerRow = average(applyMsPerRow, ((double) elapsedMs) / rows);
+    }
+    recompute();
+  }
+
+  /**
+   * Record a failed fetch; back off to half the page size.
+   */
+  synchronized void fetchFailed() {
+    fetchLimit = Math.max(MIN_FETCH_LIMIT, fetchLimit / 2);
+  }
+
+  private void recompute() {
+    if (latencyMs < 0.0 || bytesPerRow < 0.0) {
+      return;
+    }
+    double perRowMs = (applyMsPerRow < 0.0) ? 0.0 : applyMsPerRow;
+    if (bytesPerMs > 0.0) {
+      perRowMs += bytesPerRow / bytesPerMs;
+    }
+    double budgetMs = TARGET_PAGE_MS - latencyMs;
+    int target;
+    if (perRowMs <= 0.0) {
+      target = MAX_FETCH_LIMIT;
+    } else if (budgetMs <= 0.0) {
+      // the round trip alone exceeds the target; keep the pages small.
+      target = MIN_FETCH_LIMIT;
+    } else {
+      target = (int) Math.min(MAX_FETCH_LIMIT, budgetMs / perRowMs);
+    }
+    // grow gradually, shrink immediately.
+    target = Math.min(target, 2 * fetchLimit);
+    fetchLimit = Math.max(MIN_FETCH_LIMIT, Math.min(MAX_FETCH_LIMIT, target));
+  }
+}
@@ -89,7 +89,10 @@ public class ProcessAppAndTableLevelChanges {
     String webSafeResumeCursor = null;
     for (;;) {
       try {
-        tableList = sc.getSynchronizer().getTables(webSafeResumeCursor);
+        // table entries are small; ask for as many as we allow per page
+        // so that we need few round trips.
+        tableList = sc.getSynchronizer().getTables(webSafeResumeCursor,
+            PageSizeController.MAX_FETCH_LIMIT);
         if (tableList != null & tableList.getTables() != null) {
           tables.addAll(tableList.getTables());
         }
@@ -515,6 +518,8 @@ public class ProcessAppAndTableLevelChanges {
           // we need to clear out the dataETag so
           // that we will pull all server changes and sync our properties.
           ODKDatabaseUtils.get().updateDBTableETags(db, tableId, null, null);
+          PullCheckpoint.discard(db, tableId);
+          RowFingerprints.discard(db, tableId);
           //
           // Although the server does not recognize this tableId, we can
           // keep our record of the ETags for the table-level files and
@@ -739,6 +744,8 @@ public class ProcessAppAndTableLevelChanges {
             definitionResource.getTableId(), definitionResource.getColumns());
         ODKDatabaseUtils.get().updateDBTableETags(db, definitionResource.getTableId(),
             definitionResource.getSchemaETag(), null);
+        PullCheckpoint.discard(db, definitionResource.getTableId());
+        RowFingerprints.discard(db, definitionResource.getTableId());
         db.setTransactionSuccessful();
         return orderedDefns;
       } finally {
@@ -775,6 +782,9 @@ public class ProcessAppAndTableLevelChanges {
           // so that all data rows sync.
           ODKDatabaseUtils.get().updateDBTableETags(db, definitionResource.getTableId(),
               definitionResource.getSchemaETag(), null);
+          PullCheckpoint.discard(db, definitionResource.getTableId());
+          // the row fingerprints are kept: they let the rows that still
+          // match the server's versions be verified by their RowDigests.
           db.setTransactionSuccessful();
         } finally {
           db.endTransaction();
@@ -15,29 +15,33 @@
  */
 package org.opendatakit.sync;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.http.HttpStatus;
 import org.apache.wink.client.ClientWebException;
 import org.opendatakit.aggregate.odktables.rest.ConflictType;
 import org.opendatakit.aggregate.odktables.rest.ElementDataType;
 import org.opendatakit.aggregate.odktables.rest.SyncState;
-import org.opendatakit.aggregate.odktables.rest.entity.DataKeyValue;
 import org.opendatakit.aggregate.odktables.rest.entity.RowOutcome;
 import org.opendatakit.aggregate.odktables.rest.entity.RowOutcome.OutcomeType;
 import org.opendatakit.aggregate.odktables.rest.entity.RowOutcomeList;
-import org.opendatakit.aggregate.odktables.rest.entity.RowResource;
-import org.opendatakit.aggregate.odktables.rest.entity.RowResourceList;
-import org.opendatakit.aggregate.odktables.rest.entity.Scope;
 import org.opendatakit.aggregate.odktables.rest.entity.TableResource;
 import org.opendatakit.common.android.data.ColumnDefinition;
 import org.opendatakit.common.android.data.TableDefinitionEntry;
-import org.opendatakit.common.android.data.UserTable;
-import org.opendatakit.common.android.data.UserTable.Row;
 import org.opendatakit.common.android.provider.DataTableColumns;
 import org.opendatakit.common.android.utilities.ODKDatabaseUtils;
 import org.opendatakit.common.android.utilities.TableUtil;
@@ -46,7 +50,7 @@ import org.opendatakit.sync.SynchronizationResult.Status;
 import org.opendatakit.sync.exceptions.InvalidAuthTokenException;
 import org.opendatakit.sync.service.SyncProgressState;
 
-import android.content.ContentValues;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 
 import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
@@ -64,7 +68,37 @@ public class ProcessRowDataChanges {
   private static final String TAG = ProcessRowDataChanges.class.getSimpleName();
 
   private static final int UPSERT_BATCH_SIZE = 500;
+  private static final int ROW_ID_LOOKUP_BATCH_SIZE = 200;
   private static final int ROWS_BETWEEN_PROGRESS_UPDATES = 10;
+  /**
+   * The action lists of the pages of server changes being applied, across all
+   * the tables being synced, may hold up to 1/8th of the maximum heap before
+   * the remaining actions are spilled to temp files.
+   */
+  private static final long CHANGE_BUFFER_HEAP_FRACTION = 8L;
+  /**
+   * When bootstrapping an empty table, the rows of a page are inserted in
+   * transactions of at most this many rows.
+   */
+  static final int BOOTSTRAP_ROWS_PER_TRANSACTION = 1000;
+  /**
+   * A push rejected with a 409 (CONFLICT) because another client changed the
+   * table is retried at most this many times, after a randomized delay that
+   * doubles from the base up to the maximum.
+   */
+  static final int MAX_CONFLICT_RETRIES = 5;
+  static final long CONFLICT_RETRY_BASE_MILLIS = 500L;
+  static final long CONFLICT_RETRY_MAX_MILLIS = 30000L;
+  /**
+   * The number of file attachments transferred at the same time to any one
+   * server, whatever the size of the transfer pool.
+   */
+  private static final int MAX_ATTACHMENT_TRANSFERS_PER_HOST = 3;
+  /**
+   * The server is asked which attachments it holds for this many rows at a
+   * time, before their files are pushed.
+   */
+  private static final int SERVER_FILE_HASH_BATCH_SIZE = 50;
   private static final ObjectMapper mapper;
 
   static {
@@ -79,6 +113,14 @@ public class ProcessRowDataChanges {
   private Double perRowIncrement;
   private int rowsProcessed;
 
+  private final Random random = new Random();
+
+  /** transfers the file attachments of the rows; shared by all tables */
+  private AttachmentTransferEngine transferEngine;
+
+  /** bounds the memory of the action lists; shared by all tables */
+  private RowChangeBuffer.MemoryBudget changeBufferBudget;
+
   public ProcessRowDataChanges(SyncExecutionContext sharedContext) {
     this.sc = sharedContext;
     this.log = WebLogger.getLogger(sc.getAppName());
@@ -186,46 +228,594 @@ public class ProcessRowDataChanges {
    *          during the sync'ing of the table-level files, or if the table
    *          schema does not match, the local table will be omitted from this
    *          list.
+   * @param deferInstanceAttachments
+   * @param maxConcurrentTables
+   *          the number of tables to sync at the same time. If 1, the tables
+   *          are synced one after the other on the calling thread.
+   * @param maxConcurrentTransfers
+   *          the number of file attachments to transfer at the same time,
+   *          across all tables.
    */
   public void synchronizeDataRowsAndAttachments(List<TableResource> workingListOfTables,
-      boolean deferInstanceAttachments) {
+      final boolean deferInstanceAttachments, int maxConcurrentTables,
+      int maxConcurrentTransfers) {
     log.i(TAG, "entered synchronize()");
 
+    final AttachmentTransferEngine engine = new AttachmentTransferEngine(maxConcurrentTransfers,
+        MAX_ATTACHMENT_TRANSFERS_PER_HOST);
+    final RowChangeBuffer.MemoryBudget budget = new RowChangeBuffer.MemoryBudget(Runtime
+        .getRuntime().maxMemory() / CHANGE_BUFFER_HEAP_FRACTION);
+    try {
+      synchronizeTables(workingListOfTables, deferInstanceAttachments, maxConcurrentTables,
+          engine, budget);
+    } finally {
+      engine.shutdown();
+    }
+  }
+
+  private void synchronizeTables(List<TableResource> workingListOfTables,
+      final boolean deferInstanceAttachments, int maxConcurrentTables,
+      final AttachmentTransferEngine engine, final RowChangeBuffer.MemoryBudget budget) {
+    int nThreads = Math.min(maxConcurrentTables, workingListOfTables.size());
+    if (nThreads <= 1) {
+      // we can assume that all the local table properties should
+      // sync with the server.
+      this.transferEngine = engine;
+      this.changeBufferBudget = budget;
+      for (TableResource tableResource : workingListOfTables) {
+        synchronizeTable(tableResource, deferInstanceAttachments);
+      }
+      return;
+    }
+
+    // The data sync of each table is independent of the others. Each table
+    // is synced by its own ProcessRowDataChanges (it tracks per-table
+    // progress) on a bounded pool of worker threads.
+    ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+    try {
+      List<Future<?>> outcomes = new ArrayList<Future<?>>();
+      for (final TableResource tableResource : workingListOfTables) {
+        outcomes.add(executor.submit(new Runnable() {
+
+          @Override
+          public void run() {
+            ProcessRowDataChanges worker = new ProcessRowDataChanges(sc);
+            worker.transferEngine = engine;
+            worker.changeBufferBudget = budget;
+            worker.synchronizeTable(tableResource, deferInstanceAttachments);
+          }
+        }));
+      }
+
+      for (int i = 0; i < outcomes.size(); ++i) {
+        String tableId = workingListOfTables.get(i).getTableId();
+        try {
+          outcomes.get(i).get();
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          exception("synchronizeTables", tableId,
+              (cause instanceof Exception) ? (Exception) cause : e, sc.getTableResult(tableId));
+        } catch (InterruptedException e) {
+          log.e(TAG, "interrupted while waiting for table data sync of " + tableId);
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Synchronize the data rows and attachments of a single table.
+   *
+   * @param tableResource
+   * @param deferInstanceAttachments
+   */
+  private void synchronizeTable(TableResource tableResource, boolean deferInstanceAttachments) {
+    SQLiteDatabase db = null;
+
+    // Sync the local media files with the server if the table
+    // existed locally before we attempted downloading it.
+
+    String tableId = tableResource.getTableId();
+    TableDefinitionEntry te;
+    ArrayList<ColumnDefinition> orderedDefns;
+    String displayName;
+    try {
+      db = sc.getDatabase();
+      te = ODKDatabaseUtils.get().getTableDefinitionEntry(db, tableId);
+      orderedDefns = TableUtil.get().getColumnDefinitions(db, sc.getAppName(), tableId);
+      displayName = TableUtil.get().getLocalizedDisplayName(db, tableId);
+    } finally {
+      if (db != null) {
+        db.close();
+        db = null;
+      }
+    }
+
+    synchronizeTableDataRowsAndAttachments(tableResource, te, orderedDefns, displayName,
+        deferInstanceAttachments);
+    sc.incMajorSyncStep();
+  }
+
+  /**
+   * Create the index on the sync state of the data table if it does not
+   * already exist. SQLite keeps the index current as rows change; it is
+   * dropped along with the table.
+   *
+   * @param db
+   * @param tableId
+   */
+  private void ensureSyncStateIndex(SQLiteDatabase db, String tableId) {
+    db.execSQL("CREATE INDEX IF NOT EXISTS \"" + tableId + "_sync_state_idx\" ON \"" + tableId
+        + "\" (" + DataTableColumns.SYNC_STATE + ")");
+  }
+
+  /**
+   * Drop the index on the sync state of the data table while it is
+   * bootstrapped; ensureSyncStateIndex() then builds it in one pass.
+   *
+   * @param db
+   * @param tableId
+   */
+  private void dropSyncStateIndex(SQLiteDatabase db, String tableId) {
+    db.execSQL("DROP INDEX IF EXISTS \"" + tableId + "_sync_state_idx\"");
+  }
+
+  /**
+   * The delay before a retry of a push that conflicted with another client:
+   * between half and all of a bound that doubles with each retry. The
+   * randomness spreads out the retries of devices contending for the table.
+   *
+   * @param retry
+   *          the number of the retry, from 1
+   * @param random
+   * @return the delay in milliseconds, or -1 if the push should not be
+   *         retried again (after MAX_CONFLICT_RETRIES).
+   */
+  static long conflictRetryDelay(int retry, Random random) {
+    if (retry > MAX_CONFLICT_RETRIES) {
+      return -1L;
+    }
+    long bound = Math.min(CONFLICT_RETRY_MAX_MILLIS,
+        CONFLICT_RETRY_BASE_MILLIS << Math.min(retry - 1, 16));
+    return bound / 2 + (long) (random.nextDouble() * (bound / 2));
+  }
+
+  /**
+   * Ask the server which attachments it holds for the rows, from the given
+   * index, whose files are to be pushed. If it cannot say, each file is
+   * checked as it is pushed.
+   *
+   * @param synchronizer
+   * @param instanceFilesUri
+   * @param tableId
+   * @param rows
+   * @param from
+   *          the index of the first row
+   * @param batchSize
+   *          the number of rows, from that index, to ask about
+   * @param log
+   */
+  static void requestServerFileHashes(Synchronizer synchronizer, String instanceFilesUri,
+      String tableId, List<SyncRowPending> rows, int from, int batchSize, WebLogger log) {
+    List<SyncRowPending> rowsToPut = new ArrayList<SyncRowPending>();
+    for (SyncRowPending row : rows.subList(from, Math.min(from + batchSize, rows.size()))) {
+      if (!row.onlyGetFiles() && !row.getUriFragments().isEmpty()) {
+        rowsToPut.add(row);
+      }
+    }
+    if (rowsToPut.isEmpty()) {
+      return;
+    }
+    try {
+      synchronizer.getServerFileHashes(instanceFilesUri, tableId, rowsToPut);
+    } catch (Exception e) {
+      log.w(TAG, "unable to learn which attachments of " + tableId
+          + " the server holds -- checking each file instead: " + e.toString());
+    }
+  }
+
+  /**
+   * Determine whether any local row matches the selection, without reading
+   * the rows.
+   *
+   * @param db
+   * @param tableId
+   * @param selection
+   * @param selectionArgs
+   * @return true if there is at least one matching row.
+   */
+  private boolean hasLocalRows(SQLiteDatabase db, String tableId, String selection,
+      String[] selectionArgs) {
+    return DatabaseUtils.longForQuery(db, "SELECT EXISTS(SELECT 1 FROM \"" + tableId
+        + "\" WHERE " + selection + ")", selectionArgs) != 0L;
+  }
+
+  /**
+   * Insert a page of server changes into a table that held no rows when the
+   * pull began. No local rows are looked up and no conflicts can arise, so
+   * the rows are inserted directly, in transactions of up to
+   * BOOTSTRAP_ROWS_PER_TRANSACTION rows. The checkpoint is saved with the
+   * last of these. If the page is interrupted, the rows it has committed are
+   * pulled again when the sync resumes, and are then found to be identical.
+   *
+   * @param tableResource
+   * @param orderedColumns
+   * @param fileAttachmentColumns
+   * @param rowsToPushFileAttachments
+   * @param rows
+   * @param checkpoint
+   *          where to resume the pull after this page, or null if this is the
+   *          last page.
+   */
+  private void bootstrapRowsFromServerChanges(TableResource tableResource,
+      ArrayList<ColumnDefinition> orderedColumns,
+      ArrayList<ColumnDefinition> fileAttachmentColumns,
+      List<SyncRowPending> rowsToPushFileAttachments, SyncRowPage rows,
+      PullCheckpoint checkpoint) {
+
+    String tableId = tableResource.getTableId();
+    TableResult tableResult = sc.getTableResult(tableId);
+    Map<String, SyncRow> changedServerRows = rows.getRows();
+    if (!changedServerRows.isEmpty()) {
+      tableResult.setServerHadDataChanges(true);
+    }
+
+    perRowIncrement = 70.0 / ((double) (changedServerRows.size() + 1));
+    rowsProcessed = 0;
+    boolean hasAttachments = !fileAttachmentColumns.isEmpty();
+
+    SQLiteDatabase db = null;
+    BulkRowApplier applier = null;
+    try {
+      db = sc.getDatabase();
+      applier = new BulkRowApplier(db, sc.getAppName(), tableId, orderedColumns);
+
+      int count = 0;
+      int rowsInTransaction = 0;
+      db.beginTransaction();
+      for (SyncRow serverRow : changedServerRows.values()) {
+        // a deleted row has nothing to remove locally.
+        if (!serverRow.isDeleted()) {
+          insertBootstrapRow(applier, serverRow, hasAttachments, rowsToPushFileAttachments,
+              tableResult);
+          if (++rowsInTransaction == BOOTSTRAP_ROWS_PER_TRANSACTION) {
+            commitBootstrapRows(db);
+            rowsInTransaction = 0;
+          }
+        }
+        ++count;
+        ++rowsProcessed;
+        if (rowsProcessed % ROWS_BETWEEN_PROGRESS_UPDATES == 0) {
+          sc.updateNotification(SyncProgressState.ROWS, R.string.inserting_local_row,
+              new Object[] { tableId, count, changedServerRows.size() }, 10.0 + rowsProcessed
+                  * perRowIncrement, false);
+        }
+      }
+
+      // record how far the pull has gotten along with this page's changes
+      if (checkpoint != null) {
+        checkpoint.save(db);
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      if (applier != null) {
+        applier.close();
+        applier = null;
+      }
+      if (db != null) {
+        if (db.inTransaction()) {
+          db.endTransaction();
+        }
+        db.close();
+        db = null;
+      }
+    }
+  }
+
+  /**
+   * Insert a server row into a table being bootstrapped.
+   *
+   * @param applier
+   * @param serverRow
+   * @param hasAttachments
+   * @param rowsToPushFileAttachments
+   * @param tableResult
+   */
+  private void insertBootstrapRow(BulkRowApplier applier, SyncRow serverRow,
+      boolean hasAttachments, List<SyncRowPending> rowsToPushFileAttachments,
+      TableResult tableResult) {
+    boolean pendingFiles = hasAttachments && !serverRow.getUriFragments().isEmpty();
+    applier.insert(serverRow, pendingFiles ? SyncState.synced_pending_files : SyncState.synced,
+        null);
+    tableResult.incLocalInserts();
+    if (pendingFiles) {
+      rowsToPushFileAttachments.add(new SyncRowPending(serverRow, true, true, true));
+    }
+  }
+
+  /**
+   * Commit the rows inserted so far and begin a new transaction.
+   *
+   * @param db
+   */
+  private void commitBootstrapRows(SQLiteDatabase db) {
+    db.setTransactionSuccessful();
+    db.endTransaction();
+    db.beginTransaction();
+  }
+
+  /**
+   * Load the server's snapshot of the table, if it provides one, into the
+   * empty local table, and record the snapshot's dataETag so that the pull
+   * continues from there. The rows are committed in transactions of up to
+   * BOOTSTRAP_ROWS_PER_TRANSACTION rows; the dataETag with the last of them.
+   * Each block of rows is read off the response before its transaction is
+   * begun, so the database is not held across network I/O while the tables
+   * synced on other threads wait to write.
+   * If the snapshot cannot be retrieved or loaded, the rows are pulled page
+   * by page instead.
+   *
+   * @param tableResource
+   * @param te
+   * @param orderedColumns
+   * @param fileAttachmentColumns
+   * @param rowsToPushFileAttachments
+   * @return true if rows were committed to the table, whether or not the
+   *         whole snapshot was loaded. The table is then no longer empty.
+   */
+  boolean loadTableSnapshot(TableResource tableResource, TableDefinitionEntry te,
+      ArrayList<ColumnDefinition> orderedColumns,
+      ArrayList<ColumnDefinition> fileAttachmentColumns,
+      List<SyncRowPending> rowsToPushFileAttachments) {
+
+    String tableId = tableResource.getTableId();
+    TableResult tableResult = sc.getTableResult(tableId);
+    TableSnapshot snapshot;
+    try {
+      snapshot = sc.getSynchronizer().getTableSnapshot(tableResource, fileAttachmentColumns);
+    } catch (Exception e) {
+      log.w(TAG, "unable to retrieve a snapshot of " + tableId + " -- pulling its rows instead: "
+          + e.toString());
+      return false;
+    }
+    if (snapshot == null) {
+      return false;
+    }
+
+    log.i(TAG, "loading snapshot of " + tableId + " at dataETag " + snapshot.getDataETag());
+    sc.updateNotification(SyncProgressState.ROWS, R.string.loading_table_snapshot, new Object[] {
+        tableId, 0 }, 5.0, true);
+    boolean hasAttachments = !fileAttachmentColumns.isEmpty();
+    boolean loaded = false;
+    int count = 0;
+    int committed = 0;
+    int pendingFilesCommitted = rowsToPushFileAttachments.size();
+
     SQLiteDatabase db = null;
+    BulkRowApplier applier = null;
+    List<SyncRow> block = new ArrayList<SyncRow>(BOOTSTRAP_ROWS_PER_TRANSACTION);
+    try {
+      db = sc.getDatabase();
+      applier = new BulkRowApplier(db, sc.getAppName(), tableId, orderedColumns);
+
+      boolean endOfSnapshot = false;
+      while (!endOfSnapshot) {
+        block.clear();
+        while (block.size() < BOOTSTRAP_ROWS_PER_TRANSACTION) {
+          SyncRow serverRow = snapshot.readRow();
+          if (serverRow == null) {
+            endOfSnapshot = true;
+            break;
+          }
+          block.add(serverRow);
+        }
+
+        db.beginTransaction();
+        try {
+          for (SyncRow serverRow : block) {
+            insertBootstrapRow(applier, serverRow, hasAttachments, rowsToPushFileAttachments,
+                tableResult);
+            ++count;
+            if (count % ROWS_BETWEEN_PROGRESS_UPDATES == 0) {
+              sc.updateNotification(SyncProgressState.ROWS, R.string.loading_table_snapshot,
+                  new Object[] { tableId, count }, 5.0, true);
+            }
+          }
+          if (endOfSnapshot) {
+            // the pull continues from the snapshot's dataETag.
+            ODKDatabaseUtils.get().updateDBTableETags(db, tableId,
+                tableResource.getSchemaETag(), snapshot.getDataETag());
+            ensureSyncStateIndex(db, tableId);
+          }
+          db.setTransactionSuccessful();
+        } finally {
+          db.endTransaction();
+        }
+        committed = count;
+        pendingFilesCommitted = rowsToPushFileAttachments.size();
+      }
+      loaded = true;
+    } catch (Exception e) {
+      log.w(TAG, "unable to load the snapshot of " + tableId + " after " + committed
+          + " rows -- pulling its rows instead: " + e.toString());
+    } finally {
+      if (applier != null) {
+        applier.close();
+        applier = null;
+      }
+      if (db != null) {
+        if (!loaded && committed != 0) {
+          // the table is no longer being bootstrapped
+          ensureSyncStateIndex(db, tableId);
+        }
+        db.close();
+        db = null;
+      }
+      try {
+        snapshot.close();
+      } catch (IOException e) {
+        // ignore
+      }
+    }
 
-    // we can assume that all the local table properties should
-    // sync with the server.
-    for (TableResource tableResource : workingListOfTables) {
-      // Sync the local media files with the server if the table
-      // existed locally before we attempted downloading it.
+    if (!loaded) {
+      // the rows that were not committed have no files to pull.
+      rowsToPushFileAttachments.subList(pendingFilesCommitted, rowsToPushFileAttachments.size())
+          .clear();
+      return committed != 0;
+    }
+    te.setSchemaETag(tableResource.getSchemaETag());
+    te.setLastDataETag(snapshot.getDataETag());
+    tableResource.setDataETag(snapshot.getDataETag());
+    tableResult.setServerHadDataChanges(count != 0);
+    return true;
+  }
 
-      String tableId = tableResource.getTableId();
-      TableDefinitionEntry te;
-      ArrayList<ColumnDefinition> orderedDefns;
-      String displayName;
+  /**
+   * Reconcile a table that holds rows but has lost its dataETag (e.g., after
+   * a server schema change) by comparing RowDigests with the server, rather
+   * than pulling every row. Only the rows of the buckets that differ, or that
+   * hold rows not known to match the server's versions, are pulled. Once they
+   * are, the new_row rows of the other buckets are returned to the synced
+   * state in the same transaction that sets the table's dataETag to the one
+   * the digests were computed at.
+   * <p>
+   * If the server does not provide digests or the rows of a bucket, if more
+   * than half of the buckets differ, or if the exchange fails, the table's
+   * rows are pulled in full instead. The pages applied before a failure only
+   * hold rows of the differing buckets, which the full pull finds identical;
+   * no row of the other buckets has been changed.
+   *
+   * @return true if the table's dataETag was recovered.
+   */
+  private boolean reconcileByRowDigests(TableResource tableResource, TableDefinitionEntry te,
+      ArrayList<ColumnDefinition> orderedColumns, RowBatch localRowBatch,
+      RowEquivalence rowEquivalence, String displayName, boolean deferInstanceAttachments,
+      ArrayList<ColumnDefinition> fileAttachmentColumns,
+      List<SyncRowPending> rowsToPushFileAttachments, PageSizeController pageSizeController) {
+
+    String tableId = tableResource.getTableId();
+    int bucketCount;
+    {
+      SQLiteDatabase db = null;
       try {
         db = sc.getDatabase();
-        te = ODKDatabaseUtils.get().getTableDefinitionEntry(db, tableId);
-        orderedDefns = TableUtil.get().getColumnDefinitions(db, sc.getAppName(), tableId);
-        displayName = TableUtil.get().getLocalizedDisplayName(db, tableId);
+        bucketCount = RowDigests.bucketCountFor(DatabaseUtils.queryNumEntries(db, "\"" + tableId
+            + "\""));
       } finally {
         if (db != null) {
           db.close();
           db = null;
         }
       }
+    }
 
-      synchronizeTableDataRowsAndAttachments(tableResource, te, orderedDefns, displayName,
-          deferInstanceAttachments);
-      sc.incMajorSyncStep();
+    RowDigests serverDigests;
+    try {
+      serverDigests = sc.getSynchronizer().getRowDigests(tableResource, bucketCount);
+    } catch (Exception e) {
+      log.w(TAG, "unable to retrieve the row digests of " + tableId
+          + " -- pulling its rows instead: " + e.toString());
+      return false;
+    }
+    if (serverDigests == null) {
+      return false;
+    }
+    if (serverDigests.getBucketCount() != bucketCount) {
+      log.w(TAG, "server returned " + serverDigests.getBucketCount() + " row digests for "
+          + tableId + "; expected " + bucketCount + " -- pulling its rows instead");
+      return false;
+    }
+
+    boolean[] pulled = new boolean[bucketCount];
+    List<Integer> pulledBuckets = new ArrayList<Integer>();
+    {
+      SQLiteDatabase db = null;
+      try {
+        db = sc.getDatabase();
+        LocalRowDigests localDigests = LocalRowDigests.compute(db, tableId, localRowBatch,
+            bucketCount, ROW_ID_LOOKUP_BATCH_SIZE);
+        for (int i = 0; i < bucketCount; ++i) {
+          if (localDigests.unverified[i]
+              || localDigests.bucketDigests[i] != serverDigests.getBucketDigest(i)) {
+            pulled[i] = true;
+            pulledBuckets.add(i);
+          }
+        }
+      } finally {
+        if (db != null) {
+          db.close();
+          db = null;
+        }
+      }
+    }
+    log.i(TAG, "row digests of " + tableId + " differ in " + pulledBuckets.size() + " of "
+        + bucketCount + " buckets");
+    if (pulledBuckets.size() * 2 > bucketCount) {
+      return false;
+    }
+
+    try {
+      String websafeResumeCursor = null;
+      do {
+        SyncRowPage rows = sc.getSynchronizer().getRowsInBuckets(tableResource, bucketCount,
+            pulledBuckets, websafeResumeCursor, pageSizeController.getFetchLimit(),
+            fileAttachmentColumns);
+        if (rows == null) {
+          log.w(TAG, "server does not provide the rows of digest buckets of " + tableId
+              + " -- pulling all its rows instead");
+          return false;
+        }
+        updateLocalRowsFromServerChanges(tableResource, te, orderedColumns, localRowBatch,
+            rowEquivalence, displayName, deferInstanceAttachments, fileAttachmentColumns,
+            rowsToPushFileAttachments, rows, null);
+        websafeResumeCursor = rows.isHasMoreResults() ? rows.getWebSafeResumeCursor() : null;
+      } while (websafeResumeCursor != null);
+    } catch (Exception e) {
+      log.w(TAG, "unable to pull the differing rows of " + tableId
+          + " -- pulling all its rows instead: " + e.toString());
+      return false;
+    }
+
+    {
+      SQLiteDatabase db = null;
+      try {
+        db = sc.getDatabase();
+        db.beginTransaction();
+        // the pages pulled above only hold rows of the differing buckets, so
+        // the rows marked here were not changed by them. Rows with
+        // attachments have their files checked as for any other
+        // synced_pending_files row.
+        int count = LocalRowDigests.markRowsSynced(db, tableId, pulled,
+            fileAttachmentColumns.isEmpty() ? SyncState.synced : SyncState.synced_pending_files,
+            ROW_ID_LOOKUP_BATCH_SIZE);
+        ODKDatabaseUtils.get().updateDBTableETags(db, tableId, tableResource.getSchemaETag(),
+            serverDigests.getDataETag());
+        db.setTransactionSuccessful();
+        log.i(TAG, "row digests of " + tableId + " verified " + count + " rows");
+      } finally {
+        if (db != null) {
+          db.endTransaction();
+          db.close();
+          db = null;
+        }
+      }
     }
+    te.setSchemaETag(tableResource.getSchemaETag());
+    te.setLastDataETag(serverDigests.getDataETag());
+    tableResource.setDataETag(serverDigests.getDataETag());
+    return true;
   }
 
-  private UserTable updateLocalRowsFromServerChanges(TableResource tableResource,
-      TableDefinitionEntry te, ArrayList<ColumnDefinition> orderedColumns, String displayName,
+  private void updateLocalRowsFromServerChanges(TableResource tableResource,
+      TableDefinitionEntry te, ArrayList<ColumnDefinition> orderedColumns,
+      RowBatch localRowBatch, RowEquivalence rowEquivalence, String displayName,
       boolean deferInstanceAttachments, ArrayList<ColumnDefinition> fileAttachmentColumns,
-      List<SyncRowPending> rowsToPushFileAttachments, UserTable localDataTable, RowResourceList rows)
-      throws IOException {
+      List<SyncRowPending> rowsToPushFileAttachments, SyncRowPage rows,
+      PullCheckpoint checkpoint) throws IOException {
 
     String tableId = tableResource.getTableId();
     TableResult tableResult = sc.getTableResult(tableId);
@@ -233,16 +823,23 @@ public class ProcessRowDataChanges {
     if (rows.getRows().isEmpty()) {
       // nothing here -- let caller determine whether we are done or
       // whether we need to issue another request to the server.
-      return localDataTable;
+      if (checkpoint != null) {
+        SQLiteDatabase db = null;
+        try {
+          db = sc.getDatabase();
+          checkpoint.save(db);
+        } finally {
+          if (db != null) {
+            db.close();
+            db = null;
+          }
+        }
+      }
+      return;
     }
 
-    Map<String, SyncRow> changedServerRows = new HashMap<String, SyncRow>();
-    for (RowResource row : rows.getRows()) {
-      SyncRow syncRow = new SyncRow(row.getRowId(), row.getRowETag(), row.isDeleted(),
-          row.getFormId(), row.getLocale(), row.getSavepointType(), row.getSavepointTimestamp(),
-          row.getSavepointCreator(), row.getFilterScope(), row.getValues(), fileAttachmentColumns);
-      changedServerRows.put(row.getRowId(), syncRow);
-    }
+    // the page was decoded directly into SyncRows keyed by rowId.
+    Map<String, SyncRow> changedServerRows = rows.getRows();
 
     sc.updateNotification(SyncProgressState.ROWS, R.string.anaylzing_row_changes,
         new Object[] { tableId }, 7.0, false);
@@ -254,240 +851,325 @@ public class ProcessRowDataChanges {
     tableResult.setServerHadDataChanges(!changedServerRows.isEmpty());
     // these are all the various actions we will need to take:
 
+    // the action lists share a memory budget with those of the other tables
+    // being synced; beyond it, they spill their entries to temp files.
+    RowChangeBuffer.MemoryBudget budget = changeBufferBudget;
+    File spillDir = sc.getCacheDir();
+
     // serverRow updated; no matching localRow
-    List<SyncRowDataChanges> rowsToInsertLocally = new ArrayList<SyncRowDataChanges>();
+    RowChangeBuffer rowsToInsertLocally = new RowChangeBuffer(spillDir, budget,
+        fileAttachmentColumns);
 
     // serverRow updated; localRow SyncState is synced or
     // synced_pending_files
-    List<SyncRowDataChanges> rowsToUpdateLocally = new ArrayList<SyncRowDataChanges>();
+    RowChangeBuffer rowsToUpdateLocally = new RowChangeBuffer(spillDir, budget,
+        fileAttachmentColumns);
 
     // serverRow deleted; localRow SyncState is synced or
     // synced_pending_files
-    List<SyncRowDataChanges> rowsToDeleteLocally = new ArrayList<SyncRowDataChanges>();
+    RowChangeBuffer rowsToDeleteLocally = new RowChangeBuffer(spillDir, budget,
+        fileAttachmentColumns);
+
+    // serverRow deleted; localRow SyncState is synced_pending_files. These
+    // are kept in memory: their files are pushed, and some are removed
+    // from the list, before the rows are deleted.
+    List<SyncRowDataChanges> rowsToDeleteWithPendingFiles = new ArrayList<SyncRowDataChanges>();
 
     // serverRow updated or deleted; localRow SyncState is not synced or
     // synced_pending_files
-    List<SyncRowDataChanges> rowsToMoveToInConflictLocally = new ArrayList<SyncRowDataChanges>();
+    RowChangeBuffer rowsToMoveToInConflictLocally = new RowChangeBuffer(spillDir, budget,
+        fileAttachmentColumns);
 
-    // loop through the localRow table
-    for (int i = 0; i < localDataTable.getNumberOfRows(); i++) {
-      Row localRow = localDataTable.getRowAtIndex(i);
-      String stateStr = localRow.getRawDataOrMetadataByElementKey(DataTableColumns.SYNC_STATE);
-      SyncState state = stateStr == null ? null : SyncState.valueOf(stateStr);
-
-      String rowId = localRow.getRowId();
+    try {
+      // stream-merge the page, sorted by rowId, against the local rows with
+      // those rowIds, read in the same order through a cursor.
+      List<SyncRow> serverRows = new ArrayList<SyncRow>(changedServerRows.values());
+      Collections.sort(serverRows, new Comparator<SyncRow>() {
+
+        @Override
+        public int compare(SyncRow lhs, SyncRow rhs) {
+          return LocalRowCursor.ROW_ID_ORDER.compare(lhs.getRowId(), rhs.getRowId());
+        }
+      });
+      List<String> sortedRowIds = new ArrayList<String>(serverRows.size());
+      for (SyncRow serverRow : serverRows) {
+        sortedRowIds.add(serverRow.getRowId());
+      }
+      // from here on, each server row is referenced only until it is placed
+      // in an action list, which may spill it to disk.
+      changedServerRows.clear();
+      // the server rows that matched a local row
+      boolean[] matched = new boolean[serverRows.size()];
 
-      // see if there is a change to this row from our current
-      // server change set.
-      SyncRow serverRow = changedServerRows.get(rowId);
+      {
+        SQLiteDatabase db = null;
+        LocalRowCursor local = null;
 
-      if (serverRow == null) {
-        continue;
-      }
+        try {
+          db = sc.getDatabase();
+          local = new LocalRowCursor(db, tableId, localRowBatch, sortedRowIds,
+              ROW_ID_LOOKUP_BATCH_SIZE);
+          int iServer = 0;
+          while (local.moveToNext()) {
+            SyncState state = local.getSyncState();
+            String rowId = local.getRowId();
+
+            // advance to the server row with this rowId, if any
+            while (iServer < sortedRowIds.size()
+                && LocalRowCursor.ROW_ID_ORDER.compare(sortedRowIds.get(iServer), rowId) < 0) {
+              ++iServer;
+            }
+            if (iServer >= sortedRowIds.size() || !sortedRowIds.get(iServer).equals(rowId)
+                || matched[iServer]) {
+              // no server change to this row, or it has already been dealt
+              // with through another local row having this rowId.
+              continue;
+            }
+            SyncRow serverRow = serverRows.get(iServer);
+
+            // OK -- the server is reporting a change (in serverRow) to the
+            // localRow.
+            // if the localRow is already in a in_conflict state, determine
+            // what its
+            // ConflictType is. If the localRow holds the earlier server-side
+            // change,
+            // then skip and look at the next record.
+            int localRowConflictTypeBeforeSync = -1;
+            if (state == SyncState.in_conflict) {
+              // we need to remove the in_conflict records that refer to the
+              // prior state of the server
+              localRowConflictTypeBeforeSync = local.getConflictType();
+              if (localRowConflictTypeBeforeSync == ConflictType.SERVER_DELETED_OLD_VALUES
+                  || localRowConflictTypeBeforeSync == ConflictType.SERVER_UPDATED_UPDATED_VALUES) {
+                // This localRow holds the server values from a
+                // previously-identified conflict.
+                // Skip it -- we will clean up this copy later once we find
+                // the matching localRow
+                // that holds the locally-changed values that were in conflict
+                // with this earlier
+                // set of server values.
+                continue;
+              }
+            }
 
-      // OK -- the server is reporting a change (in serverRow) to the
-      // localRow.
-      // if the localRow is already in a in_conflict state, determine
-      // what its
-      // ConflictType is. If the localRow holds the earlier server-side
-      // change,
-      // then skip and look at the next record.
-      int localRowConflictTypeBeforeSync = -1;
-      if (state == SyncState.in_conflict) {
-        // we need to remove the in_conflict records that refer to the
-        // prior state of the server
-        String localRowConflictTypeBeforeSyncStr = localRow
-            .getRawDataOrMetadataByElementKey(DataTableColumns.CONFLICT_TYPE);
-        localRowConflictTypeBeforeSync = localRowConflictTypeBeforeSyncStr == null ? null : Integer
-            .parseInt(localRowConflictTypeBeforeSyncStr);
-        if (localRowConflictTypeBeforeSync == ConflictType.SERVER_DELETED_OLD_VALUES
-            || localRowConflictTypeBeforeSync == ConflictType.SERVER_UPDATED_UPDATED_VALUES) {
-          // This localRow holds the server values from a
-          // previously-identified conflict.
-          // Skip it -- we will clean up this copy later once we find
-          // the matching localRow
-          // that holds the locally-changed values that were in conflict
-          // with this earlier
-          // set of server values.
-          continue;
+            // mark this server row as matched.
+            // the following decision tree will always place the row into one
+            // of the
+            // local action lists.
+            matched[iServer] = true;
+            serverRows.set(iServer, null);
+
+            // OK the record is either a simple local record or a local
+            // in_conflict record
+            if (state == SyncState.synced || state == SyncState.synced_pending_files) {
+              // the server's change should be applied locally.
+              //
+              // the file attachments might be stale locally,
+              // but those are dealt with separately.
+
+              if (serverRow.isDeleted() && state == SyncState.synced_pending_files) {
+                rowsToDeleteWithPendingFiles.add(new SyncRowDataChanges(serverRow, local
+                    .toSyncRow(), true));
+              } else if (serverRow.isDeleted()) {
+                rowsToDeleteLocally.append(new SyncRowDataChanges(serverRow, local.toSyncRow(),
+                    false));
+              } else {
+                rowsToUpdateLocally.append(new SyncRowDataChanges(serverRow, local.toSyncRow(),
+                    (state == SyncState.synced_pending_files)));
+              }
+            } else if (serverRow.isDeleted()
+                && (state == SyncState.deleted || (state == SyncState.in_conflict
+                    && localRowConflictTypeBeforeSync == ConflictType.LOCAL_DELETED_OLD_VALUES))) {
+              // this occurs if
+              // (1) a delete request was never ACKed but it was performed
+              // on the server.
+              // (2) if there is an unresolved conflict held locally with the
+              // local action being to delete the record, and the prior server
+              // state being a value change, but the newly sync'd state now
+              // reflects a deletion by another party.
+              //
+
+              // no need to worry about server in_conflict records.
+              // any server in_conflict rows will be deleted during the delete
+              // step
+              rowsToDeleteLocally.append(new SyncRowDataChanges(serverRow, local.toSyncRow(),
+                  false));
+            } else {
+              // SyncState.deleted and server is not deleting
+              // SyncState.new_row and record exists on server
+              // SyncState.changed and new change on server
+              // SyncState.in_conflict and new change on server
+
+              // no need to worry about server in_conflict records.
+              // any server in_conflict rows will be cleaned up during the
+              // update of the in_conflict state.
+
+              // figure out what the localRow conflict type should be...
+              Integer localRowConflictType;
+              if (state == SyncState.changed) {
+                // SyncState.changed and new change on server
+                localRowConflictType = ConflictType.LOCAL_UPDATED_UPDATED_VALUES;
+                log.i(TAG, "local row was in sync state CHANGED, changing to "
+                    + "IN_CONFLICT and setting conflict type to: " + localRowConflictType);
+              } else if (state == SyncState.new_row) {
+                // SyncState.new_row and record exists on server
+                // The 'new_row' case occurs if an insert is never ACKed but
+                // completes successfully on the server.
+                localRowConflictType = ConflictType.LOCAL_UPDATED_UPDATED_VALUES;
+                log.i(TAG, "local row was in sync state NEW_ROW, changing to "
+                    + "IN_CONFLICT and setting conflict type to: " + localRowConflictType);
+              } else if (state == SyncState.deleted) {
+                // SyncState.deleted and server is not deleting
+                localRowConflictType = ConflictType.LOCAL_DELETED_OLD_VALUES;
+                log.i(TAG, "local row was in sync state DELETED, changing to "
+                    + "IN_CONFLICT and updating conflict type to: " + localRowConflictType);
+              } else if (state == SyncState.in_conflict) {
+                // SyncState.in_conflict and new change on server
+                // leave the local conflict type unchanged (retrieve it and
+                // use it).
+                localRowConflictType = localRowConflictTypeBeforeSync;
+                log.i(TAG, "local row was in sync state IN_CONFLICT, leaving as "
+                    + "IN_CONFLICT and leaving conflict type unchanged as: "
+                    + localRowConflictTypeBeforeSync);
+              } else {
+                throw new IllegalStateException("Unexpected state encountered");
+              }
+              SyncRowDataChanges syncRow = new SyncRowDataChanges(serverRow, local.toSyncRow(),
+                  false, localRowConflictType);
+
+              // compare the values once; then the rowETag and filterScope.
+              if (!syncRow.identicalValuesExceptRowETagAndFilterScope(rowEquivalence)) {
+                rowsToMoveToInConflictLocally.append(syncRow);
+              } else if (!syncRow.identicalRowETagAndFilterScope()) {
+                // just apply the server RowETag and filterScope to the
+                // local row
+                rowsToUpdateLocally.append(new SyncRowDataChanges(serverRow, syncRow.localRow,
+                    true));
+              } else {
+                log.w(TAG, "identical rows returned from server -- SHOULDN'T THESE NOT HAPPEN?");
+              }
+            }
+          }
+        } finally {
+          if (local != null) {
+            local.close();
+          }
+          if (db != null) {
+            db.close();
+            db = null;
+          }
         }
       }
 
-      // remove this server row from the map of changes reported by the
-      // server.
-      // the following decision tree will always place the row into one
-      // of the
-      // local action lists.
-      changedServerRows.remove(rowId);
-
-      // OK the record is either a simple local record or a local
-      // in_conflict record
-      if (state == SyncState.synced || state == SyncState.synced_pending_files) {
-        // the server's change should be applied locally.
-        //
-        // the file attachments might be stale locally,
-        // but those are dealt with separately.
-
-        if (serverRow.isDeleted()) {
-          rowsToDeleteLocally.add(new SyncRowDataChanges(serverRow, SyncRow.convertToSyncRow(
-              orderedColumns, fileAttachmentColumns, localRow),
-              (state == SyncState.synced_pending_files)));
-        } else {
-          rowsToUpdateLocally.add(new SyncRowDataChanges(serverRow, SyncRow.convertToSyncRow(
-              orderedColumns, fileAttachmentColumns, localRow),
-              (state == SyncState.synced_pending_files)));
-        }
-      } else if (serverRow.isDeleted()
-          && (state == SyncState.deleted || (state == SyncState.in_conflict && localRowConflictTypeBeforeSync == ConflictType.LOCAL_DELETED_OLD_VALUES))) {
-        // this occurs if
-        // (1) a delete request was never ACKed but it was performed
-        // on the server.
-        // (2) if there is an unresolved conflict held locally with the
-        // local action being to delete the record, and the prior server
-        // state being a value change, but the newly sync'd state now
-        // reflects a deletion by another party.
-        //
-
-        // no need to worry about server in_conflict records.
-        // any server in_conflict rows will be deleted during the delete
-        // step
-        rowsToDeleteLocally.add(new SyncRowDataChanges(serverRow, SyncRow.convertToSyncRow(
-            orderedColumns, fileAttachmentColumns, localRow), false));
-      } else {
-        // SyncState.deleted and server is not deleting
-        // SyncState.new_row and record exists on server
-        // SyncState.changed and new change on server
-        // SyncState.in_conflict and new change on server
-
-        // no need to worry about server in_conflict records.
-        // any server in_conflict rows will be cleaned up during the
-        // update of the in_conflict state.
-
-        // figure out what the localRow conflict type should be...
-        Integer localRowConflictType;
-        if (state == SyncState.changed) {
-          // SyncState.changed and new change on server
-          localRowConflictType = ConflictType.LOCAL_UPDATED_UPDATED_VALUES;
-          log.i(TAG, "local row was in sync state CHANGED, changing to "
-              + "IN_CONFLICT and setting conflict type to: " + localRowConflictType);
-        } else if (state == SyncState.new_row) {
-          // SyncState.new_row and record exists on server
-          // The 'new_row' case occurs if an insert is never ACKed but
-          // completes successfully on the server.
-          localRowConflictType = ConflictType.LOCAL_UPDATED_UPDATED_VALUES;
-          log.i(TAG, "local row was in sync state NEW_ROW, changing to "
-              + "IN_CONFLICT and setting conflict type to: " + localRowConflictType);
-        } else if (state == SyncState.deleted) {
-          // SyncState.deleted and server is not deleting
-          localRowConflictType = ConflictType.LOCAL_DELETED_OLD_VALUES;
-          log.i(TAG, "local row was in sync state DELETED, changing to "
-              + "IN_CONFLICT and updating conflict type to: " + localRowConflictType);
-        } else if (state == SyncState.in_conflict) {
-          // SyncState.in_conflict and new change on server
-          // leave the local conflict type unchanged (retrieve it and
-          // use it).
-          localRowConflictType = localRowConflictTypeBeforeSync;
-          log.i(TAG, "local row was in sync state IN_CONFLICT, leaving as "
-              + "IN_CONFLICT and leaving conflict type unchanged as: "
-              + localRowConflictTypeBeforeSync);
-        } else {
-          throw new IllegalStateException("Unexpected state encountered");
-        }
-        SyncRowDataChanges syncRow = new SyncRowDataChanges(serverRow, SyncRow.convertToSyncRow(
-            orderedColumns, fileAttachmentColumns, localRow), false, localRowConflictType);
-
-        if (!syncRow.identicalValues(orderedColumns)) {
-          if (syncRow.identicalValuesExceptRowETagAndFilterScope(orderedColumns)) {
-            // just apply the server RowETag and filterScope to the
-            // local row
-            rowsToUpdateLocally.add(new SyncRowDataChanges(serverRow, SyncRow.convertToSyncRow(
-                orderedColumns, fileAttachmentColumns, localRow), true));
-          } else {
-            rowsToMoveToInConflictLocally.add(syncRow);
+      // Now, go through the unmatched serverRows. These are row changes
+      // that don't affect any existing localRow. If the server change is not
+      // a row-deletion / revoke-row action, then insert the serverRow locally.
+      for (int i = 0; i < serverRows.size(); ++i) {
+        if (!matched[i]) {
+          SyncRow serverRow = serverRows.get(i);
+          serverRows.set(i, null);
+          if (!serverRow.isDeleted()) {
+            rowsToInsertLocally.append(new SyncRowDataChanges(serverRow, null, false));
           }
-        } else {
-          log.w(TAG, "identical rows returned from server -- SHOULDN'T THESE NOT HAPPEN?");
         }
       }
-    }
-
-    // Now, go through the remaining serverRows in the rows map. That
-    // map now contains only row changes that don't affect any existing
-    // localRow. If the server change is not a row-deletion / revoke-row
-    // action, then insert the serverRow locally.
-    for (SyncRow serverRow : changedServerRows.values()) {
-      boolean isDeleted = serverRow.isDeleted();
-      if (!isDeleted) {
-        rowsToInsertLocally.add(new SyncRowDataChanges(serverRow, null, false));
+      if (rowsToInsertLocally.getSpilledCount() + rowsToUpdateLocally.getSpilledCount()
+          + rowsToDeleteLocally.getSpilledCount()
+          + rowsToMoveToInConflictLocally.getSpilledCount() != 0) {
+        log.i(TAG, "spilled row changes of " + tableId + " to disk -- inserts: "
+            + rowsToInsertLocally.getSpilledCount() + " updates: "
+            + rowsToUpdateLocally.getSpilledCount() + " deletes: "
+            + rowsToDeleteLocally.getSpilledCount() + " conflicts: "
+            + rowsToMoveToInConflictLocally.getSpilledCount());
       }
-    }
 
-    //
-    // OK we have captured the local inserting, locally updating,
-    // locally deleting and conflicting actions. And we know
-    // the changes for the server. Determine the per-row percentage
-    // for applying all these changes
+      //
+      // OK we have captured the local inserting, locally updating,
+      // locally deleting and conflicting actions. And we know
+      // the changes for the server. Determine the per-row percentage
+      // for applying all these changes
 
-    int totalChange = rowsToInsertLocally.size() + rowsToUpdateLocally.size()
-        + rowsToDeleteLocally.size() + rowsToMoveToInConflictLocally.size();
+      int totalChange = rowsToInsertLocally.size() + rowsToUpdateLocally.size()
+          + rowsToDeleteLocally.size() + rowsToDeleteWithPendingFiles.size()
+          + rowsToMoveToInConflictLocally.size();
 
-    perRowIncrement = 70.0 / ((double) (totalChange + 1));
-    rowsProcessed = 0;
-    boolean hasAttachments = !fileAttachmentColumns.isEmpty();
+      perRowIncrement = 70.0 / ((double) (totalChange + 1));
+      rowsProcessed = 0;
+      boolean hasAttachments = !fileAttachmentColumns.isEmpty();
 
-    // i.e., we have created entries in the various action lists
-    // for all the actions we should take.
+      // i.e., we have created entries in the various action lists
+      // for all the actions we should take.
 
-    // ///////////////////////////////////////////////////
-    // / PERFORM LOCAL DATABASE CHANGES
-    // / PERFORM LOCAL DATABASE CHANGES
-    // / PERFORM LOCAL DATABASE CHANGES
-    // / PERFORM LOCAL DATABASE CHANGES
-    // / PERFORM LOCAL DATABASE CHANGES
+      // ///////////////////////////////////////////////////
+      // / PERFORM LOCAL DATABASE CHANGES
+      // / PERFORM LOCAL DATABASE CHANGES
+      // / PERFORM LOCAL DATABASE CHANGES
+      // / PERFORM LOCAL DATABASE CHANGES
+      // / PERFORM LOCAL DATABASE CHANGES
 
-    {
-      SQLiteDatabase db = null;
-      try {
-        db = sc.getDatabase();
+      {
+        SQLiteDatabase db = null;
+        BulkRowApplier applier = null;
+        try {
+          db = sc.getDatabase();
+
+          // this will individually move some files to the locally-deleted state
+          // if we cannot sync file attachments in those rows.
+          pushLocalAttachmentsBeforeDeleteRowsInDb(db, tableResource,
+              rowsToDeleteWithPendingFiles, fileAttachmentColumns, deferInstanceAttachments,
+              tableResult);
+          // the remaining rows can now be deleted with the others.
+          for (SyncRowDataChanges change : rowsToDeleteWithPendingFiles) {
+            rowsToDeleteLocally.append(change);
+          }
 
-        // this will individually move some files to the locally-deleted state
-        // if we cannot sync file attachments in those rows.
-        pushLocalAttachmentsBeforeDeleteRowsInDb(db, tableResource, rowsToDeleteLocally,
-            fileAttachmentColumns, deferInstanceAttachments, tableResult);
+          // and now do a big transaction to update the local database.
+          db.beginTransaction();
 
-        // and now do a big transaction to update the local database.
-        db.beginTransaction();
+          // the compiled statements are reused for every row in this page
+          applier = new BulkRowApplier(db, sc.getAppName(), tableResource.getTableId(),
+              orderedColumns);
 
-        deleteRowsInDb(db, tableResource, rowsToDeleteLocally, fileAttachmentColumns,
-            deferInstanceAttachments, tableResult);
+          deleteRowsInDb(db, applier, tableResource, rowsToDeleteLocally, fileAttachmentColumns,
+              deferInstanceAttachments, tableResult);
 
-        insertRowsInDb(db, tableResource, orderedColumns, rowsToInsertLocally,
-            rowsToPushFileAttachments, hasAttachments, tableResult);
+          insertRowsInDb(applier, tableResource, rowsToInsertLocally, rowsToPushFileAttachments,
+              hasAttachments, tableResult);
 
-        updateRowsInDb(db, tableResource, orderedColumns, rowsToUpdateLocally,
-            rowsToPushFileAttachments, hasAttachments, tableResult);
+          updateRowsInDb(applier, tableResource, rowsToUpdateLocally, rowsToPushFileAttachments,
+              hasAttachments, tableResult);
 
-        conflictRowsInDb(db, tableResource, orderedColumns, rowsToMoveToInConflictLocally,
-            rowsToPushFileAttachments, hasAttachments, tableResult);
+          conflictRowsInDb(db, applier, tableResource, rowsToMoveToInConflictLocally,
+              rowsToPushFileAttachments, hasAttachments, tableResult);
 
-        localDataTable = ODKDatabaseUtils.get().rawSqlQuery(db, sc.getAppName(), tableId,
-            orderedColumns, null, null, null, null, DataTableColumns.ID, "ASC");
+          // TODO: fix this for synced_pending_files
+          // We likely need to relax this constraint on the
+          // server?
 
-        // TODO: fix this for synced_pending_files
-        // We likely need to relax this constraint on the
-        // server?
+          // record how far the pull has gotten along with this page's changes
+          if (checkpoint != null) {
+            checkpoint.save(db);
+          }
 
-        db.setTransactionSuccessful();
-      } finally {
-        if (db != null) {
-          db.endTransaction();
-          db.close();
-          db = null;
+          db.setTransactionSuccessful();
+        } finally {
+          if (applier != null) {
+            applier.close();
+            applier = null;
+          }
+          if (db != null) {
+            db.endTransaction();
+            db.close();
+            db = null;
+          }
         }
       }
+    } finally {
+      rowsToInsertLocally.close();
+      rowsToUpdateLocally.close();
+      rowsToDeleteLocally.close();
+      rowsToMoveToInConflictLocally.close();
     }
-
-    return localDataTable;
   }
 
   /**
@@ -513,19 +1195,28 @@ public class ProcessRowDataChanges {
    *          true if new instance attachments should NOT be pulled from or
    *          pushed to the server. e.g., for bandwidth management.
    */
-  private void synchronizeTableDataRowsAndAttachments(TableResource tableResource,
+  private void synchronizeTableDataRowsAndAttachments(final TableResource tableResource,
       TableDefinitionEntry te, ArrayList<ColumnDefinition> orderedColumns, String displayName,
       boolean deferInstanceAttachments) {
     boolean attachmentSyncSuccessful = false;
     boolean rowDataSyncSuccessful = false;
 
-    ArrayList<ColumnDefinition> fileAttachmentColumns = new ArrayList<ColumnDefinition>();
+    final ArrayList<ColumnDefinition> fileAttachmentColumns = new ArrayList<ColumnDefinition>();
     for (ColumnDefinition cd : orderedColumns) {
       if (cd.getType().getDataType() == ElementDataType.rowpath) {
         fileAttachmentColumns.add(cd);
       }
     }
 
+    // chooses the number of rows to request in each page of server changes
+    final PageSizeController pageSizeController = new PageSizeController();
+    // the column dictionary shared by the SyncRows of the local rows
+    final RowBatch localRowBatch = RowBatch.forLocalRows(orderedColumns, fileAttachmentColumns);
+    // compares server and local rows when detecting conflicts
+    final RowEquivalence rowEquivalence = new RowEquivalence(orderedColumns);
+    // chooses the rows to send in each alterRows request
+    final UploadBatchSizer uploadBatchSizer = new UploadBatchSizer(UPSERT_BATCH_SIZE);
+
     log.i(
         TAG,
         "synchronizeTableDataRowsAndAttachments - deferInstanceAttachments: "
@@ -586,6 +1277,9 @@ public class ProcessRowDataChanges {
         List<SyncRowPending> rowsToPushFileAttachments = new ArrayList<SyncRowPending>();
 
         boolean updateToServerSuccessful = false;
+        // the pushes of this pass rejected because another client changed
+        // the table.
+        int conflictRetries = 0;
         for (; !updateToServerSuccessful;) {
 
           updateToServerSuccessful = false;
@@ -596,16 +1290,36 @@ public class ProcessRowDataChanges {
           try {
             // //////////////////////////////////////////////////
             // //////////////////////////////////////////////////
-            // get all the rows in the data table -- we will iterate through
-            // them all.
-            UserTable localDataTable;
+            // get the in_conflict and checkpoint rows in the data table --
+            // no other rows are needed to test for their presence.
+            boolean containsCheckpoints;
+            // the position of an interrupted pull of this table, if any.
+            PullCheckpoint resumeCheckpoint;
+            // true if the table held no rows and has never been pulled. The
+            // server's rows are then simply inserted until its dataETag is
+            // first recorded.
+            boolean bootstrap;
             {
               SQLiteDatabase db = null;
 
               try {
                 db = sc.getDatabase();
-                localDataTable = ODKDatabaseUtils.get().rawSqlQuery(db, sc.getAppName(), tableId,
-                    orderedColumns, null, null, null, null, DataTableColumns.ID, "ASC");
+                ensureSyncStateIndex(db, tableId);
+                ChangeJournal.ensureInstalled(db, tableId);
+                PullCheckpoint.ensureTable(db);
+                RowFingerprints.ensureTable(db);
+                resumeCheckpoint = PullCheckpoint.load(db, tableId, te.getLastDataETag());
+                // only whether there are such rows matters; do not read them.
+                containsConflicts = hasLocalRows(db, tableId, DataTableColumns.SYNC_STATE + "=?",
+                    new String[] { SyncState.in_conflict.name() });
+                containsCheckpoints = hasLocalRows(db, tableId, DataTableColumns.SAVEPOINT_TYPE
+                    + " IS NULL", null);
+                bootstrap = (te.getLastDataETag() == null && resumeCheckpoint == null
+                    && !hasLocalRows(db, tableId, "1=1", null));
+                if (bootstrap) {
+                  log.i(TAG, "bootstrapping empty table " + tableId);
+                  dropSyncStateIndex(db, tableId);
+                }
               } finally {
                 if (db != null) {
                   db.close();
@@ -614,13 +1328,11 @@ public class ProcessRowDataChanges {
               }
             }
 
-            containsConflicts = localDataTable.hasConflictRows();
-
             // //////////////////////////////////////////////////
             // //////////////////////////////////////////////////
             // fail the sync on this table if there are checkpoint rows.
 
-            if (localDataTable.hasCheckpointRows()) {
+            if (containsCheckpoints) {
               // should only be reachable on the first time through this for
               // loop...
               tableResult.setMessage(sc.getString(R.string.table_contains_checkpoints));
@@ -628,6 +1340,25 @@ public class ProcessRowDataChanges {
               return;
             }
 
+            // a snapshot of the table, if the server provides one, replaces
+            // the pull of its rows up to the snapshot's dataETag.
+            if (bootstrap
+                && loadTableSnapshot(tableResource, te, orderedColumns, fileAttachmentColumns,
+                    rowsToPushFileAttachments)) {
+              bootstrap = false;
+            }
+
+            // a table that holds rows but has lost its dataETag need only
+            // pull the rows that differ from the server's.
+            if (!bootstrap && te.getLastDataETag() == null && resumeCheckpoint == null) {
+              if (!reconcileByRowDigests(tableResource, te, orderedColumns, localRowBatch,
+                  rowEquivalence, displayName, deferInstanceAttachments, fileAttachmentColumns,
+                  rowsToPushFileAttachments, pageSizeController)) {
+                // te still has no dataETag, so all the rows are pulled below.
+                log.i(TAG, "pulling all the rows of " + tableId);
+              }
+            }
+
             // //////////////////////////////////////////////////
             // //////////////////////////////////////////////////
             // Pull changes from the server...
@@ -640,84 +1371,159 @@ public class ProcessRowDataChanges {
             boolean pullCompletedSuccessfully = false;
             String firstDataETag = null;
             String websafeResumeCursor = null;
-            for (;;) {
-              RowResourceList rows = null;
+            int changeSetIndex = 0;
+            if (resumeCheckpoint != null) {
+              // continue after the last page committed by an earlier sync
+              log.i(TAG, "resuming interrupted pull of " + tableId);
+              firstDataETag = resumeCheckpoint.firstDataETag;
+              websafeResumeCursor = resumeCheckpoint.resumeCursor;
+              changeSetIndex = resumeCheckpoint.changeSetIndex;
+            }
+            // the next page is fetched in the background while we apply
+            // the current page to the database.
+            RowPagePrefetcher prefetcher = null;
+            try {
+              for (;;) {
+                SyncRowPage rows = null;
+
+                try {
+                  if (prefetcher == null) {
+                    // pulls by changeSet when we have a lastDataETag
+                    ServerChangesFetcher fetcher = new ServerChangesFetcher(
+                        sc.getSynchronizer(), tableResource, te.getLastDataETag(),
+                        changeSetIndex, fileAttachmentColumns, pageSizeController, log);
+                    prefetcher = new RowPagePrefetcher(tableId, fetcher, websafeResumeCursor);
+                    prefetcher.start();
+                  }
+                  rows = prefetcher.take();
+                  if (firstDataETag == null) {
+                    firstDataETag = rows.getDataETag();
+                  }
+                } catch (ClientWebException e) {
+                  if (e.getResponse() != null
+                      && e.getResponse().getStatusCode() == HttpStatus.SC_UNAUTHORIZED) {
+                    clientAuthException("synchronizeTable - pulling data down from server", tableId,
+                        e, tableResult);
+                  } else {
+                    clientWebException("synchronizeTable - pulling data down from server", tableId,
+                        e, tableResult);
+                  }
+                  break;
+                } catch (InvalidAuthTokenException e) {
+                  clientAuthException("synchronizeTable - pulling data down from server", tableId, e,
+                      tableResult);
+                  break;
+                } catch (Exception e) {
+                  exception("synchronizeTable -  pulling data down from server", tableId, e,
+                      tableResult);
+                  break;
+                }
 
-              try {
-                rows = sc.getSynchronizer().getUpdates(tableResource, te.getLastDataETag(),
-                    websafeResumeCursor);
-                if (firstDataETag == null) {
-                  firstDataETag = rows.getDataETag();
+                // where to resume if we are interrupted after applying this page.
+                // The last page is instead followed by the update of the
+                // table's dataETag.
+                PullCheckpoint checkpoint = null;
+                if (rows.isHasMoreResults()) {
+                  checkpoint = new PullCheckpoint(tableId, te.getLastDataETag(), firstDataETag,
+                      rows.getWebSafeResumeCursor(), rows.getResumeChangeSetIndex());
                 }
-              } catch (ClientWebException e) {
-                if (e.getResponse() != null
-                    && e.getResponse().getStatusCode() == HttpStatus.SC_UNAUTHORIZED) {
-                  clientAuthException("synchronizeTable - pulling data down from server", tableId,
-                      e, tableResult);
+
+                // the rows are released from the page as they are applied.
+                int pageRowCount = rows.getRows().size();
+                long applyStartTime = System.currentTimeMillis();
+                if (bootstrap) {
+                  bootstrapRowsFromServerChanges(tableResource, orderedColumns,
+                      fileAttachmentColumns, rowsToPushFileAttachments, rows, checkpoint);
                 } else {
-                  clientWebException("synchronizeTable - pulling data down from server", tableId,
-                      e, tableResult);
+                  updateLocalRowsFromServerChanges(tableResource, te, orderedColumns,
+                      localRowBatch, rowEquivalence, displayName, deferInstanceAttachments,
+                      fileAttachmentColumns, rowsToPushFileAttachments, rows, checkpoint);
                 }
-                break;
-              } catch (InvalidAuthTokenException e) {
-                clientAuthException("synchronizeTable - pulling data down from server", tableId, e,
-                    tableResult);
-                break;
-              } catch (Exception e) {
-                exception("synchronizeTable -  pulling data down from server", tableId, e,
-                    tableResult);
-                break;
-              }
+                pageSizeController.applyCompleted(System.currentTimeMillis() - applyStartTime,
+                    pageRowCount);
+                tableResult.setFetchLimit(pageSizeController.getFetchLimit());
 
-              localDataTable = updateLocalRowsFromServerChanges(tableResource, te, orderedColumns,
-                  displayName, deferInstanceAttachments, fileAttachmentColumns,
-                  rowsToPushFileAttachments, localDataTable, rows);
-
-              if (rows.isHasMoreResults()) {
-                websafeResumeCursor = rows.getWebSafeResumeCursor();
-              } else {
-                // ////////////////////////////////
-                // ////////////////////////////////
-                // Success
-                //
-                // We have to update our dataETag here so that the server
-                // knows we saw its changes. Otherwise it won't let us
-                // put up new information.
-                //
-                // Note that we may have additional changes from
-                // subsequent dataETags (changeSets). We only 
-                // break out of this loop if the dataETag on the 
-                // last request matches the firstDataETag. Otherwise,
-                // we re-issue a fetch using the firstDataETag as 
-                // a starting point.
-                {
-                  SQLiteDatabase db = null;
+                if (rows.isHasMoreResults()) {
+                  websafeResumeCursor = rows.getWebSafeResumeCursor();
+                  changeSetIndex = rows.getResumeChangeSetIndex();
+                } else {
+                  // the prefetcher has delivered its last page.
+                  prefetcher = null;
+
+                  // ////////////////////////////////
+                  // ////////////////////////////////
+                  // Success
+                  //
+                  // We have to update our dataETag here so that the server
+                  // knows we saw its changes. Otherwise it won't let us
+                  // put up new information.
+                  //
+                  // Note that we may have additional changes from
+                  // subsequent dataETags (changeSets). We only 
+                  // break out of this loop if the dataETag on the 
+                  // last request matches the firstDataETag. Otherwise,
+                  // we re-issue a fetch using the firstDataETag as 
+                  // a starting point.
+                  {
+                    SQLiteDatabase db = null;
 
-                  try {
-                    db = sc.getDatabase();
-                    // update the dataETag to the one returned by the first
-                    // of the fetch queries, above.
-                    ODKDatabaseUtils.get().updateDBTableETags(db, tableId,
-                        tableResource.getSchemaETag(), firstDataETag);
-                    // and be sure to update our in-memory objects...
-                    te.setSchemaETag(tableResource.getSchemaETag());
-                    te.setLastDataETag(firstDataETag);
-                    tableResource.setDataETag(firstDataETag);
-                  } finally {
-                    if (db != null) {
-                      db.close();
-                      db = null;
+                    try {
+                      db = sc.getDatabase();
+                      db.beginTransaction();
+                      // update the dataETag to the one returned by the first
+                      // of the fetch queries, above.
+                      ODKDatabaseUtils.get().updateDBTableETags(db, tableId,
+                          tableResource.getSchemaETag(), firstDataETag);
+                      // this pull is complete; there is nothing to resume.
+                      PullCheckpoint.clear(db, tableId);
+                      if (bootstrap) {
+                        ensureSyncStateIndex(db, tableId);
+                      }
+                      db.setTransactionSuccessful();
+                      // and be sure to update our in-memory objects...
+                      te.setSchemaETag(tableResource.getSchemaETag());
+                      te.setLastDataETag(firstDataETag);
+                      tableResource.setDataETag(firstDataETag);
+                      // any further changes are pulled by changeSet, and may
+                      // revise rows that are now present.
+                      bootstrap = false;
+                    } finally {
+                      if (db != null) {
+                        db.endTransaction();
+                        db.close();
+                        db = null;
+                      }
                     }
                   }
-                }
                 
-                if ( (firstDataETag == null) ? (rows.getDataETag() != null) : !firstDataETag.equals(rows.getDataETag()) ) {
-                  // re-issue request...
-                  websafeResumeCursor = null;
-                } else {
-                  // success -- exit the update loop...
-                  pullCompletedSuccessfully = true;
-                  break;
+                  if ( (firstDataETag == null) ? (rows.getDataETag() != null) : !firstDataETag.equals(rows.getDataETag()) ) {
+                    // re-issue request...
+                    websafeResumeCursor = null;
+                    changeSetIndex = 0;
+                  } else {
+                    // success -- exit the update loop...
+                    pullCompletedSuccessfully = true;
+                    break;
+                  }
+                }
+              }
+            } finally {
+              if (prefetcher != null) {
+                prefetcher.cancel();
+                prefetcher = null;
+              }
+            }
+
+            if (bootstrap) {
+              // the pull failed while bootstrapping; restore the index.
+              SQLiteDatabase db = null;
+              try {
+                db = sc.getDatabase();
+                ensureSyncStateIndex(db, tableId);
+              } finally {
+                if (db != null) {
+                  db.close();
+                  db = null;
                 }
               }
             }
@@ -730,9 +1536,72 @@ public class ProcessRowDataChanges {
               break;
             }
 
+            // now that all of the server changes have been applied, drain
+            // the change journal: the rowIds changed locally since the last
+            // acknowledged alterRows, in the order they were changed. Fetch
+            // those rows, and the rows still needing their files pushed.
+            List<ChangeJournal.Entry> journalEntries;
+            // the journaled rows that should be pushed to the server. Rows
+            // that were since synced or placed in conflict are skipped.
+            Map<String, SyncRow> journaledRows = new HashMap<String, SyncRow>();
+            // changed rows that again hold what the server last acknowledged
+            // under their rowETag; these are marked synced without a push.
+            List<SyncRow> unchangedRows = new ArrayList<SyncRow>();
+            {
+              SQLiteDatabase db = null;
+              LocalRowCursor local = null;
+
+              try {
+                db = sc.getDatabase();
+                journalEntries = ChangeJournal.getPendingEntries(db, tableId);
+                List<String> journaledRowIds = new ArrayList<String>();
+                for (ChangeJournal.Entry entry : journalEntries) {
+                  journaledRowIds.add(entry.rowId);
+                }
+                Map<String, RowFingerprints.Entry> acknowledgedFingerprints = RowFingerprints
+                    .getEntries(db, tableId, journaledRowIds, ROW_ID_LOOKUP_BATCH_SIZE);
+
+                Collections.sort(journaledRowIds, LocalRowCursor.ROW_ID_ORDER);
+                local = new LocalRowCursor(db, tableId, localRowBatch, journaledRowIds,
+                    ROW_ID_LOOKUP_BATCH_SIZE);
+                while (local.moveToNext()) {
+                  SyncState state = local.getSyncState();
+                  if (state == SyncState.new_row || state == SyncState.changed
+                      || state == SyncState.deleted) {
+                    SyncRow syncRow = local.toSyncRow();
+                    RowFingerprints.Entry acknowledged = acknowledgedFingerprints.get(syncRow
+                        .getRowId());
+                    if (state == SyncState.changed && acknowledged != null
+                        && acknowledged.matches(syncRow)) {
+                      unchangedRows.add(syncRow);
+                    } else {
+                      journaledRows.put(syncRow.getRowId(), syncRow);
+                    }
+                  }
+                }
+                local.close();
+
+                // and the rows still needing their files pushed.
+                local = new LocalRowCursor(db, tableId, localRowBatch,
+                    new SyncState[] { SyncState.synced_pending_files });
+                while (local.moveToNext()) {
+                  rowsToPushFileAttachments.add(new SyncRowPending(local.toSyncRow(), false, true,
+                      true));
+                }
+              } finally {
+                if (local != null) {
+                  local.close();
+                }
+                if (db != null) {
+                  db.close();
+                  db = null;
+                }
+              }
+            }
+
             // ////////////////////////////////
             // ////////////////////////////////
-            // OK. We can now scan through the localDataTable for changes that
+            // OK. We can now scan through the journaled rows for changes that
             // should be sent up to the server.
 
             sc.updateNotification(SyncProgressState.ROWS, R.string.anaylzing_row_changes,
@@ -747,27 +1616,20 @@ public class ProcessRowDataChanges {
             // localRow SyncState.changed no changes pulled from server
             // localRow SyncState.deleted no changes pulled from server
             List<SyncRow> allAlteredRows = new ArrayList<SyncRow>();
-
-            // loop through the localRow table
-            for (int i = 0; i < localDataTable.getNumberOfRows(); i++) {
-              Row localRow = localDataTable.getRowAtIndex(i);
-              String stateStr = localRow
-                  .getRawDataOrMetadataByElementKey(DataTableColumns.SYNC_STATE);
-              SyncState state = stateStr == null ? null : SyncState.valueOf(stateStr);
-
-              String rowId = localRow.getRowId();
-
-              // the local row wasn't impacted by a server change
-              // see if this local row should be pushed to the server.
-              if (state == SyncState.new_row || state == SyncState.changed
-                  || state == SyncState.deleted) {
-                allAlteredRows.add(SyncRow.convertToSyncRow(orderedColumns, fileAttachmentColumns,
-                    localRow));
-              } else if (state == SyncState.synced_pending_files) {
-                rowsToPushFileAttachments.add(new SyncRowPending(SyncRow.convertToSyncRow(
-                    orderedColumns, fileAttachmentColumns, localRow), false, true, true));
+            // the journal sequence number of each of the allAlteredRows
+            List<Long> allAlteredSeqs = new ArrayList<Long>();
+
+            // gather the journaled rows in journal order
+            for (ChangeJournal.Entry entry : journalEntries) {
+              SyncRow syncRow = journaledRows.get(entry.rowId);
+              if (syncRow != null) {
+                allAlteredRows.add(syncRow);
+                allAlteredSeqs.add(entry.seq);
               }
             }
+            // every journal entry up to this one is dealt with by this push.
+            long lastJournalSeq = journalEntries.isEmpty() ? 0L : journalEntries.get(journalEntries
+                .size() - 1).seq;
 
             // We know the changes for the server. Determine the per-row
             // percentage for applying all these changes
@@ -778,6 +1640,35 @@ public class ProcessRowDataChanges {
             rowsProcessed = 0;
             boolean hasAttachments = !fileAttachmentColumns.isEmpty();
 
+            if (!unchangedRows.isEmpty()) {
+              // the server already holds these rows' content under their
+              // rowETags; just restore their synced state.
+              SQLiteDatabase db = null;
+
+              try {
+                db = sc.getDatabase();
+                db.beginTransaction();
+                for (SyncRow syncRow : unchangedRows) {
+                  boolean pendingFiles = hasAttachments && !syncRow.getUriFragments().isEmpty();
+                  ODKDatabaseUtils.get().updateRowETagAndSyncState(db, tableId,
+                      syncRow.getRowId(), syncRow.getRowETag(),
+                      pendingFiles ? SyncState.synced_pending_files : SyncState.synced);
+                  if (pendingFiles) {
+                    rowsToPushFileAttachments.add(new SyncRowPending(syncRow, false, true, true));
+                  }
+                }
+                db.setTransactionSuccessful();
+              } finally {
+                if (db != null) {
+                  db.endTransaction();
+                  db.close();
+                  db = null;
+                }
+              }
+              log.i(TAG, "synchronizeTableDataRowsAndAttachments: " + unchangedRows.size()
+                  + " changed rows match the server and were not pushed for " + tableId);
+            }
+
             // i.e., we have created entries in the various action lists
             // for all the actions we should take.
 
@@ -802,23 +1693,45 @@ public class ProcessRowDataChanges {
             if (!allAlteredRows.isEmpty()) {
               int offset = 0;
               while (offset < allAlteredRows.size()) {
-                // alter UPSERT_BATCH_SIZE rows at a time to the server
-                int max = offset + UPSERT_BATCH_SIZE;
-                if (max > allAlteredRows.size()) {
-                  max = allAlteredRows.size();
-                }
+                // alter at most UPSERT_BATCH_SIZE rows, and about the sizer's
+                // target number of bytes, at a time to the server
+                int max = uploadBatchSizer.nextBatchEnd(allAlteredRows, offset);
                 List<SyncRow> segmentAlter = allAlteredRows.subList(offset, max);
-                RowOutcomeList outcomes = sc.getSynchronizer().alterRows(tableResource,
-                    segmentAlter);
+                long segmentBytes = 0L;
+                for (SyncRow row : segmentAlter) {
+                  segmentBytes += UploadBatchSizer.estimateBytes(row);
+                }
+                long uploadStart = System.currentTimeMillis();
+                RowOutcomeList outcomes;
+                try {
+                  outcomes = sc.getSynchronizer().alterRows(tableResource, segmentAlter);
+                } catch (ClientWebException e) {
+                  // a conflict says nothing about the size of the batch.
+                  if (e.getResponse() == null
+                      || e.getResponse().getStatusCode() != HttpStatus.SC_CONFLICT) {
+                    uploadBatchSizer.batchFailed();
+                  }
+                  throw e;
+                }
+                long uploadMillis = System.currentTimeMillis() - uploadStart;
+                uploadBatchSizer.batchCompleted(segmentBytes, uploadMillis);
+                tableResult.recordUploadBatch(segmentAlter.size(), segmentBytes, uploadMillis,
+                    uploadBatchSizer.getTargetBytes());
 
                 if (outcomes.getRows().size() != segmentAlter.size()) {
                   throw new IllegalStateException("Unexpected partial return?");
                 }
 
+                // the journal position acknowledged by this segment. The last
+                // segment also covers any trailing entries that were skipped.
+                long acknowledgedSeq = (max == allAlteredRows.size()) ? lastJournalSeq
+                    : allAlteredSeqs.get(max - 1);
+
                 // process outcomes...
                 count = processRowOutcomes(te, tableResource, tableResult, orderedColumns,
                     fileAttachmentColumns, hasAttachments, rowsToPushFileAttachments, count,
-                    allAlteredRows.size(), segmentAlter, outcomes.getRows(), specialCases);
+                    allAlteredRows.size(), segmentAlter, outcomes.getRows(), specialCases,
+                    acknowledgedSeq);
 
                 // NOTE: specialCases should probably be deleted?
                 // This is the case if the user doesn't have permissions...
@@ -857,6 +1770,20 @@ public class ProcessRowDataChanges {
                 // process next segment...
                 offset = max;
               }
+            } else if (!journalEntries.isEmpty()) {
+              // nothing to push -- the journaled rows were all resolved by
+              // the pull. Acknowledge their entries.
+              SQLiteDatabase db = null;
+
+              try {
+                db = sc.getDatabase();
+                ChangeJournal.acknowledge(db, tableId, lastJournalSeq);
+              } finally {
+                if (db != null) {
+                  db.close();
+                  db = null;
+                }
+              }
             }
 
             // And now update that we've pushed our changes to the server.
@@ -868,11 +1795,33 @@ public class ProcessRowDataChanges {
             // our processing is complete.
             updateToServerSuccessful = true;
           } catch (ClientWebException e) {
-            if (e.getResponse().getStatusCode() == HttpStatus.SC_CONFLICT) {
-              // expected -- there were row updates by another client
-              // re-pull changes from the server. Return to the start
-              // of the for(;;) loop.
-              continue;
+            if (e.getResponse() != null
+                && e.getResponse().getStatusCode() == HttpStatus.SC_CONFLICT) {
+              // expected -- there were row updates by another client.
+              // The segments pushed before this one are acknowledged and
+              // our dataETag advanced past them, so returning to the start
+              // of the for(;;) loop re-pulls only the newer changeSets and
+              // pushes only the unacknowledged journal entries. Back off
+              // first, and give up after MAX_CONFLICT_RETRIES, so that
+              // devices contending for a busy table do not livelock.
+              long delay = conflictRetryDelay(conflictRetries + 1, random);
+              if (delay >= 0L) {
+                ++conflictRetries;
+                tableResult.recordConflictRetry(delay);
+                log.i(TAG, "push of " + tableId + " conflicted with another client -- retry "
+                    + conflictRetries + " in " + delay + " ms");
+                try {
+                  Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                  Thread.currentThread().interrupt();
+                  exception("synchronizeTable - pushing data up to server", tableId, ie,
+                      tableResult);
+                  break;
+                }
+                continue;
+              }
+              log.e(TAG, "push of " + tableId + " still conflicted after " + conflictRetries
+                  + " retries");
             }
             // otherwise it is an error...
             if (e.getResponse() != null
@@ -902,21 +1851,54 @@ public class ProcessRowDataChanges {
         if (rowDataSyncSuccessful) {
           try {
             attachmentSyncSuccessful = (rowsToPushFileAttachments.isEmpty());
-            // And try to push the file attachments...
+            // And try to push the file attachments... The rows' transfers
+            // run concurrently on the transfer engine; their outcomes are
+            // taken in row order.
+            final String instanceFilesUri = tableResource.getInstanceFilesUri();
+            final String finalTableId = tableId;
+            final boolean finalDeferInstanceAttachments = deferInstanceAttachments;
             int count = 0;
             boolean attachmentSyncFailed = false;
-            for (SyncRowPending syncRowPending : rowsToPushFileAttachments) {
-              boolean outcome = true;
-              if (!syncRowPending.onlyGetFiles()) {
-                outcome = sc.getSynchronizer().putFileAttachments(
-                    tableResource.getInstanceFilesUri(), tableId, syncRowPending,
-                    deferInstanceAttachments);
-              }
-              if (outcome) {
-                outcome = sc.getSynchronizer().getFileAttachments(
-                    tableResource.getInstanceFilesUri(), tableId, syncRowPending,
-                    deferInstanceAttachments);
+            AttachmentTransferEngine.Batch<Boolean> transfers = transferEngine.newBatch();
+            try {
+              int submitted = 0;
+              while (count < rowsToPushFileAttachments.size()) {
+                if (submitted < rowsToPushFileAttachments.size() && !transfers.isFull()) {
+                  if (submitted % SERVER_FILE_HASH_BATCH_SIZE == 0) {
+                    requestServerFileHashes(sc.getSynchronizer(), instanceFilesUri, tableId,
+                        rowsToPushFileAttachments, submitted, SERVER_FILE_HASH_BATCH_SIZE, log);
+                  }
+                  final SyncRowPending pending = rowsToPushFileAttachments.get(submitted++);
+                  transfers.submit(instanceFilesUri, new Callable<Boolean>() {
+
+                    @Override
+                    public Boolean call() throws Exception {
+                      boolean outcome = true;
+                      if (!pending.onlyGetFiles()) {
+                        outcome = sc.getSynchronizer().putFileAttachments(instanceFilesUri,
+                            finalTableId, pending, finalDeferInstanceAttachments);
+                      }
+                      if (outcome) {
+                        outcome = sc.getSynchronizer().getFileAttachments(instanceFilesUri,
+                            finalTableId, pending, finalDeferInstanceAttachments);
+                      }
+                      return outcome;
+                    }
+                  });
+                  continue;
+                }
 
+                SyncRowPending syncRowPending = rowsToPushFileAttachments.get(count);
+                boolean outcome;
+                try {
+                  outcome = transfers.next();
+                } catch (ExecutionException e) {
+                  Throwable cause = e.getCause();
+                  if (cause instanceof Exception) {
+                    throw (Exception) cause;
+                  }
+                  throw e;
+                }
                 if (syncRowPending.updateSyncState()) {
                   if (outcome) {
                     // OK -- we succeeded in putting/getting all attachments
@@ -939,16 +1921,19 @@ public class ProcessRowDataChanges {
                     attachmentSyncFailed = false;
                   }
                 }
+                tableResult.incLocalAttachmentRetries();
+                ++count;
+                ++rowsProcessed;
+                if (rowsProcessed % ROWS_BETWEEN_PROGRESS_UPDATES == 0) {
+                  sc.updateNotification(SyncProgressState.ROWS,
+                      R.string.uploading_attachments_server_row, new Object[] { tableId, count,
+                          rowsToPushFileAttachments.size() },
+                      10.0 + rowsProcessed * perRowIncrement, false);
+                }
               }
-              tableResult.incLocalAttachmentRetries();
-              ++count;
-              ++rowsProcessed;
-              if (rowsProcessed % ROWS_BETWEEN_PROGRESS_UPDATES == 0) {
-                sc.updateNotification(SyncProgressState.ROWS,
-                    R.string.uploading_attachments_server_row, new Object[] { tableId, count,
-                        rowsToPushFileAttachments.size() }, 10.0 + rowsProcessed * perRowIncrement,
-                    false);
-              }
+            } finally {
+              // after a failure, let the transfers already started finish.
+              transfers.drain();
             }
             attachmentSyncSuccessful = !attachmentSyncFailed;
           } catch (ClientWebException e) {
@@ -1022,7 +2007,8 @@ public class ProcessRowDataChanges {
       TableResult tableResult, ArrayList<ColumnDefinition> orderedColumns,
       ArrayList<ColumnDefinition> fileAttachmentColumns, boolean hasAttachments,
       List<SyncRowPending> rowsToPushFileAttachments, int countSoFar, int totalOutcomesSize,
-      List<SyncRow> segmentAlter, ArrayList<RowOutcome> outcomes, ArrayList<RowOutcome> specialCases) {
+      List<SyncRow> segmentAlter, ArrayList<RowOutcome> outcomes,
+      ArrayList<RowOutcome> specialCases, long acknowledgedSeq) {
 
     ArrayList<SyncRowDataChanges> rowsToMoveToInConflictLocally = new ArrayList<SyncRowDataChanges>();
 
@@ -1061,6 +2047,7 @@ public class ProcessRowDataChanges {
             // and physically delete row and attachments from database.
             ODKDatabaseUtils.get().deleteDataInExistingDBTableWithId(db, sc.getAppName(),
                 resource.getTableId(), r.getRowId());
+            RowFingerprints.remove(db, resource.getTableId(), r.getRowId());
             tableResult.incServerDeletes();
           } else {
             ODKDatabaseUtils
@@ -1074,6 +2061,8 @@ public class ProcessRowDataChanges {
                         : SyncState.synced);
             // !!Important!! update the rowETag in our copy of this row.
             syncRow.setRowETag(r.getRowETag());
+            // the server now holds this content under this rowETag
+            RowFingerprints.record(db, resource.getTableId(), syncRow);
             if (hasAttachments && !syncRow.getUriFragments().isEmpty()) {
               rowsToPushFileAttachments.add(new SyncRowPending(syncRow, false, true, true));
             }
@@ -1088,6 +2077,8 @@ public class ProcessRowDataChanges {
           } else {
             // special case of a delete where server has no record of the row.
             // server should add row and mark it as deleted.
+            // Journal the row again so that the delete is retried.
+            ChangeJournal.record(db, resource.getTableId(), r.getRowId());
           }
         } else if (r.getOutcome() == OutcomeType.IN_CONFLICT) {
           // another device updated this record between the time we fetched
@@ -1135,8 +2126,23 @@ public class ProcessRowDataChanges {
       }
 
       // process the conflict rows, if any
-      conflictRowsInDb(db, resource, orderedColumns, rowsToMoveToInConflictLocally,
-          rowsToPushFileAttachments, hasAttachments, tableResult);
+      if (!rowsToMoveToInConflictLocally.isEmpty()) {
+        BulkRowApplier applier = new BulkRowApplier(db, sc.getAppName(), resource.getTableId(),
+            orderedColumns);
+        try {
+          conflictRowsInDb(db, applier, resource, rowsToMoveToInConflictLocally,
+              rowsToPushFileAttachments, hasAttachments, tableResult);
+        } finally {
+          applier.close();
+        }
+      }
+
+      // advance the change journal in the same transaction, so that an
+      // interrupted push resumes after this segment. Rows the server
+      // refused are not acknowledged.
+      if (specialCases.isEmpty()) {
+        ChangeJournal.acknowledge(db, resource.getTableId(), acknowledgedSeq);
+      }
 
       // and allow this to happen
       db.setTransactionSuccessful();
@@ -1161,16 +2167,16 @@ public class ProcessRowDataChanges {
    * rowsToSyncFileAttachments.
    * 
    * @param db
+   * @param applier
    * @param resource
-   * @param orderedColumns
    * @param changes
    * @param rowsToSyncFileAttachments
    * @param hasAttachments
    * @param tableResult
    * @throws ClientWebException
    */
-  private void conflictRowsInDb(SQLiteDatabase db, TableResource resource,
-      ArrayList<ColumnDefinition> orderedColumns, List<SyncRowDataChanges> changes,
+  private void conflictRowsInDb(SQLiteDatabase db, BulkRowApplier applier,
+      TableResource resource, Collection<SyncRowDataChanges> changes,
       List<SyncRowPending> rowsToSyncFileAttachments, boolean hasAttachments,
       TableResult tableResult) throws ClientWebException {
 
@@ -1179,7 +2185,6 @@ public class ProcessRowDataChanges {
       SyncRow serverRow = change.serverRow;
       log.i(TAG,
           "conflicting row, id=" + serverRow.getRowId() + " rowETag=" + serverRow.getRowETag());
-      ContentValues values = new ContentValues();
 
       // delete the old server-values in_conflict row if it exists
       ODKDatabaseUtils.get().deleteServerConflictRowWithId(db, resource.getTableId(),
@@ -1204,13 +2209,8 @@ public class ProcessRowDataChanges {
         // special case -- the server and local rows are both being deleted --
         // just delete them!
 
-        // move the local record into the 'new_row' sync state
-        // so it can be physically deleted.
-        ODKDatabaseUtils.get().updateRowETagAndSyncState(db, resource.getTableId(),
-            serverRow.getRowId(), null, SyncState.new_row);
-        // and physically delete it.
-        ODKDatabaseUtils.get().deleteDataInExistingDBTableWithId(db, sc.getAppName(),
-            resource.getTableId(), serverRow.getRowId());
+        // physically delete it and its attachments.
+        applier.delete(serverRow.getRowId());
 
         tableResult.incLocalDeletes();
       } else {
@@ -1218,26 +2218,8 @@ public class ProcessRowDataChanges {
         ODKDatabaseUtils.get().placeRowIntoConflict(db, resource.getTableId(),
             serverRow.getRowId(), localRowConflictType);
 
-        // set up to insert the in_conflict row from the server
-        for (DataKeyValue entry : serverRow.getValues()) {
-          String colName = entry.column;
-          values.put(colName, entry.value);
-        }
-
         // insert in_conflict server row
-        values.put(DataTableColumns.ROW_ETAG, serverRow.getRowETag());
-        values.put(DataTableColumns.SYNC_STATE, SyncState.in_conflict.name());
-        values.put(DataTableColumns.CONFLICT_TYPE, serverRowConflictType);
-        values.put(DataTableColumns.FORM_ID, serverRow.getFormId());
-        values.put(DataTableColumns.LOCALE, serverRow.getLocale());
-        values.put(DataTableColumns.SAVEPOINT_TIMESTAMP, serverRow.getSavepointTimestamp());
-        values.put(DataTableColumns.SAVEPOINT_CREATOR, serverRow.getSavepointCreator());
-        Scope.Type type = serverRow.getFilterScope().getType();
-        values.put(DataTableColumns.FILTER_TYPE,
-            (type == null) ? Scope.Type.DEFAULT.name() : type.name());
-        values.put(DataTableColumns.FILTER_VALUE, serverRow.getFilterScope().getValue());
-        ODKDatabaseUtils.get().insertDataIntoExistingDBTableWithId(db, resource.getTableId(),
-            orderedColumns, values, serverRow.getRowId());
+        applier.insert(serverRow, SyncState.in_conflict, serverRowConflictType);
 
         // We're going to check our representation invariant here. A local and
         // a server version of the row should only ever be changed/changed,
@@ -1283,40 +2265,23 @@ public class ProcessRowDataChanges {
    * those rows to the rowsToPushFileAttachments list if they have any non-null
    * media attachments.
    * 
-   * @param db
+   * @param applier
    * @param resource
-   * @param orderedColumns
    * @param changes
    * @param rowsToPushFileAttachments
    * @param hasAttachments
    * @param tableResult
    * @throws ClientWebException
    */
-  private void insertRowsInDb(SQLiteDatabase db, TableResource resource,
-      ArrayList<ColumnDefinition> orderedColumns, List<SyncRowDataChanges> changes,
-      List<SyncRowPending> rowsToPushFileAttachments, boolean hasAttachments,
-      TableResult tableResult) throws ClientWebException {
+  private void insertRowsInDb(BulkRowApplier applier, TableResource resource,
+      Collection<SyncRowDataChanges> changes, List<SyncRowPending> rowsToPushFileAttachments,
+      boolean hasAttachments, TableResult tableResult) throws ClientWebException {
     int count = 0;
     for (SyncRowDataChanges change : changes) {
       SyncRow serverRow = change.serverRow;
-      ContentValues values = new ContentValues();
-
-      values.put(DataTableColumns.ID, serverRow.getRowId());
-      values.put(DataTableColumns.ROW_ETAG, serverRow.getRowETag());
-      values.put(DataTableColumns.SYNC_STATE, (hasAttachments && !serverRow.getUriFragments()
-          .isEmpty()) ? SyncState.synced_pending_files.name() : SyncState.synced.name());
-      values.put(DataTableColumns.FORM_ID, serverRow.getFormId());
-      values.put(DataTableColumns.LOCALE, serverRow.getLocale());
-      values.put(DataTableColumns.SAVEPOINT_TIMESTAMP, serverRow.getSavepointTimestamp());
-      values.put(DataTableColumns.SAVEPOINT_CREATOR, serverRow.getSavepointCreator());
-
-      for (DataKeyValue entry : serverRow.getValues()) {
-        String colName = entry.column;
-        values.put(colName, entry.value);
-      }
 
-      ODKDatabaseUtils.get().insertDataIntoExistingDBTableWithId(db, resource.getTableId(),
-          orderedColumns, values, serverRow.getRowId());
+      applier.insert(serverRow, (hasAttachments && !serverRow.getUriFragments().isEmpty())
+          ? SyncState.synced_pending_files : SyncState.synced, null);
       tableResult.incLocalInserts();
 
       if (hasAttachments && !serverRow.getUriFragments().isEmpty()) {
@@ -1337,19 +2302,17 @@ public class ProcessRowDataChanges {
    * rows to the rowsToPushFileAttachments list if they have any non-null media
    * attachments.
    * 
-   * @param db
+   * @param applier
    * @param resource
-   * @param orderedColumns
    * @param changes
    * @param rowsToSyncFileAttachments
    * @param hasAttachments
    * @param tableResult
    * @throws ClientWebException
    */
-  private void updateRowsInDb(SQLiteDatabase db, TableResource resource,
-      ArrayList<ColumnDefinition> orderedColumns, List<SyncRowDataChanges> changes,
-      List<SyncRowPending> rowsToSyncFileAttachments, boolean hasAttachments,
-      TableResult tableResult) throws ClientWebException {
+  private void updateRowsInDb(BulkRowApplier applier, TableResource resource,
+      Collection<SyncRowDataChanges> changes, List<SyncRowPending> rowsToSyncFileAttachments,
+      boolean hasAttachments, TableResult tableResult) throws ClientWebException {
     int count = 0;
     for (SyncRowDataChanges change : changes) {
       // if the localRow sync state was synced_pending_files,
@@ -1364,26 +2327,9 @@ public class ProcessRowDataChanges {
 
       // update the row from the changes on the server
       SyncRow serverRow = change.serverRow;
-      ContentValues values = new ContentValues();
-
-      values.put(DataTableColumns.ROW_ETAG, serverRow.getRowETag());
-      values.put(DataTableColumns.SYNC_STATE, (hasAttachments && !serverRow.getUriFragments()
-          .isEmpty()) ? SyncState.synced_pending_files.name() : SyncState.synced.name());
-      values.put(DataTableColumns.FILTER_TYPE, serverRow.getFilterScope().getType().name());
-      values.put(DataTableColumns.FILTER_VALUE, serverRow.getFilterScope().getValue());
-      values.put(DataTableColumns.FORM_ID, serverRow.getFormId());
-      values.put(DataTableColumns.LOCALE, serverRow.getLocale());
-      values.put(DataTableColumns.SAVEPOINT_TYPE, serverRow.getSavepointType());
-      values.put(DataTableColumns.SAVEPOINT_TIMESTAMP, serverRow.getSavepointTimestamp());
-      values.put(DataTableColumns.SAVEPOINT_CREATOR, serverRow.getSavepointCreator());
-
-      for (DataKeyValue entry : serverRow.getValues()) {
-        String colName = entry.column;
-        values.put(colName, entry.value);
-      }
 
-      ODKDatabaseUtils.get().updateDataInExistingDBTableWithId(db, resource.getTableId(),
-          orderedColumns, values, serverRow.getRowId());
+      applier.update(serverRow, (hasAttachments && !serverRow.getUriFragments().isEmpty())
+          ? SyncState.synced_pending_files : SyncState.synced);
       tableResult.incLocalUpdates();
 
       if (hasAttachments && !serverRow.getUriFragments().isEmpty()) {
@@ -1464,6 +2410,7 @@ public class ProcessRowDataChanges {
    * pushed and they can safely be removed.
    * 
    * @param db
+   * @param applier
    * @param resource
    * @param changes
    * @param fileAttachmentColumns
@@ -1471,8 +2418,8 @@ public class ProcessRowDataChanges {
    * @param tableResult
    * @throws IOException
    */
-  private void deleteRowsInDb(SQLiteDatabase db, TableResource resource,
-      List<SyncRowDataChanges> changes, ArrayList<ColumnDefinition> fileAttachmentColumns,
+  private void deleteRowsInDb(SQLiteDatabase db, BulkRowApplier applier, TableResource resource,
+      Collection<SyncRowDataChanges> changes, ArrayList<ColumnDefinition> fileAttachmentColumns,
       boolean deferInstanceAttachments, TableResult tableResult) throws IOException {
     int count = 0;
 
@@ -1480,13 +2427,8 @@ public class ProcessRowDataChanges {
     for (SyncRowDataChanges change : changes) {
       if (!change.isRestPendingFiles) {
         // DELETE
-        // move the local record into the 'new_row' sync state
-        // so it can be physically deleted.
-        ODKDatabaseUtils.get().updateRowETagAndSyncState(db, resource.getTableId(),
-            change.serverRow.getRowId(), null, SyncState.new_row);
-        // and physically delete row and attachments from database.
-        ODKDatabaseUtils.get().deleteDataInExistingDBTableWithId(db, sc.getAppName(),
-            resource.getTableId(), change.serverRow.getRowId());
+        // physically delete row and attachments from database.
+        applier.delete(change.serverRow.getRowId());
         tableResult.incLocalDeletes();
       }
       ++count;
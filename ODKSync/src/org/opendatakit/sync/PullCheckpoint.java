@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2015 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * The position of a pull of server changes that is part-way through a table.
+ * <p>
+ * It is saved in the same transaction that applies each page of changes, so
+ * if the sync is killed, the next sync can continue with the page after the
+ * last one that was committed rather than starting over. A checkpoint only
+ * applies while the table's lastDataETag is still the startDataETag the pull
+ * began from.
+ */
+final class PullCheckpoint {
+
+  static final String CHECKPOINT_TABLE = "_sync_pull_checkpoints";
+
+  private static final String TABLE_ID = "table_id";
+  private static final String START_DATA_ETAG = "start_data_etag";
+  private static final String FIRST_DATA_ETAG = "first_data_etag";
+  private static final String RESUME_CURSOR = "resume_cursor";
+  private static final String CHANGE_SET_INDEX = "change_set_index";
+
+  final String tableId;
+  /** the lastDataETag of the table when the pull began */
+  final String startDataETag;
+  /** the dataETag reported with the first page of the pull */
+  final String firstDataETag;
+  /** the cursor from which to fetch the next page */
+  final String resumeCursor;
+  /** the changeSet of the next page, when pulling by changeSet */
+  final int changeSetIndex;
+
+  PullCheckpoint(String tableId, String startDataETag, String firstDataETag,
+      String resumeCursor, int changeSetIndex) {
+    this.tableId = tableId;
+    this.startDataETag = startDataETag;
+    this.firstDataETag = firstDataETag;
+    this.resumeCursor = resumeCursor;
+    this.changeSetIndex = changeSetIndex;
+  }
+
+  static void ensureTable(SQLiteDatabase db) {
+    db.execSQL("CREATE TABLE IF NOT EXISTS " + CHECKPOINT_TABLE + " (" + TABLE_ID
+        + " TEXT PRIMARY KEY, " + START_DATA_ETAG + " TEXT, " + FIRST_DATA_ETAG + " TEXT, "
+        + RESUME_CURSOR + " TEXT, " + CHANGE_SET_INDEX + " INTEGER NOT NULL)");
+  }
+
+  /**
+   * Get the checkpoint of an interrupted pull of this table, if it is still
+   * valid for the table's current lastDataETag. A stale checkpoint is
+   * removed.
+   *
+   * @param db
+   * @param tableId
+   * @param lastDataETag
+   * @return the checkpoint, or null if the pull should start from the
+   *         beginning.
+   */
+  static PullCheckpoint load(SQLiteDatabase db, String tableId, String lastDataETag) {
+    PullCheckpoint checkpoint = null;
+    Cursor c = null;
+    try {
+      c = db.query(CHECKPOINT_TABLE, new String[] { START_DATA_ETAG, FIRST_DATA_ETAG,
+          RESUME_CURSOR, CHANGE_SET_INDEX }, TABLE_ID + "=?", new String[] { tableId }, null,
+          null, null);
+      if (c.moveToFirst()) {
+        checkpoint = new PullCheckpoint(tableId, c.isNull(0) ? null : c.getString(0),
+            c.isNull(1) ? null : c.getString(1), c.isNull(2) ? null : c.getString(2),
+            c.getInt(3));
+      }
+    } finally {
+      if (c != null) {
+        c.close();
+      }
+    }
+
+    if (checkpoint != null
+        && ((lastDataETag == null) ? (checkpoint.startDataETag != null) : !lastDataETag
+            .equals(checkpoint.startDataETag))) {
+      // the table has moved on (or been reset) since this was saved.
+      clear(db, tableId);
+      checkpoint = null;
+    }
+    return checkpoint;
+  }
+
+  /**
+   * Save (replace) the checkpoint for this table. Should be called within the
+   * transaction that applies the page it follows.
+   *
+   * @param db
+   */
+  void save(SQLiteDatabase db) {
+    db.execSQL("INSERT OR REPLACE INTO " + CHECKPOINT_TABLE + " (" + TABLE_ID + ", "
+        + START_DATA_ETAG + ", " + FIRST_DATA_ETAG + ", " + RESUME_CURSOR + ", "
+        + CHANGE_SET_INDEX + ") VALUES (?, ?, ?, ?, ?)", new Object[] { tableId, startDataETag,
+        firstDataETag, resumeCursor, changeSetIndex });
+  }
+
+  /**
+   * Remove any checkpoint for this table when its dataETag is reset, e.g.,
+   * because of a schema change on the server. Creates the checkpoint table
+   * if need be.
+   *
+   * @param db
+   * @param tableId
+   */
+  static void discard(SQLiteDatabase db, String tableId) {
+    ensureTable(db);
+    clear(db, tableId);
+  }
+
+  /**
+   * Remove any checkpoint for this table, e.g., once its pull completes.
+   *
+   * @param db
+   * @param tableId
+   */
+  static void clear(SQLiteDatabase db, String tableId) {
+    db.delete(CHECKPOINT_TABLE, TABLE_ID + "=?", new String[] { tableId });
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2015 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.opendatakit.aggregate.odktables.rest.entity.Scope;
+import org.opendatakit.common.android.data.ColumnDefinition;
+import org.opendatakit.common.android.data.UserTable.Row;
+import org.opendatakit.common.android.provider.DataTableColumns;
+
+/**
+ * Builds the SyncRows of a page of server changes, or of a set of local rows,
+ * in columnar form.
+ * <p>
+ * All rows built by a batch share one column dictionary: a sorted array of
+ * the column names. Each row holds only a parallel array of its values, so
+ * there is no DataKeyValue object per value, no copy of the column names per
+ * row, and no per-row sort.
+ * <p>
+ * The server lists the columns of each row with its values. Consecutive rows
+ * nearly always list the same columns in the same order, so the mapping from
+ * that order to the dictionary is computed once and reused until the columns
+ * change.
+ */
+public final class RowBatch {
+
+  private static final String[] EMPTY = new String[0];
+
+  private final ArrayList<ColumnDefinition> fileAttachmentColumns;
+
+  /** the current (sorted) column dictionary */
+  private String[] columns = EMPTY;
+
+  /** the column order last received from the server */
+  private String[] wireColumns = EMPTY;
+  /** the dictionary index of each of the wireColumns */
+  private int[] wireToColumn = new int[0];
+
+  /**
+   * A batch for rows decoded from the server.
+   *
+   * @param fileAttachmentColumns
+   *          the rowpath columns of the table
+   */
+  public RowBatch(ArrayList<ColumnDefinition> fileAttachmentColumns) {
+    this.fileAttachmentColumns = fileAttachmentColumns;
+  }
+
+  /**
+   * A batch for the local rows of a table; the dictionary holds the table's
+   * unit-of-retention columns.
+   *
+   * @param orderedColumns
+   * @param fileAttachmentColumns
+   * @return the batch
+   */
+  public static RowBatch forLocalRows(ArrayList<ColumnDefinition> orderedColumns,
+      ArrayList<ColumnDefinition> fileAttachmentColumns) {
+    RowBatch batch = new RowBatch(fileAttachmentColumns);
+    List<String> retained = new ArrayList<String>();
+    for (ColumnDefinition cd : orderedColumns) {
+      if (cd.isUnitOfRetention()) {
+        retained.add(cd.getElementKey());
+      }
+    }
+    batch.columns = retained.toArray(new String[retained.size()]);
+    Arrays.sort(batch.columns);
+    return batch;
+  }
+
+  /**
+   * @return the current column dictionary. Must not be modified.
+   */
+  public String[] getColumns() {
+    return columns;
+  }
+
+  private boolean isSameWireOrder(List<String> rowColumns) {
+    if (rowColumns.size() != wireColumns.length) {
+      return false;
+    }
+    for (int i = 0; i < wireColumns.length; ++i) {
+      if (!wireColumns[i].equals(rowColumns.get(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void updateWireOrder(List<String> rowColumns) {
+    String[] received = new String[rowColumns.size()];
+    for (int i = 0; i < received.length; ++i) {
+      String column = rowColumns.get(i);
+      received[i] = (column == null) ? "" : column;
+    }
+    String[] sorted = received.clone();
+    Arrays.sort(sorted);
+    if (!Arrays.equals(sorted, columns)) {
+      // rows already built keep the dictionary they were built with.
+      columns = sorted;
+    }
+    wireColumns = received;
+    wireToColumn = new int[received.length];
+    for (int i = 0; i < received.length; ++i) {
+      wireToColumn[i] = Arrays.binarySearch(columns, received[i]);
+    }
+  }
+
+  /**
+   * Build a row decoded from the server.
+   *
+   * @param rowColumns
+   *          the column names of the row's values, in the order received.
+   *          May be reused by the caller once this returns.
+   * @param rowValues
+   *          the values, parallel to rowColumns. May be reused by the caller
+   *          once this returns.
+   * @return the row
+   */
+  public SyncRow newRow(String rowId, String rowETag, boolean deleted, String formId,
+      String locale, String savepointType, String savepointTimestamp, String savepointCreator,
+      Scope filterScope, List<String> rowColumns, List<String> rowValues) {
+    if (!isSameWireOrder(rowColumns)) {
+      updateWireOrder(rowColumns);
+    }
+    String[] values = new String[columns.length];
+    for (int i = 0; i < wireToColumn.length; ++i) {
+      values[wireToColumn[i]] = rowValues.get(i);
+    }
+    return new SyncRow(rowId, rowETag, deleted, formId, locale, savepointType,
+        savepointTimestamp, savepointCreator, filterScope, columns, values,
+        fileAttachmentColumns);
+  }
+
+  /**
+   * Build a local row from its values in dictionary order. The batch must
+   * have been created with forLocalRows().
+   */
+  SyncRow newLocalRow(String rowId, String rowETag, String formId, String locale,
+      String savepointType, String savepointTimestamp, String savepointCreator,
+      Scope filterScope, String[] values) {
+    return new SyncRow(rowId, rowETag, false, formId, locale, savepointType, savepointTimestamp,
+        savepointCreator, filterScope, columns, values, fileAttachmentColumns);
+  }
+
+  /**
+   * Build the SyncRow for a row of the local data table. The batch must have
+   * been created with forLocalRows().
+   *
+   * @param localRow
+   * @return the row
+   */
+  public SyncRow convert(Row localRow) {
+    String[] values = new String[columns.length];
+    for (int i = 0; i < columns.length; ++i) {
+      values[i] = localRow.getRawDataOrMetadataByElementKey(columns[i]);
+    }
+    return newLocalRow(localRow.getRowId(),
+        localRow.getRawDataOrMetadataByElementKey(DataTableColumns.ROW_ETAG),
+        localRow.getRawDataOrMetadataByElementKey(DataTableColumns.FORM_ID),
+        localRow.getRawDataOrMetadataByElementKey(DataTableColumns.LOCALE),
+        localRow.getRawDataOrMetadataByElementKey(DataTableColumns.SAVEPOINT_TYPE),
+        localRow.getRawDataOrMetadataByElementKey(DataTableColumns.SAVEPOINT_TIMESTAMP),
+        localRow.getRawDataOrMetadataByElementKey(DataTableColumns.SAVEPOINT_CREATOR),
+        Scope.asScope(localRow.getRawDataOrMetadataByElementKey(DataTableColumns.FILTER_TYPE),
+            localRow.getRawDataOrMetadataByElementKey(DataTableColumns.FILTER_VALUE)), values);
+  }
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2015 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.opendatakit.aggregate.odktables.rest.entity.Scope;
+import org.opendatakit.common.android.data.ColumnDefinition;
+
+/**
+ * One of the action lists built while reconciling a page of server changes
+ * with the local rows.
+ * <p>
+ * Entries are held in memory while the shared MemoryBudget allows. Once it is
+ * used up, this and all later entries of the buffer are written to a temp
+ * file instead and read back, in the order they were appended, each time the
+ * buffer is iterated. A very large page therefore need not hold both the
+ * server and local copy of every row in memory until it is applied.
+ * <p>
+ * The buffer must be closed to delete its temp file and return its share of
+ * the budget.
+ */
+final class RowChangeBuffer extends AbstractCollection<SyncRowDataChanges> {
+
+  /**
+   * The number of bytes that the in-memory entries of a set of buffers may
+   * occupy, shared among them.
+   */
+  static final class MemoryBudget {
+    private long remaining;
+
+    MemoryBudget(long bytes) {
+      this.remaining = bytes;
+    }
+
+    synchronized boolean reserve(long bytes) {
+      if (bytes > remaining) {
+        return false;
+      }
+      remaining -= bytes;
+      return true;
+    }
+
+    synchronized void release(long bytes) {
+      remaining += bytes;
+    }
+  }
+
+  /** approximate heap cost of the objects of a row, apart from its strings */
+  private static final long PER_ROW_OVERHEAD = 160L;
+  /** approximate heap cost of a String, apart from its characters */
+  private static final long PER_STRING_OVERHEAD = 40L;
+
+  private final File spillDir;
+  private final MemoryBudget budget;
+  private final ArrayList<ColumnDefinition> fileAttachmentColumns;
+
+  private final List<SyncRowDataChanges> inMemory = new ArrayList<SyncRowDataChanges>();
+  private long reservedBytes = 0L;
+
+  private File spillFile = null;
+  private DataOutputStream spillOut = null;
+  private int spilledCount = 0;
+  /** the column dictionaries written to the spill file, by identity */
+  private final Map<String[], Integer> spilledDictionaries =
+      new IdentityHashMap<String[], Integer>();
+
+  private final List<DataInputStream> openReaders = new ArrayList<DataInputStream>();
+
+  /**
+   * @param spillDir
+   *          directory in which to create the temp file, if one is needed.
+   * @param budget
+   *          the memory budget shared with the other buffers of this page.
+   * @param fileAttachmentColumns
+   *          the rowpath columns of the table; used when reading spilled rows.
+   */
+  RowChangeBuffer(File spillDir, MemoryBudget budget,
+      ArrayList<ColumnDefinition> fileAttachmentColumns) {
+    this.spillDir = spillDir;
+    this.budget = budget;
+    this.fileAttachmentColumns = fileAttachmentColumns;
+  }
+
+  private static long estimateBytes(SyncRow row) {
+    if (row == null) {
+      return 0L;
+    }
+    long bytes = PER_ROW_OVERHEAD + estimateBytes(row.getRowId())
+        + estimateBytes(row.getRowETag()) + estimateBytes(row.getFormId())
+        + estimateBytes(row.getLocale()) + estimateBytes(row.getSavepointType())
+        + estimateBytes(row.getSavepointTimestamp()) + estimateBytes(row.getSavepointCreator());
+    for (int i = 0; i < row.getValueCount(); ++i) {
+      // the column names are shared through the row's dictionary
+      bytes += 8L + estimateBytes(row.getValue(i));
+    }
+    return bytes;
+  }
+
+  private static long estimateBytes(String value) {
+    return (value == null) ? 0L : PER_STRING_OVERHEAD + 2L * value.length();
+  }
+
+  /**
+   * Append a change, in memory if the budget allows and otherwise to the
+   * temp file.
+   *
+   * @param change
+   * @throws IOException
+   */
+  void append(SyncRowDataChanges change) throws IOException {
+    if (spillOut == null) {
+      long bytes = estimateBytes(change.serverRow) + estimateBytes(change.localRow);
+      if (budget.reserve(bytes)) {
+        reservedBytes += bytes;
+        inMemory.add(change);
+        return;
+      }
+      spillFile = File.createTempFile("sync_changes", ".tmp", spillDir);
+      spillOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile)));
+    }
+    spillOut.writeBoolean(change.isRestPendingFiles);
+    spillOut.writeInt(change.localRowConflictType);
+    writeRow(spillOut, change.serverRow);
+    writeRow(spillOut, change.localRow);
+    ++spilledCount;
+  }
+
+  /**
+   * @return the number of entries written to the temp file.
+   */
+  int getSpilledCount() {
+    return spilledCount;
+  }
+
+  @Override
+  public int size() {
+    return inMemory.size() + spilledCount;
+  }
+
+  /**
+   * Iterate over the entries in the order they were appended. The entries
+   * read back from the temp file are new objects on every iteration.
+   */
+  @Override
+  public Iterator<SyncRowDataChanges> iterator() {
+    if (spillOut == null) {
+      return inMemory.iterator();
+    }
+    try {
+      spillOut.flush();
+    } catch (IOException e) {
+      throw new IllegalStateException("unable to flush spilled row changes", e);
+    }
+    return new Iterator<SyncRowDataChanges>() {
+      private int index = 0;
+      private DataInputStream in = null;
+
+      /** the column dictionaries read so far, by their order in the file */
+      private final List<String[]> dictionaries = new ArrayList<String[]>();
+
+      @Override
+      public boolean hasNext() {
+        return index < size();
+      }
+
+      @Override
+      public SyncRowDataChanges next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        if (index < inMemory.size()) {
+          return inMemory.get(index++);
+        }
+        try {
+          if (in == null) {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile)));
+            openReaders.add(in);
+          }
+          boolean isRestPendingFiles = in.readBoolean();
+          int localRowConflictType = in.readInt();
+          SyncRow serverRow = readRow(in, dictionaries);
+          SyncRow localRow = readRow(in, dictionaries);
+          ++index;
+          if (index == size()) {
+            // release the file as soon as the last entry is read
+            openReaders.remove(in);
+            in.close();
+            in = null;
+          }
+          return new SyncRowDataChanges(serverRow, localRow, isRestPendingFiles,
+              localRowConflictType);
+        } catch (IOException e) {
+          throw new IllegalStateException("unable to read spilled row changes", e);
+        }
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException("spilled row changes cannot be removed");
+      }
+    };
+  }
+
+  /**
+   * Delete the temp file, if any, and return the memory reserved by this
+   * buffer to the budget.
+   */
+  void close() {
+    for (DataInputStream in : openReaders) {
+      try {
+        in.close();
+      } catch (IOException e) {
+        // ignore
+      }
+    }
+    openReaders.clear();
+    if (spillOut != null) {
+      try {
+        spillOut.close();
+      } catch (IOException e) {
+        // ignore
+      }
+      spillOut = null;
+    }
+    if (spillFile != null) {
+      spillFile.delete();
+      spillFile = null;
+    }
+    spilledCount = 0;
+    inMemory.clear();
+    budget.release(reservedBytes);
+    reservedBytes = 0L;
+  }
+
+  private void writeRow(DataOutputStream out, SyncRow row) throws IOException {
+    if (row == null) {
+      out.writeBoolean(false);
+      return;
+    }
+    out.writeBoolean(true);
+    writeString(out, row.getRowId());
+    writeString(out, row.getRowETag());
+    out.writeBoolean(row.isDeleted());
+    writeString(out, row.getFormId());
+    writeString(out, row.getLocale());
+    writeString(out, row.getSavepointType());
+    writeString(out, row.getSavepointTimestamp());
+    writeString(out, row.getSavepointCreator());
+    Scope filterScope = row.getFilterScope();
+    Scope.Type type = (filterScope == null) ? null : filterScope.getType();
+    writeString(out, (type == null) ? null : type.name());
+    writeString(out, (filterScope == null) ? null : filterScope.getValue());
+
+    // rows built from the same batch share a column dictionary; write each
+    // dictionary once, before the first row that uses it.
+    String[] columns = row.getColumns();
+    Integer id = spilledDictionaries.get(columns);
+    if (id == null) {
+      id = spilledDictionaries.size();
+      spilledDictionaries.put(columns, id);
+      out.writeInt(id);
+      out.writeInt(columns.length);
+      for (String column : columns) {
+        writeString(out, column);
+      }
+    } else {
+      out.writeInt(id);
+    }
+    for (int i = 0; i < columns.length; ++i) {
+      writeString(out, row.getValue(i));
+    }
+  }
+
+  private SyncRow readRow(DataInputStream in, List<String[]> dictionaries) throws IOException {
+    if (!in.readBoolean()) {
+      return null;
+    }
+    String rowId = readString(in);
+    String rowETag = readString(in);
+    boolean deleted = in.readBoolean();
+    String formId = readString(in);
+    String locale = readString(in);
+    String savepointType = readString(in);
+    String savepointTimestamp = readString(in);
+    String savepointCreator = readString(in);
+    String filterType = readString(in);
+    String filterValue = readString(in);
+
+    int id = in.readInt();
+    String[] columns;
+    if (id == dictionaries.size()) {
+      columns = new String[in.readInt()];
+      for (int i = 0; i < columns.length; ++i) {
+        columns[i] = readString(in);
+      }
+      dictionaries.add(columns);
+    } else {
+      columns = dictionaries.get(id);
+    }
+    String[] values = new String[columns.length];
+    for (int i = 0; i < values.length; ++i) {
+      values[i] = readString(in);
+    }
+    return new SyncRow(rowId, rowETag, deleted, formId, locale, savepointType,
+        savepointTimestamp, savepointCreator, Scope.asScope(filterType, filterValue), columns,
+        values, fileAttachmentColumns);
+  }
+
+  /**
+   * Write a string of any length (writeUTF() is limited to 64k bytes).
+   */
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = value.getBytes("UTF-8");
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2015 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync;
+
+/**
+ * A digest of the (rowId, rowETag) pairs of a table, used to find the rows
+ * that differ between the server and the device without transferring them.
+ * <p>
+ * The rows are divided into a power-of-two number of buckets by the hash of
+ * their rowId. The digest of a bucket is the sum (modulo 2^64) of the hashes
+ * of the (rowId, rowETag) pairs in it, so it does not depend on the order of
+ * the rows. Both hashes are the 64-bit FNV-1a hash of SyncRow.fnv1a(). Two
+ * sides holding the same versions of the rows in a bucket have the same
+ * digest for it; only the rows of the buckets that differ need to be pulled.
+ * <p>
+ * The server's digests are computed over its live rows as of dataETag.
+ */
+public final class RowDigests {
+
+  /** the fewest buckets requested */
+  public static final int MIN_BUCKET_COUNT = 64;
+  /** the most buckets requested (512 kB of digests) */
+  public static final int MAX_BUCKET_COUNT = 65536;
+  /** the number of rows per bucket that the bucket count aims for */
+  private static final long ROWS_PER_BUCKET = 16L;
+
+  private final String dataETag;
+  private final long[] bucketDigests;
+
+  /**
+   * @param dataETag
+   *          the dataETag of the table as of which the digests were computed.
+   * @param bucketDigests
+   *          the digest of each bucket.
+   */
+  public RowDigests(String dataETag, long[] bucketDigests) {
+    this.dataETag = dataETag;
+    this.bucketDigests = bucketDigests;
+  }
+
+  public String getDataETag() {
+    return dataETag;
+  }
+
+  public int getBucketCount() {
+    return bucketDigests.length;
+  }
+
+  public long getBucketDigest(int bucket) {
+    return bucketDigests[bucket];
+  }
+
+  /**
+   * Choose the number of buckets for a table.
+   *
+   * @param rowCount
+   *          the number of local rows
+   * @return a power of two between MIN_BUCKET_COUNT and MAX_BUCKET_COUNT.
+   */
+  public static int bucketCountFor(long rowCount) {
+    int bucketCount = MIN_BUCKET_COUNT;
+    while (bucketCount < MAX_BUCKET_COUNT && bucketCount * ROWS_PER_BUCKET < rowCount) {
+      bucketCount <<= 1;
+    }
+    return bucketCount;
+  }
+
+  /**
+   * @param rowId
+   * @param bucketCount
+   *          a power of two
+   * @return the bucket of the row
+   */
+  public static int bucketOf(String rowId, int bucketCount) {
+    return (int) (SyncRow.fnv1a(SyncRow.FNV_OFFSET_BASIS, rowId) & (bucketCount - 1));
+  }
+
+  /**
+   * Add a row to the bucket digests.
+   *
+   * @param bucketDigests
+   * @param rowId
+   * @param rowETag
+   */
+  public static void add(long[] bucketDigests, String rowId, String rowETag) {
+    bucketDigests[bucketOf(rowId, bucketDigests.length)] += SyncRow.fnv1a(
+        SyncRow.fnv1a(SyncRow.FNV_OFFSET_BASIS, rowId), rowETag);
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2015 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.common.android.data.ColumnDefinition;
+
+/**
+ * Decides whether a server row and a local row hold the same values.
+ * <p>
+ * Built once per table from its ordered ColumnDefinition list. The values of
+ * a SyncRow are sorted by column name, so the data type
+ * of each value is known from its position; a column name lookup is only
+ * needed if a row does not hold exactly the table's unit-of-retention
+ * columns.
+ * <p>
+ * Everything must be textually identical except number fields, which may
+ * have rounding due to different database implementations, data
+ * representations, and marshaling libraries. Numbers that are within
+ * MAX_ULP_DISTANCE representable doubles of each other are considered equal.
+ * Rows with equal (cached) fingerprints are taken as identical without
+ * comparing their values.
+ */
+final class RowEquivalence {
+
+  /**
+   * The number of representable doubles that two values may be apart and
+   * still be considered equal (e.g., 9.80 and 9.8).
+   */
+  static final long MAX_ULP_DISTANCE = 128L;
+
+  /** the unit-of-retention columns, in SyncRow value order */
+  private final String[] elementKeys;
+  /** whether the value at that position is a number */
+  private final boolean[] isNumber;
+  /** for rows whose values do not line up with elementKeys */
+  private final Map<String, Boolean> isNumberByElementKey;
+
+  RowEquivalence(ArrayList<ColumnDefinition> orderedDefns) {
+    List<String> keys = new ArrayList<String>();
+    isNumberByElementKey = new HashMap<String, Boolean>();
+    for (ColumnDefinition cd : orderedDefns) {
+      if (cd.isUnitOfRetention()) {
+        keys.add(cd.getElementKey());
+        isNumberByElementKey.put(cd.getElementKey(),
+            cd.getType().getDataType() == ElementDataType.number);
+      }
+    }
+    Collections.sort(keys);
+    elementKeys = keys.toArray(new String[keys.size()]);
+    isNumber = new boolean[elementKeys.length];
+    for (int i = 0; i < elementKeys.length; ++i) {
+      isNumber[i] = isNumberByElementKey.get(elementKeys[i]);
+    }
+  }
+
+  private static boolean same(String a, String b) {
+    return (a == null) ? (b == null) : a.equals(b);
+  }
+
+  /**
+   * Compare everything except the rowETag and filterScope.
+   *
+   * @param serverRow
+   * @param localRow
+   * @return true if the rows hold the same values.
+   */
+  boolean identicalValuesExceptRowETagAndFilterScope(SyncRow serverRow, SyncRow localRow) {
+    if (!same(serverRow.getSavepointTimestamp(), localRow.getSavepointTimestamp())
+        || !same(serverRow.getSavepointCreator(), localRow.getSavepointCreator())
+        || !same(serverRow.getFormId(), localRow.getFormId())
+        || !same(serverRow.getLocale(), localRow.getLocale())
+        || !same(serverRow.getRowId(), localRow.getRowId())
+        || !same(serverRow.getSavepointType(), localRow.getSavepointType())) {
+      return false;
+    }
+    if (serverRow.getFingerprint() == localRow.getFingerprint()) {
+      // the fingerprints cover the remaining fields and the values
+      return true;
+    }
+
+    int size = localRow.getValueCount();
+    if (size != serverRow.getValueCount()) {
+      return false;
+    }
+    boolean positional = (size == elementKeys.length);
+
+    for (int i = 0; i < size; ++i) {
+      String column = localRow.getColumn(i);
+      String localValue = localRow.getValue(i);
+      String serverValue = serverRow.getValue(i);
+      if (!column.equals(serverRow.getColumn(i))) {
+        return false;
+      }
+      if (localValue == null && serverValue == null) {
+        continue;
+      } else if (localValue == null || serverValue == null) {
+        return false;
+      } else if (localValue.equals(serverValue)) {
+        continue;
+      }
+
+      // NOT textually identical.
+      boolean number;
+      if (positional && elementKeys[i].equals(column)) {
+        number = isNumber[i];
+      } else {
+        positional = false;
+        Boolean b = isNumberByElementKey.get(column);
+        number = (b != null) && b;
+      }
+      if (!number || !nearlyEqual(localValue, serverValue)) {
+        // textual identity is required!
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @param localValue
+   * @param serverValue
+   * @return true if the two textual numbers are the same value, or within
+   *         MAX_ULP_DISTANCE of each other.
+   */
+  static boolean nearlyEqual(String localValue, String serverValue) {
+    // !!Important!! Double.parseDouble(str) handles NaN and +/-Infinity
+    double localDbl = Double.parseDouble(localValue);
+    double serverDbl = Double.parseDouble(serverValue);
+
+    if (Double.isNaN(localDbl) || Double.isNaN(serverDbl)) {
+      // matches Double.equals(): NaN is only equal to NaN
+      return Double.isNaN(localDbl) && Double.isNaN(serverDbl);
+    }
+    if (localDbl == serverDbl) {
+      // trailing zeros, string representation mix-up or same-signed
+      // infinities
+      return true;
+    }
+    if (Double.isInfinite(localDbl) || Double.isInfinite(serverDbl)) {
+      return false;
+    }
+    return ulpDistance(localDbl, serverDbl) <= MAX_ULP_DISTANCE;
+  }
+
+  /**
+   * The number of representable doubles between two finite values, computed
+   * from their bit patterns. The sign-magnitude encoding is mapped onto a
+   * two's-complement ordering so that adjacent doubles differ by one, even
+   * across zero.
+   *
+   * @param a
+   * @param b
+   * @return the distance, or Long.MAX_VALUE if it does not fit in a long.
+   */
+  static long ulpDistance(double a, double b) {
+    long la = Double.doubleToLongBits(a);
+    long lb = Double.doubleToLongBits(b);
+    if (la < 0) {
+      la = Long.MIN_VALUE - la;
+    }
+    if (lb < 0) {
+      lb = Long.MIN_VALUE - lb;
+    }
+    long diff = la - lb;
+    if (((la ^ lb) < 0 && (la ^ diff) < 0) || diff == Long.MIN_VALUE) {
+      // overflowed
+      return Long.MAX_VALUE;
+    }
+    return Math.abs(diff);
+  }
+}
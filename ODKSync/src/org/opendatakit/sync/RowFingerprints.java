@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2015 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opendatakit.aggregate.odktables.rest.entity.Scope;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * The fingerprint of the content the server last acknowledged for each row,
+ * together with the rowETag it was acknowledged under.
+ * <p>
+ * Recorded when a row is pulled from the server into a synced state and when
+ * the server accepts a pushed row. A locally changed row whose rowETag and
+ * fingerprint (including its filterScope) still match was edited back to
+ * what the server already holds, and need not be pushed.
+ * <p>
+ * The fingerprints are kept in a side table rather than in a column of the
+ * data table, whose schema is defined with the server.
+ */
+final class RowFingerprints {
+
+  static final String FINGERPRINT_TABLE = "_sync_row_fingerprints";
+
+  private static final String TABLE_ID = "table_id";
+  private static final String ROW_ID = "row_id";
+  private static final String ROW_ETAG = "row_etag";
+  private static final String FINGERPRINT = "fingerprint";
+
+  /**
+   * SQL for compiling a statement to be used with bindRecord().
+   */
+  static final String RECORD_SQL = "INSERT OR REPLACE INTO " + FINGERPRINT_TABLE + " ("
+      + TABLE_ID + ", " + ROW_ID + ", " + ROW_ETAG + ", " + FINGERPRINT + ") VALUES (?, ?, ?, ?)";
+
+  /**
+   * An acknowledged fingerprint.
+   */
+  static final class Entry {
+    final String rowETag;
+    final long fingerprint;
+
+    Entry(String rowETag, long fingerprint) {
+      this.rowETag = rowETag;
+      this.fingerprint = fingerprint;
+    }
+
+    boolean matches(SyncRow row) {
+      return rowETag != null && rowETag.equals(row.getRowETag())
+          && fingerprint == pushFingerprint(row);
+    }
+  }
+
+  private RowFingerprints() {
+  }
+
+  static void ensureTable(SQLiteDatabase db) {
+    db.execSQL("CREATE TABLE IF NOT EXISTS " + FINGERPRINT_TABLE + " (" + TABLE_ID
+        + " TEXT NOT NULL, " + ROW_ID + " TEXT NOT NULL, " + ROW_ETAG + " TEXT, " + FINGERPRINT
+        + " INTEGER NOT NULL, PRIMARY KEY (" + TABLE_ID + ", " + ROW_ID + "))");
+  }
+
+  /**
+   * The row's content fingerprint extended with its filterScope, which can
+   * also be changed locally and must then be pushed.
+   *
+   * @param row
+   * @return the fingerprint
+   */
+  static long pushFingerprint(SyncRow row) {
+    Scope filterScope = row.getFilterScope();
+    Scope.Type type = (filterScope == null) ? null : filterScope.getType();
+    long hash = SyncRow.fnv1a(row.getFingerprint(), (type == null) ? Scope.Type.DEFAULT.name()
+        : type.name());
+    return SyncRow.fnv1a(hash, (filterScope == null) ? null : filterScope.getValue());
+  }
+
+  /**
+   * Bind the row to a statement compiled from RECORD_SQL.
+   *
+   * @param stmt
+   * @param tableId
+   * @param row
+   */
+  static void bindRecord(SQLiteStatement stmt, String tableId, SyncRow row) {
+    stmt.clearBindings();
+    stmt.bindString(1, tableId);
+    stmt.bindString(2, row.getRowId());
+    if (row.getRowETag() == null) {
+      stmt.bindNull(3);
+    } else {
+      stmt.bindString(3, row.getRowETag());
+    }
+    stmt.bindLong(4, pushFingerprint(row));
+  }
+
+  /**
+   * Record the content the server has acknowledged for this row, under its
+   * (new) rowETag.
+   *
+   * @param db
+   * @param tableId
+   * @param row
+   */
+  static void record(SQLiteDatabase db, String tableId, SyncRow row) {
+    db.execSQL(RECORD_SQL, new Object[] { tableId, row.getRowId(), row.getRowETag(),
+        pushFingerprint(row) });
+  }
+
+  static void remove(SQLiteDatabase db, String tableId, String rowId) {
+    db.delete(FINGERPRINT_TABLE, TABLE_ID + "=? AND " + ROW_ID + "=?", new String[] { tableId,
+        rowId });
+  }
+
+  /**
+   * Forget all fingerprints of the table, e.g., when the table is created
+   * anew or is no longer on the server. Creates the fingerprint table if
+   * need be.
+   *
+   * @param db
+   * @param tableId
+   */
+  static void discard(SQLiteDatabase db, String tableId) {
+    ensureTable(db);
+    db.delete(FINGERPRINT_TABLE, TABLE_ID + "=?", new String[] { tableId });
+  }
+
+  /**
+   * Get the acknowledged fingerprints of the given rows.
+   *
+   * @param db
+   * @param tableId
+   * @param rowIds
+   * @param batchSize
+   *          the number of rowIds to query at a time
+   * @return map of rowId to entry, for those rows having one.
+   */
+  static Map<String, Entry> getEntries(SQLiteDatabase db, String tableId, List<String> rowIds,
+      int batchSize) {
+    Map<String, Entry> entries = new HashMap<String, Entry>();
+    for (int offset = 0; offset < rowIds.size(); offset += batchSize) {
+      int max = Math.min(offset + batchSize, rowIds.size());
+      StringBuilder b = new StringBuilder();
+      String[] selectionArgs = new String[max - offset + 1];
+      selectionArgs[0] = tableId;
+      b.append("SELECT ").append(ROW_ID).append(", ").append(ROW_ETAG).append(", ")
+          .append(FINGERPRINT).append(" FROM ").append(FINGERPRINT_TABLE).append(" WHERE ")
+          .append(TABLE_ID).append("=? AND ").append(ROW_ID).append(" IN (");
+      for (int i = offset; i < max; ++i) {
+        if (i != offset) {
+          b.append(",");
+        }
+        b.append("?");
+        selectionArgs[i - offset + 1] = rowIds.get(i);
+      }
+      b.append(")");
+      Cursor c = null;
+      try {
+        c = db.rawQuery(b.toString(), selectionArgs);
+        while (c.moveToNext()) {
+          entries.put(c.getString(0), new Entry(c.isNull(1) ? null : c.getString(1),
+              c.getLong(2)));
+        }
+      } finally {
+        if (c != null) {
+          c.close();
+        }
+      }
+    }
+    return entries;
+  }
+}
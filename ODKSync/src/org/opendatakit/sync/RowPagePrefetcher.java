@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2015 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Fetches successive pages of row changes from the server on a background
+ * thread. This lets the network request for the next page proceed while the
+ * current page is being applied to the local database.
+ * <p>
+ * The hand-off queue is bounded to PREFETCH_DEPTH pages, so at most that many
+ * pages, plus the one being fetched and the one being applied, are held in
+ * memory at any time.
+ */
+final class RowPagePrefetcher {
+
+  private static final int PREFETCH_DEPTH = 1;
+
+  /**
+   * Issues the server request for a single page of row changes.
+   */
+  interface PageFetcher {
+    SyncRowPage fetchPage(String websafeResumeCursor) throws Exception;
+  }
+
+  /**
+   * Either the page that was fetched or the exception (or error) that stopped
+   * the fetch.
+   */
+  private static final class FetchedPage {
+    final SyncRowPage rows;
+    final Throwable exception;
+
+    FetchedPage(SyncRowPage rows, Throwable exception) {
+      this.rows = rows;
+      this.exception = exception;
+    }
+  }
+
+  private final PageFetcher fetcher;
+  private final String initialWebsafeResumeCursor;
+  private final BlockingQueue<FetchedPage> pages;
+  private final Thread thread;
+  private volatile boolean cancelled = false;
+
+  RowPagePrefetcher(String tableId, PageFetcher fetcher, String websafeResumeCursor) {
+    this.fetcher = fetcher;
+    this.initialWebsafeResumeCursor = websafeResumeCursor;
+    this.pages = new ArrayBlockingQueue<FetchedPage>(PREFETCH_DEPTH);
+    this.thread = new Thread(new Runnable() {
+
+      @Override
+      public void run() {
+        fetchPages();
+      }
+    }, "RowPagePrefetcher-" + tableId);
+    this.thread.setDaemon(true);
+  }
+
+  void start() {
+    thread.start();
+  }
+
+  private void fetchPages() {
+    String websafeResumeCursor = initialWebsafeResumeCursor;
+    try {
+      while (!cancelled) {
+        SyncRowPage rows;
+        try {
+          rows = fetcher.fetchPage(websafeResumeCursor);
+        } catch (Throwable e) {
+          // including an Error (e.g., OutOfMemoryError decoding a large
+          // page), so that the consumer is never left waiting.
+          if (!cancelled) {
+            pages.put(new FetchedPage(null, e));
+          }
+          return;
+        }
+        pages.put(new FetchedPage(rows, null));
+        if (!rows.isHasMoreResults()) {
+          return;
+        }
+        websafeResumeCursor = rows.getWebSafeResumeCursor();
+      }
+    } catch (InterruptedException e) {
+      // cancelled by the consumer -- nothing more to do.
+    }
+  }
+
+  /**
+   * Wait for and return the next page of row changes. If the fetch of that
+   * page failed, the exception reported by the server request is rethrown
+   * here, on the consumer's thread; an Error is wrapped in an
+   * ExecutionException.
+   *
+   * @return the next page of changes.
+   * @throws Exception
+   */
+  SyncRowPage take() throws Exception {
+    FetchedPage page = pages.take();
+    if (page.exception instanceof Exception) {
+      throw (Exception) page.exception;
+    } else if (page.exception != null) {
+      throw new ExecutionException("unable to fetch the next page of row changes",
+          page.exception);
+    }
+    return page.rows;
+  }
+
+  /**
+   * Stop fetching pages. Any page that is in-flight is discarded.
+   */
+  void cancel() {
+    cancelled = true;
+    thread.interrupt();
+    pages.clear();
+  }
+}
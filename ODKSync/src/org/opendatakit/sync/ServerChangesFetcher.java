@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2015 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.HttpStatus;
+import org.apache.wink.client.ClientWebException;
+import org.opendatakit.aggregate.odktables.rest.entity.ChangeSetList;
+import org.opendatakit.aggregate.odktables.rest.entity.TableResource;
+import org.opendatakit.common.android.data.ColumnDefinition;
+import org.opendatakit.common.android.utilities.WebLogger;
+
+/**
+ * Issues the server requests for the successive pages of changes to a table
+ * since lastDataETag.
+ * <p>
+ * If there is no lastDataETag, the full table is pulled with getUpdates.
+ * Otherwise, the changeSets since lastDataETag are listed and each is fetched
+ * with activeOnly=true, so a row changed in several changeSets is downloaded
+ * only once, from the latest of them. If the server cannot list the
+ * changeSets, this falls back to getUpdates.
+ * <p>
+ * Every changeSet page is reported with the dataETag of the last changeSet,
+ * so the caller records that as the new lastDataETag once all pages are
+ * applied.
+ * <p>
+ * Pages are fetched one after another by the RowPagePrefetcher thread.
+ */
+final class ServerChangesFetcher implements RowPagePrefetcher.PageFetcher {
+
+  private static final String TAG = ServerChangesFetcher.class.getSimpleName();
+
+  private final Synchronizer synchronizer;
+  private final TableResource tableResource;
+  private final String lastDataETag;
+  private final ArrayList<ColumnDefinition> fileAttachmentColumns;
+  private final PageSizeController pageSizeController;
+  private final WebLogger log;
+
+  /**
+   * true until the changeSet list has been requested (or if there is no
+   * lastDataETag).
+   */
+  private boolean needsChangeSetList;
+
+  /**
+   * null if pulling with getUpdates.
+   */
+  private ChangeSetList changeSetList = null;
+  private int changeSetIndex;
+
+  /**
+   * @param synchronizer
+   * @param tableResource
+   * @param lastDataETag
+   * @param changeSetIndex
+   *          the changeSet to start from (non-zero when resuming a pull).
+   * @param fileAttachmentColumns
+   * @param pageSizeController
+   * @param log
+   */
+  ServerChangesFetcher(Synchronizer synchronizer, TableResource tableResource,
+      String lastDataETag, int changeSetIndex, ArrayList<ColumnDefinition> fileAttachmentColumns,
+      PageSizeController pageSizeController, WebLogger log) {
+    this.synchronizer = synchronizer;
+    this.tableResource = tableResource;
+    this.lastDataETag = lastDataETag;
+    this.changeSetIndex = changeSetIndex;
+    this.fileAttachmentColumns = fileAttachmentColumns;
+    this.pageSizeController = pageSizeController;
+    this.log = log;
+    this.needsChangeSetList = (lastDataETag != null && tableResource.getDataETag() != null);
+  }
+
+  @Override
+  public SyncRowPage fetchPage(String websafeResumeCursor) throws Exception {
+    if (needsChangeSetList) {
+      needsChangeSetList = false;
+      try {
+        changeSetList = synchronizer.getChangeSets(tableResource, lastDataETag);
+      } catch (ClientWebException e) {
+        int status = (e.getResponse() == null) ? 0 : e.getResponse().getStatusCode();
+        if (status != HttpStatus.SC_NOT_FOUND && status != HttpStatus.SC_BAD_REQUEST
+            && status != HttpStatus.SC_METHOD_NOT_ALLOWED && status != HttpStatus.SC_NOT_IMPLEMENTED) {
+          throw e;
+        }
+        log.w(TAG, "changeSets not available for " + tableResource.getTableId()
+            + " -- pulling with getUpdates");
+      }
+      if (changeSetList != null && changeSetList.getChangeSets() == null) {
+        changeSetList = null;
+      }
+    }
+
+    long startTime = System.currentTimeMillis();
+    SyncRowPage page;
+    try {
+      if (changeSetList == null) {
+        page = synchronizer.getUpdates(tableResource, lastDataETag, websafeResumeCursor,
+            pageSizeController.getFetchLimit(), fileAttachmentColumns);
+      } else {
+        page = fetchChangeSetPage(websafeResumeCursor);
+      }
+    } catch (Exception e) {
+      pageSizeController.fetchFailed();
+      throw e;
+    }
+    pageSizeController.fetchCompleted(System.currentTimeMillis() - startTime,
+        page.getLatencyMillis(), page.getByteCount(), page.getRows().size());
+    return page;
+  }
+
+  private SyncRowPage fetchChangeSetPage(String websafeResumeCursor) throws Exception {
+    List<String> changeSets = changeSetList.getChangeSets();
+    SyncRowPage page;
+    if (changeSetIndex >= changeSets.size()) {
+      // no changes since lastDataETag
+      page = new SyncRowPage();
+    } else {
+      page = synchronizer.getChangeSet(tableResource, changeSets.get(changeSetIndex), true,
+          websafeResumeCursor, pageSizeController.getFetchLimit(), fileAttachmentColumns);
+      if (!page.isHasMoreResults() && changeSetIndex + 1 < changeSets.size()) {
+        // done with this changeSet; start the next one from its beginning.
+        ++changeSetIndex;
+        page.setHasMoreResults(true);
+        page.setWebSafeResumeCursor(null);
+      }
+    }
+    page.setResumeChangeSetIndex(changeSetIndex);
+    // after the last changeSet is applied, the table is at its dataETag.
+    page.setDataETag(changeSets.isEmpty() ? lastDataETag : changeSets.get(changeSets.size() - 1));
+    return page;
+  }
+}
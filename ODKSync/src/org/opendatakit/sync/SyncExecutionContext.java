@@ -1,5 +1,7 @@
 package org.opendatakit.sync;
 
+import java.io.File;
+
 import org.opendatakit.common.android.database.DatabaseFactory;
 import org.opendatakit.common.android.utilities.CsvUtil;
 import org.opendatakit.sync.SynchronizationResult.Status;
@@ -75,18 +77,32 @@ public class SyncExecutionContext implements SynchronizerStatus {
   public Synchronizer getSynchronizer() {
     return synchronizer;
   }
+
+  /**
+   * @return the directory for temp files that may be discarded at any time.
+   */
+  public File getCacheDir() {
+    return context.getCacheDir();
+  }
   
+  /**
+   * Get a database handle. The caller must close() it when done. SQLite
+   * transactions are bound to the calling thread, so tables being synced on
+   * different threads each work within their own database session.
+   *
+   * @return the database for this appName.
+   */
   public SQLiteDatabase getDatabase() {
     return DatabaseFactory.get().getDatabase(context, appName);
   }
 
-  public void resetMajorSyncSteps(int nMajorSyncSteps) {
+  public synchronized void resetMajorSyncSteps(int nMajorSyncSteps) {
     this.nMajorSyncSteps = nMajorSyncSteps;
     this.GRAINS_PER_MAJOR_SYNC_STEP = (OVERALL_PROGRESS_BAR_LENGTH / nMajorSyncSteps);
     this.iMajorSyncStep = 0;
   }
   
-  public void incMajorSyncStep() {
+  public synchronized void incMajorSyncStep() {
     ++iMajorSyncStep;
     if ( iMajorSyncStep > nMajorSyncSteps ) {
       iMajorSyncStep = nMajorSyncSteps - 1;
@@ -94,7 +110,7 @@ public class SyncExecutionContext implements SynchronizerStatus {
   }
   
   @Override
-  public void updateNotification(SyncProgressState state, int textResource, Object[] formatArgVals,
+  public synchronized void updateNotification(SyncProgressState state, int textResource, Object[] formatArgVals,
       Double progressPercentage, boolean indeterminateProgress) {
     String text = "Bad text resource id: " + textResource + "!";
     String fmt = context.getString(textResource);
@@ -19,6 +19,18 @@ public class SyncPreferences {
   private static final String SERVER_URI_KEY = "serverUri";
   private static final String ACCOUNT_KEY = "account";
   private static final String AUTH_KEY = "auth";
+  private static final String TABLE_SYNC_CONCURRENCY_KEY = "tableSyncConcurrency";
+  private static final String ATTACHMENT_TRANSFER_CONCURRENCY_KEY = "attachmentTransferConcurrency";
+
+  /**
+   * By default, the data rows of one table are synced at a time.
+   */
+  private static final int DEFAULT_TABLE_SYNC_CONCURRENCY = 1;
+
+  /**
+   * By default, up to 4 file attachments are transferred at a time.
+   */
+  private static final int DEFAULT_ATTACHMENT_TRANSFER_CONCURRENCY = 4;
 
   private final Properties prop;
 
@@ -113,4 +125,59 @@ public class SyncPreferences {
   public String getAuthToken() {
     return prop.getProperty(AUTH_KEY, null);
   }
+
+  public void setTableSyncConcurrency(int concurrency) throws IOException {
+    if (concurrency > 0) {
+      this.prop.setProperty(TABLE_SYNC_CONCURRENCY_KEY, Integer.toString(concurrency));
+    } else {
+      this.prop.remove(TABLE_SYNC_CONCURRENCY_KEY);
+    }
+    storePreferences();
+  }
+
+  /**
+   * @return the number of tables whose data rows may be synced concurrently.
+   */
+  public int getTableSyncConcurrency() {
+    String value = prop.getProperty(TABLE_SYNC_CONCURRENCY_KEY, null);
+    if (value != null) {
+      try {
+        int concurrency = Integer.parseInt(value);
+        if (concurrency > 0) {
+          return concurrency;
+        }
+      } catch (NumberFormatException e) {
+        // fall through to the default
+      }
+    }
+    return DEFAULT_TABLE_SYNC_CONCURRENCY;
+  }
+
+  public void setAttachmentTransferConcurrency(int concurrency) throws IOException {
+    if (concurrency > 0) {
+      this.prop.setProperty(ATTACHMENT_TRANSFER_CONCURRENCY_KEY, Integer.toString(concurrency));
+    } else {
+      this.prop.remove(ATTACHMENT_TRANSFER_CONCURRENCY_KEY);
+    }
+    storePreferences();
+  }
+
+  /**
+   * @return the number of file attachments that may be transferred
+   *         concurrently, across all tables.
+   */
+  public int getAttachmentTransferConcurrency() {
+    String value = prop.getProperty(ATTACHMENT_TRANSFER_CONCURRENCY_KEY, null);
+    if (value != null) {
+      try {
+        int concurrency = Integer.parseInt(value);
+        if (concurrency > 0) {
+          return concurrency;
+        }
+      } catch (NumberFormatException e) {
+        // fall through to the default
+      }
+    }
+    return DEFAULT_ATTACHMENT_TRANSFER_CONCURRENCY;
+  }
 }
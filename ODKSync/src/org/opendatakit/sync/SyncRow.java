@@ -16,6 +16,7 @@
 package org.opendatakit.sync;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
@@ -24,7 +25,6 @@ import org.opendatakit.aggregate.odktables.rest.entity.DataKeyValue;
 import org.opendatakit.aggregate.odktables.rest.entity.Scope;
 import org.opendatakit.common.android.data.ColumnDefinition;
 import org.opendatakit.common.android.data.UserTable.Row;
-import org.opendatakit.common.android.provider.DataTableColumns;
 
 /**
  * A SyncRow is an in-between class to map rows in the database to rows in the
@@ -35,6 +35,14 @@ import org.opendatakit.common.android.provider.DataTableColumns;
  */
 public class SyncRow {
   private static final List<String> emptyUriFragmentsList = Collections.unmodifiableList(new ArrayList<String>());
+
+  private static final Comparator<DataKeyValue> columnOrder = new Comparator<DataKeyValue>() {
+
+    @Override
+    public int compare(DataKeyValue arg0, DataKeyValue arg1) {
+      return arg0.column.compareTo(arg1.column);
+    }
+  };
   
   private String rowId;
   private String rowETag;
@@ -74,14 +82,41 @@ public class SyncRow {
    */
   private String savepointCreator;
 
-  private ArrayList<DataKeyValue> orderedValues;
+  /**
+   * The column names, sorted, and the parallel array of values. The column
+   * array is usually shared with the other rows of a RowBatch and must not
+   * be modified.
+   */
+  private String[] columns;
+  private String[] values;
   
   private List<String> uriFragments;
 
+  /**
+   * Cached content fingerprint; see getFingerprint().
+   */
+  private long fingerprint;
+  private boolean hasFingerprint = false;
+
   public SyncRow(final String rowId, final String rowETag, final boolean deleted,
       final String formId, final String locale, final String savepointType,
       final String savepointTimestamp, final String savepointCreator, final Scope filterScope,
       final ArrayList<DataKeyValue> values, final ArrayList<ColumnDefinition> fileAttachmentColumns) {
+    this(rowId, rowETag, deleted, formId, locale, savepointType, savepointTimestamp,
+        savepointCreator, filterScope, null, null, fileAttachmentColumns);
+    setValues(values);
+    this.uriFragments = extractUriFragments(fileAttachmentColumns);
+  }
+
+  /**
+   * Construct a row from a column dictionary and the parallel array of
+   * values; see RowBatch.
+   */
+  SyncRow(final String rowId, final String rowETag, final boolean deleted,
+      final String formId, final String locale, final String savepointType,
+      final String savepointTimestamp, final String savepointCreator, final Scope filterScope,
+      final String[] columns, final String[] values,
+      final ArrayList<ColumnDefinition> fileAttachmentColumns) {
     this.rowId = rowId;
     this.rowETag = rowETag;
     this.deleted = deleted;
@@ -91,19 +126,14 @@ public class SyncRow {
     this.savepointTimestamp = savepointTimestamp;
     this.savepointCreator = savepointCreator;
     this.filterScope = filterScope;
-    if (values == null) {
-      this.orderedValues = new ArrayList<DataKeyValue>();
-    } else {
-      Collections.sort(values, new Comparator<DataKeyValue>() {
-
-        @Override
-        public int compare(DataKeyValue arg0, DataKeyValue arg1) {
-          return arg0.column.compareTo(arg1.column);
-        }
-      });
-
-      this.orderedValues = values;
+    this.columns = columns;
+    this.values = values;
+    if (columns != null) {
+      this.uriFragments = extractUriFragments(fileAttachmentColumns);
     }
+  }
+
+  private List<String> extractUriFragments(final ArrayList<ColumnDefinition> fileAttachmentColumns) {
     // build up the uriFragments value...
     // the common case is that this is empty.
     // Use the static immutable list for that condition.
@@ -112,10 +142,10 @@ public class SyncRow {
       // extract the non-null uriFragments here...
       int idxAttachment = 0;
       String facName = fileAttachmentColumns.get(idxAttachment).getElementKey();
-      for ( DataKeyValue dkv : orderedValues) {
-        if ( dkv.column.equals(facName) ) {
-          if ( dkv.value != null ) {
-            uriFragments.add(dkv.value);
+      for ( int i = 0 ; i < columns.length ; ++i ) {
+        if ( columns[i].equals(facName) ) {
+          if ( values[i] != null ) {
+            uriFragments.add(values[i]);
           }
           ++idxAttachment;
           if ( idxAttachment >= fileAttachmentColumns.size() ) {
@@ -126,12 +156,12 @@ public class SyncRow {
         }
       }
       if ( uriFragments.isEmpty() ) {
-        this.uriFragments = emptyUriFragmentsList;
+        return emptyUriFragmentsList;
       } else {
-        this.uriFragments = uriFragments;
+        return uriFragments;
       }
     } else {
-      this.uriFragments = emptyUriFragmentsList;
+      return emptyUriFragmentsList;
     }
   }
 
@@ -165,6 +195,7 @@ public class SyncRow {
 
   public void setFormId(String formId) {
     this.formId = formId;
+    this.hasFingerprint = false;
   }
 
   public String getLocale() {
@@ -173,6 +204,7 @@ public class SyncRow {
 
   public void setLocale(String locale) {
     this.locale = locale;
+    this.hasFingerprint = false;
   }
 
   public Scope getFilterScope() {
@@ -189,6 +221,7 @@ public class SyncRow {
 
   public void setSavepointType(String savepointType) {
     this.savepointType = savepointType;
+    this.hasFingerprint = false;
   }
 
   public String getSavepointTimestamp() {
@@ -197,6 +230,7 @@ public class SyncRow {
 
   public void setSavepointTimestamp(String savepointTimestamp) {
     this.savepointTimestamp = savepointTimestamp;
+    this.hasFingerprint = false;
   }
 
   public String getSavepointCreator() {
@@ -205,26 +239,134 @@ public class SyncRow {
 
   public void setSavepointCreator(String savepointCreator) {
     this.savepointCreator = savepointCreator;
+    this.hasFingerprint = false;
   }
 
+  /**
+   * Build a list of the (column, value) pairs of this row, sorted by column
+   * name. A new list is created on each call; use getValueCount(),
+   * getColumn() and getValue() to read the values without allocating.
+   *
+   * @return the values
+   */
   public ArrayList<DataKeyValue> getValues() {
-    return this.orderedValues;
+    ArrayList<DataKeyValue> list = new ArrayList<DataKeyValue>(values.length);
+    for (int i = 0; i < values.length; ++i) {
+      list.add(new DataKeyValue(columns[i], values[i]));
+    }
+    return list;
   }
 
   public void setValues(final ArrayList<DataKeyValue> values) {
-    if (values == null) {
-      this.orderedValues = new ArrayList<DataKeyValue>();
-    } else {
-      Collections.sort(values, new Comparator<DataKeyValue>() {
+    ArrayList<DataKeyValue> ordered = orderValues(values);
+    this.columns = new String[ordered.size()];
+    this.values = new String[ordered.size()];
+    for (int i = 0; i < ordered.size(); ++i) {
+      this.columns[i] = ordered.get(i).column;
+      this.values[i] = ordered.get(i).value;
+    }
+    this.hasFingerprint = false;
+  }
 
-        @Override
-        public int compare(DataKeyValue arg0, DataKeyValue arg1) {
-          return arg0.column.compareTo(arg1.column);
-        }
-      });
+  /**
+   * @return the sorted column names of the values. Must not be modified.
+   */
+  public String[] getColumns() {
+    return columns;
+  }
 
-      this.orderedValues = values;
+  public int getValueCount() {
+    return values.length;
+  }
+
+  public String getColumn(int i) {
+    return columns[i];
+  }
+
+  public String getValue(int i) {
+    return values[i];
+  }
+
+  static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private static long fnv1a(long hash, int octet) {
+    return (hash ^ (octet & 0xff)) * FNV_PRIME;
+  }
+
+  /**
+   * Fold a string (or null) into a 64-bit FNV-1a hash. The length is folded
+   * in first so that adjacent fields cannot run into each other.
+   *
+   * @param hash
+   * @param value
+   * @return the updated hash
+   */
+  static long fnv1a(long hash, String value) {
+    if (value == null) {
+      return fnv1a(hash, 0xff);
+    }
+    int len = value.length();
+    hash = fnv1a(hash, len);
+    hash = fnv1a(hash, len >>> 8);
+    hash = fnv1a(hash, len >>> 16);
+    hash = fnv1a(hash, len >>> 24);
+    for (int i = 0; i < len; ++i) {
+      char c = value.charAt(i);
+      hash = fnv1a(hash, c);
+      hash = fnv1a(hash, c >>> 8);
     }
+    return hash;
+  }
+
+  /**
+   * A 64-bit FNV-1a hash over the formId, locale, savepoint fields and the
+   * (column, value) pairs of the row. The rowId, rowETag, deleted flag and
+   * filterScope are not included. Rows with the same fingerprint hold the
+   * same values, barring a hash collision; rows with different fingerprints
+   * may still be equivalent (e.g., numbers differing by rounding).
+   * <p>
+   * Computed once and cached; the setters invalidate it.
+   *
+   * @return the fingerprint
+   */
+  public long getFingerprint() {
+    if (!hasFingerprint) {
+      long hash = FNV_OFFSET_BASIS;
+      hash = fnv1a(hash, formId);
+      hash = fnv1a(hash, locale);
+      hash = fnv1a(hash, savepointType);
+      hash = fnv1a(hash, savepointTimestamp);
+      hash = fnv1a(hash, savepointCreator);
+      for (int i = 0; i < values.length; ++i) {
+        hash = fnv1a(hash, columns[i]);
+        hash = fnv1a(hash, values[i]);
+      }
+      fingerprint = hash;
+      hasFingerprint = true;
+    }
+    return fingerprint;
+  }
+
+  /**
+   * Return the values list sorted by column name. The server and the local
+   * database both usually supply the values already in this order, so only
+   * sort if we find an out-of-order entry.
+   *
+   * @param values
+   * @return
+   */
+  private static ArrayList<DataKeyValue> orderValues(final ArrayList<DataKeyValue> values) {
+    if (values == null) {
+      return new ArrayList<DataKeyValue>();
+    }
+    for (int i = 1; i < values.size(); ++i) {
+      if (columnOrder.compare(values.get(i - 1), values.get(i)) > 0) {
+        Collections.sort(values, columnOrder);
+        break;
+      }
+    }
+    return values;
   }
   
   public List<String> getUriFragments() {
@@ -273,8 +415,7 @@ public class SyncRow {
       return false;
 
     // data
-    if (this.getValues() == null ? other.getValues() != null : !this.getValues().equals(
-        (java.lang.Object) other.getValues()))
+    if (!Arrays.equals(this.columns, other.columns) || !Arrays.equals(this.values, other.values))
       return false;
     return true;
   }
@@ -304,7 +445,8 @@ public class SyncRow {
     result = result * PRIME
         + (this.getSavepointCreator() == null ? 0 : this.getSavepointCreator().hashCode());
     // data
-    result = result * PRIME + (this.getValues() == null ? 0 : this.getValues().hashCode());
+    result = result * PRIME + Arrays.hashCode(this.columns);
+    result = result * PRIME + Arrays.hashCode(this.values);
     return result;
   }
 
@@ -318,29 +460,18 @@ public class SyncRow {
   }
   
 
+  /**
+   * Convert a row of the local data table. Prefer convertToSyncRow(RowBatch,
+   * Row) when converting many rows, so that they share one column
+   * dictionary.
+   */
   public static final SyncRow convertToSyncRow(ArrayList<ColumnDefinition> orderedColumns,
       ArrayList<ColumnDefinition> fileAttachmentColumns, Row localRow) {
-    String rowId = localRow.getRowId();
-    String rowETag = localRow.getRawDataOrMetadataByElementKey(DataTableColumns.ROW_ETAG);
-
-    ArrayList<DataKeyValue> values = new ArrayList<DataKeyValue>();
-    for (ColumnDefinition column : orderedColumns) {
-      if (column.isUnitOfRetention()) {
-        String elementKey = column.getElementKey();
-        values.add(new DataKeyValue(elementKey, localRow
-            .getRawDataOrMetadataByElementKey(elementKey)));
-      }
-    }
+    return convertToSyncRow(RowBatch.forLocalRows(orderedColumns, fileAttachmentColumns),
+        localRow);
+  }
 
-    SyncRow syncRow = new SyncRow(rowId, rowETag, false,
-        localRow.getRawDataOrMetadataByElementKey(DataTableColumns.FORM_ID),
-        localRow.getRawDataOrMetadataByElementKey(DataTableColumns.LOCALE),
-        localRow.getRawDataOrMetadataByElementKey(DataTableColumns.SAVEPOINT_TYPE),
-        localRow.getRawDataOrMetadataByElementKey(DataTableColumns.SAVEPOINT_TIMESTAMP),
-        localRow.getRawDataOrMetadataByElementKey(DataTableColumns.SAVEPOINT_CREATOR),
-        Scope.asScope(localRow.getRawDataOrMetadataByElementKey(DataTableColumns.FILTER_TYPE),
-            localRow.getRawDataOrMetadataByElementKey(DataTableColumns.FILTER_VALUE)), values,
-        fileAttachmentColumns);
-    return syncRow;
+  public static final SyncRow convertToSyncRow(RowBatch localRows, Row localRow) {
+    return localRows.convert(localRow);
   }
 }
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2015 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * One page of row changes returned by the server. The rows are delivered to
+ * this page one at a time, as they are decoded from the response stream, so
+ * that the server's representation of the rows is never held in memory
+ * alongside the SyncRow copies.
+ */
+public class SyncRowPage {
+
+  private String dataETag;
+  private String webSafeResumeCursor;
+  private boolean hasMoreResults;
+
+  /**
+   * Size of the response body, and the time until the response began.
+   */
+  private long byteCount;
+  private long latencyMillis;
+
+  /**
+   * When pulling by changeSet, the index of the changeSet that the next page
+   * (at webSafeResumeCursor) comes from.
+   */
+  private int resumeChangeSetIndex;
+
+  /**
+   * Map of rowId to the server's change to that row, in the order returned.
+   */
+  private final Map<String, SyncRow> rows = new LinkedHashMap<String, SyncRow>();
+
+  /**
+   * Accept the next row decoded from the server response.
+   *
+   * @param row
+   */
+  public void addRow(SyncRow row) {
+    rows.put(row.getRowId(), row);
+  }
+
+  public Map<String, SyncRow> getRows() {
+    return rows;
+  }
+
+  public String getDataETag() {
+    return dataETag;
+  }
+
+  public void setDataETag(String dataETag) {
+    this.dataETag = dataETag;
+  }
+
+  public String getWebSafeResumeCursor() {
+    return webSafeResumeCursor;
+  }
+
+  public void setWebSafeResumeCursor(String webSafeResumeCursor) {
+    this.webSafeResumeCursor = webSafeResumeCursor;
+  }
+
+  public boolean isHasMoreResults() {
+    return hasMoreResults;
+  }
+
+  public void setHasMoreResults(boolean hasMoreResults) {
+    this.hasMoreResults = hasMoreResults;
+  }
+
+  public long getByteCount() {
+    return byteCount;
+  }
+
+  public void setByteCount(long byteCount) {
+    this.byteCount = byteCount;
+  }
+
+  public int getResumeChangeSetIndex() {
+    return resumeChangeSetIndex;
+  }
+
+  public void setResumeChangeSetIndex(int resumeChangeSetIndex) {
+    this.resumeChangeSetIndex = resumeChangeSetIndex;
+  }
+
+  public long getLatencyMillis() {
+    return latencyMillis;
+  }
+
+  public void setLatencyMillis(long latencyMillis) {
+    this.latencyMillis = latencyMillis;
+  }
+}
@@ -16,6 +16,7 @@
 package org.opendatakit.sync;
 
 import java.util.List;
+import java.util.Map;
 
 /**
  * Class that holds minimal information necessary for synchronizing instance file attachments.
@@ -31,6 +32,11 @@ public class SyncRowPending {
   final private boolean getOnly;
   final private boolean shouldDeleteFiles;
   final private boolean updateState;
+  /**
+   * The md5 hashes of the attachments the server holds for this row, by their
+   * path relative to the row's instance folder; null if not known.
+   */
+  private Map<String, String> serverFileHashes = null;
 
   public SyncRowPending(SyncRow syncRow, boolean getOnly, boolean shouldDeleteFiles, boolean updateState) {
     this.rowId = syncRow.getRowId();
@@ -64,4 +70,12 @@ public class SyncRowPending {
   public boolean updateSyncState() {
     return updateState;
   }
+
+  public Map<String, String> getServerFileHashes() {
+    return serverFileHashes;
+  }
+
+  public void setServerFileHashes(Map<String, String> serverFileHashes) {
+    this.serverFileHashes = serverFileHashes;
+  }
 }
\ No newline at end of file
@@ -43,10 +43,12 @@ public class SynchronizationResult {
     WORKING, SUCCESS, FAILURE, AUTH_EXCEPTION, EXCEPTION, TABLE_DOES_NOT_EXIST_ON_SERVER, TABLE_CONTAINS_CHECKPOINTS, TABLE_CONTAINS_CONFLICTS, TABLE_PENDING_ATTACHMENTS, TABLE_REQUIRES_APP_LEVEL_SYNC;
   }
 
-  private Status appLevelStatus = Status.WORKING;
+  private volatile Status appLevelStatus = Status.WORKING;
 
   private final Map<String, TableResult> mResults = new HashMap<String, TableResult>();
 
+  private final TransferMetrics mTransferMetrics = new TransferMetrics();
+
   public SynchronizationResult() {
   }
 
@@ -58,12 +60,19 @@ public class SynchronizationResult {
     this.appLevelStatus = status;
   }
 
+  /**
+   * @return the counts of the files transferred during the sync.
+   */
+  public TransferMetrics getTransferMetrics() {
+    return mTransferMetrics;
+  }
+
   /**
    * Get all the {@link TableResult} objects in this result.
    * 
    * @return
    */
-  public List<TableResult> getTableResults() {
+  public synchronized List<TableResult> getTableResults() {
     List<TableResult> r = new ArrayList<TableResult>();
     r.addAll(this.mResults.values());
     Collections.sort(r, new Comparator<TableResult>() {
@@ -76,7 +85,7 @@ public class SynchronizationResult {
     return r;
   }
 
-  public TableResult getTableResult(String tableId) {
+  public synchronized TableResult getTableResult(String tableId) {
     TableResult r = mResults.get(tableId);
     if (r == null) {
       r = new TableResult(tableId);
@@ -15,6 +15,7 @@
  */
 package org.opendatakit.sync;
 
+import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.List;
@@ -23,10 +24,10 @@ import org.apache.wink.client.ClientWebException;
 import org.opendatakit.aggregate.odktables.rest.entity.ChangeSetList;
 import org.opendatakit.aggregate.odktables.rest.entity.Column;
 import org.opendatakit.aggregate.odktables.rest.entity.RowOutcomeList;
-import org.opendatakit.aggregate.odktables.rest.entity.RowResourceList;
 import org.opendatakit.aggregate.odktables.rest.entity.TableDefinitionResource;
 import org.opendatakit.aggregate.odktables.rest.entity.TableResource;
 import org.opendatakit.aggregate.odktables.rest.entity.TableResourceList;
+import org.opendatakit.common.android.data.ColumnDefinition;
 import org.opendatakit.sync.exceptions.InvalidAuthTokenException;
 import org.opendatakit.sync.service.SyncProgressState;
 
@@ -61,11 +62,12 @@ public interface Synchronizer {
    * Get a list of all tables in the server.
    *
    * @param webSafeResumeCursor null or a non-empty string if we are issuing a resume query
+   * @param fetchLimit the maximum number of tables to return, or 0 for the server default
    * @return a list of the table resources on the server
    * @throws ClientWebException
    * @throws InvalidAuthTokenException 
    */
-  public TableResourceList getTables(String webSafeResumeCursor) throws ClientWebException, InvalidAuthTokenException;
+  public TableResourceList getTables(String webSafeResumeCursor, int fetchLimit) throws ClientWebException, InvalidAuthTokenException;
 
   /**
    * Discover the schema for a table resource.
@@ -116,11 +118,34 @@ public interface Synchronizer {
    */
   public ChangeSetList getChangeSets(TableResource tableResource, String dataETag) throws ClientWebException, InvalidAuthTokenException;
   
-  public RowResourceList getChangeSet(TableResource tableResource, String dataETag, boolean activeOnly, String websafeResumeCursor)
+  /**
+   * Retrieve the rows of the changeSet with the specified dataETag. As with
+   * getUpdates, the rows are decoded from the response as it is read.
+   *
+   * @param tableResource
+   * @param dataETag
+   *          the dataETag of the changeSet
+   * @param activeOnly
+   *          true to return only the rows whose current version is the one in
+   *          this changeSet (i.e., not changed by any later changeSet).
+   * @param websafeResumeCursor
+   *          either null or a value used to resume a prior query.
+   * @param fetchLimit
+   *          the maximum number of rows to return, or 0 for the server default.
+   * @param fileAttachmentColumns
+   *          the rowpath columns of the table (used to construct the SyncRows).
+   * @return a SyncRowPage of the rows in the changeSet.
+   * @throws ClientWebException
+   * @throws InvalidAuthTokenException
+   */
+  public SyncRowPage getChangeSet(TableResource tableResource, String dataETag, boolean activeOnly,
+      String websafeResumeCursor, int fetchLimit, ArrayList<ColumnDefinition> fileAttachmentColumns)
       throws ClientWebException, InvalidAuthTokenException;
 
   /**
    * Retrieve changes in the server state since the last synchronization.
+   * The rows are decoded from the response as it is read and delivered to
+   * the returned page one at a time.
    *
    * @param tableResource
    *          the TableResource from the server for a tableId
@@ -129,14 +154,79 @@ public interface Synchronizer {
    *          the local data table. Fetches changes after that dataETag.
    * @param websafeResumeCursor
    *          either null or a value used to resume a prior query.
+   * @param fetchLimit
+   *          the maximum number of rows to return, or 0 for the server default.
+   * @param fileAttachmentColumns
+   *          the rowpath columns of the table (used to construct the SyncRows).
    *          
-   * @return an RowResourceList of the changes on the server since that dataETag.
+   * @return a SyncRowPage of the changes on the server since that dataETag.
    * @throws ClientWebException
    * @throws InvalidAuthTokenException 
    */
-  public RowResourceList getUpdates(TableResource tableResource, String dataETag, String websafeResumeCursor)
+  public SyncRowPage getUpdates(TableResource tableResource, String dataETag,
+      String websafeResumeCursor, int fetchLimit, ArrayList<ColumnDefinition> fileAttachmentColumns)
       throws ClientWebException, InvalidAuthTokenException;
 
+  /**
+   * Retrieve a snapshot of all the rows of the table, as of its current
+   * dataETag, for loading into an empty local table. Changes after that
+   * dataETag are then pulled with getUpdates.
+   *
+   * @param tableResource
+   *          the TableResource from the server for a tableId
+   * @param fileAttachmentColumns
+   *          the rowpath columns of the table (used to construct the SyncRows).
+   * @return the snapshot, which the caller must close, or null if the server
+   *         does not provide snapshots.
+   * @throws ClientWebException
+   * @throws InvalidAuthTokenException
+   * @throws IOException
+   */
+  public TableSnapshot getTableSnapshot(TableResource tableResource,
+      ArrayList<ColumnDefinition> fileAttachmentColumns) throws ClientWebException,
+      InvalidAuthTokenException, IOException;
+
+  /**
+   * Retrieve the digests of the server's rows, for finding the rows that
+   * differ from those on the device when the table's dataETag has been lost.
+   *
+   * @param tableResource
+   *          the TableResource from the server for a tableId
+   * @param bucketCount
+   *          the number of buckets; a power of two.
+   * @return the digests, or null if the server does not provide them.
+   * @throws ClientWebException
+   * @throws InvalidAuthTokenException
+   */
+  public RowDigests getRowDigests(TableResource tableResource, int bucketCount)
+      throws ClientWebException, InvalidAuthTokenException;
+
+  /**
+   * Retrieve the server's (live) rows in the given buckets of the row
+   * digests. Only called if getRowDigests() returned digests.
+   *
+   * @param tableResource
+   *          the TableResource from the server for a tableId
+   * @param bucketCount
+   *          the number of buckets that the digests were computed with.
+   * @param buckets
+   *          the buckets whose rows are requested.
+   * @param websafeResumeCursor
+   *          either null or a value used to resume a prior query.
+   * @param fetchLimit
+   *          the maximum number of rows to return, or 0 for the server default.
+   * @param fileAttachmentColumns
+   *          the rowpath columns of the table (used to construct the SyncRows).
+   * @return a SyncRowPage of the rows in those buckets, or null if the server
+   *         does not provide them.
+   * @throws ClientWebException
+   * @throws InvalidAuthTokenException
+   */
+  public SyncRowPage getRowsInBuckets(TableResource tableResource, int bucketCount,
+      List<Integer> buckets, String websafeResumeCursor, int fetchLimit,
+      ArrayList<ColumnDefinition> fileAttachmentColumns) throws ClientWebException,
+      InvalidAuthTokenException;
+
   /**
    * Apply inserts, updates and deletes in a collection up to the server.
    * This does not depend upon knowing the current dataETag of the server.
@@ -216,6 +306,22 @@ public interface Synchronizer {
   public boolean putFileAttachments(String instanceFileUri, String tableId, SyncRowPending localRow,
       boolean deferInstanceAttachments)
       throws ClientWebException;
+
+  /**
+   * Learn which file attachments the server holds for each of the rows, in as
+   * few requests as the server allows, and record their md5 hashes on the
+   * rows (see SyncRowPending.setServerFileHashes). putFileAttachments() then
+   * need not check each file with the server. The hashes of a row are left
+   * null if they could not be retrieved.
+   *
+   * @param instanceFileUri
+   * @param tableId
+   * @param localRows
+   * @throws ClientWebException
+   * @throws InvalidAuthTokenException
+   */
+  public void getServerFileHashes(String instanceFileUri, String tableId,
+      List<SyncRowPending> localRows) throws ClientWebException, InvalidAuthTokenException;
   
   /**
    * Use to purge ETags of any instance attachments when server does not remember this schemaETag
@@ -226,4 +332,11 @@ public interface Synchronizer {
    */
   public URI constructTableInstanceFileUri(String tableId, String schemaETag);
 
+  /**
+   * Set where the counts of the files downloaded and uploaded are recorded.
+   *
+   * @param transferMetrics
+   */
+  public void setTransferMetrics(TransferMetrics transferMetrics);
+
 }
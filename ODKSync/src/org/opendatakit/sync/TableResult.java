@@ -18,7 +18,8 @@ package org.opendatakit.sync;
 import org.opendatakit.sync.SynchronizationResult.Status;
 
 /**
- * The mapping of a table to the status of its synchronization.
+ * The mapping of a table to the status of its synchronization. Tables may be
+ * synchronized concurrently, so the accessors are synchronized.
  * 
  * @author sudar.sam@gmail.com
  *
@@ -58,31 +59,47 @@ public class TableResult {
   private int mLocalNumConflicts = 0;
   private int mLocalNumAttachmentRetries = 0;
 
-  public void incServerUpserts() {
+  /** The number of rows last requested per page of server changes. */
+  private int mFetchLimit = 0;
+
+  /** Statistics of the alterRows requests used to push local changes. */
+  private int mUploadBatches = 0;
+  private int mUploadRows = 0;
+  private long mUploadBytes = 0L;
+  private long mUploadMillis = 0L;
+  private int mLastUploadBatchRows = 0;
+  private long mLastUploadBatchBytes = 0L;
+  private long mUploadTargetBytes = 0L;
+
+  /** Pushes retried after a 409 (CONFLICT), and the time spent backing off. */
+  private int mConflictRetries = 0;
+  private long mConflictRetryMillis = 0L;
+
+  public synchronized void incServerUpserts() {
     ++mServerNumUpserts;
   }
 
-  public void incServerDeletes() {
+  public synchronized void incServerDeletes() {
     ++mServerNumDeletes;
   }
 
-  public void incLocalInserts() {
+  public synchronized void incLocalInserts() {
     ++mLocalNumInserts;
   }
 
-  public void incLocalUpdates() {
+  public synchronized void incLocalUpdates() {
     ++mLocalNumUpdates;
   }
 
-  public void incLocalDeletes() {
+  public synchronized void incLocalDeletes() {
     ++mLocalNumDeletes;
   }
 
-  public void incLocalConflicts() {
+  public synchronized void incLocalConflicts() {
     ++mLocalNumConflicts;
   }
 
-  public void incLocalAttachmentRetries() {
+  public synchronized void incLocalAttachmentRetries() {
     ++mLocalNumAttachmentRetries;
   }
 
@@ -113,95 +130,95 @@ public class TableResult {
     return this.mTableId;
   }
 
-  public void setTableDisplayName(String displayName) {
+  public synchronized void setTableDisplayName(String displayName) {
     this.mDisplayName = displayName;
   }
 
-  public String getTableDisplayName() {
+  public synchronized String getTableDisplayName() {
     return this.mDisplayName;
   }
 
-  public Status getStatus() {
+  public synchronized Status getStatus() {
     return this.mStatus;
   }
 
-  public boolean pulledServerData() {
+  public synchronized boolean pulledServerData() {
     return this.mPulledServerData;
   }
 
-  public boolean pulledServerProperties() {
+  public synchronized boolean pulledServerProperties() {
     return this.mPulledServerProps;
   }
 
-  public boolean pulledServerSchema() {
+  public synchronized boolean pulledServerSchema() {
     return this.mPulledServerSchema;
   }
 
-  public boolean pushedLocalProperties() {
+  public synchronized boolean pushedLocalProperties() {
     return this.mPushedLocalProps;
   }
 
-  public boolean pushedLocalData() {
+  public synchronized boolean pushedLocalData() {
     return this.mPushedLocalData;
   }
 
-  public boolean hadLocalDataChanges() {
+  public synchronized boolean hadLocalDataChanges() {
     return this.mHadLocalDataChanges;
   }
 
-  public boolean hadLocalPropertiesChanges() {
+  public synchronized boolean hadLocalPropertiesChanges() {
     return this.mHadLocalPropChanges;
   }
 
-  public boolean serverHadDataChanges() {
+  public synchronized boolean serverHadDataChanges() {
     return this.mHadServerDataChanges;
   }
 
-  public boolean serverHadPropertiesChanges() {
+  public synchronized boolean serverHadPropertiesChanges() {
     return this.mHadServerPropChanges;
   }
 
-  public boolean serverHadSchemaChanges() {
+  public synchronized boolean serverHadSchemaChanges() {
     return this.mHadServerSchemaChanges;
   }
 
-  public void setPulledServerData(boolean pulledData) {
+  public synchronized void setPulledServerData(boolean pulledData) {
     this.mPulledServerData = pulledData;
   }
 
-  public void setPulledServerProperties(boolean pulledProperties) {
+  public synchronized void setPulledServerProperties(boolean pulledProperties) {
     this.mPulledServerProps = pulledProperties;
   }
 
-  public void setPulledServerSchema(boolean pulledSchema) {
+  public synchronized void setPulledServerSchema(boolean pulledSchema) {
     this.mPulledServerSchema = pulledSchema;
   }
 
-  public void setPushedLocalProperties(boolean pushedProperties) {
+  public synchronized void setPushedLocalProperties(boolean pushedProperties) {
     this.mPushedLocalProps = pushedProperties;
   }
 
-  public void setPushedLocalData(boolean pushedData) {
+  public synchronized void setPushedLocalData(boolean pushedData) {
     this.mPushedLocalData = pushedData;
   }
 
-  public void setHadLocalPropertiesChanges(boolean hadChanges) {
+  public synchronized void setHadLocalPropertiesChanges(boolean hadChanges) {
     this.mHadLocalPropChanges = hadChanges;
   }
 
-  public void setHadLocalDataChanges(boolean hadChanges) {
+  public synchronized void setHadLocalDataChanges(boolean hadChanges) {
     this.mHadLocalDataChanges = hadChanges;
   }
 
-  public void setServerHadSchemaChanges(boolean serverHadChanges) {
+  public synchronized void setServerHadSchemaChanges(boolean serverHadChanges) {
     this.mHadServerSchemaChanges = serverHadChanges;
   }
 
-  public void setServerHadPropertiesChanges(boolean serverHadChanges) {
+  public synchronized void setServerHadPropertiesChanges(boolean serverHadChanges) {
     this.mHadServerPropChanges = serverHadChanges;
   }
 
-  public void setServerHadDataChanges(boolean serverHadChanges) {
+  public synchronized void setServerHadDataChanges(boolean serverHadChanges) {
     this.mHadServerDataChanges = serverHadChanges;
   }
 
@@ -211,11 +228,11 @@ public class TableResult {
    * 
    * @param message
    */
-  public void setMessage(String message) {
+  public synchronized void setMessage(String message) {
     this.mMessage = message;
   }
 
-  public String getMessage() {
+  public synchronized String getMessage() {
     return this.mMessage;
   }
 
@@ -227,7 +244,7 @@ public class TableResult {
    *           if the satus has been set to {@link Status#EXCEPTION} and the
    *           newStatus is something other than {@link Status#EXCEPTION}.
    */
-  public void setStatus(Status newStatus) {
+  public synchronized void setStatus(Status newStatus) {
     if (this.mStatus == Status.EXCEPTION && newStatus != Status.EXCEPTION) {
       throw new UnsupportedOperationException("Tried to set TableResult " + "status"
           + " to something other than exception when it had alread been set" + " to exception.");
@@ -235,7 +252,86 @@ public class TableResult {
     this.mStatus = newStatus;
   }
   
-  public void resetStatus() {
+  public synchronized int getFetchLimit() {
+    return this.mFetchLimit;
+  }
+
+  public synchronized void setFetchLimit(int fetchLimit) {
+    this.mFetchLimit = fetchLimit;
+  }
+
+  /**
+   * Record a completed alterRows request.
+   *
+   * @param rows
+   *          number of rows in the batch
+   * @param bytes
+   *          estimated size of the batch
+   * @param millis
+   *          time taken by the request
+   * @param nextTargetBytes
+   *          the size the following batches will aim for
+   */
+  public synchronized void recordUploadBatch(int rows, long bytes, long millis,
+      long nextTargetBytes) {
+    ++mUploadBatches;
+    mUploadRows += rows;
+    mUploadBytes += bytes;
+    mUploadMillis += millis;
+    mLastUploadBatchRows = rows;
+    mLastUploadBatchBytes = bytes;
+    mUploadTargetBytes = nextTargetBytes;
+  }
+
+  public synchronized int getUploadBatches() {
+    return this.mUploadBatches;
+  }
+
+  public synchronized int getUploadRows() {
+    return this.mUploadRows;
+  }
+
+  public synchronized long getUploadBytes() {
+    return this.mUploadBytes;
+  }
+
+  public synchronized long getUploadMillis() {
+    return this.mUploadMillis;
+  }
+
+  public synchronized int getLastUploadBatchRows() {
+    return this.mLastUploadBatchRows;
+  }
+
+  public synchronized long getLastUploadBatchBytes() {
+    return this.mLastUploadBatchBytes;
+  }
+
+  public synchronized long getUploadTargetBytes() {
+    return this.mUploadTargetBytes;
+  }
+
+  /**
+   * Record a retry of the push after the server rejected it with a 409
+   * (CONFLICT) because another client changed the table.
+   *
+   * @param backoffMillis
+   *          the delay before the retry
+   */
+  public synchronized void recordConflictRetry(long backoffMillis) {
+    ++mConflictRetries;
+    mConflictRetryMillis += backoffMillis;
+  }
+
+  public synchronized int getConflictRetries() {
+    return this.mConflictRetries;
+  }
+
+  public synchronized long getConflictRetryMillis() {
+    return this.mConflictRetryMillis;
+  }
+
+  public synchronized void resetStatus() {
     this.mStatus = Status.WORKING;
   }
 
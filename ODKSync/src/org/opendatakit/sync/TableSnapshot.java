@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2015 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.opendatakit.aggregate.odktables.rest.entity.Scope;
+import org.opendatakit.common.android.data.ColumnDefinition;
+import org.opendatakit.common.android.provider.DataTableColumns;
+
+/**
+ * A full copy of the rows of a table as of one dataETag, streamed from the
+ * server as a gzip-compressed, UTF-8, RFC 4180 CSV file.
+ * <p>
+ * The first record names the columns. It holds the metadata columns _id,
+ * _row_etag, _form_id, _locale, _savepoint_type, _savepoint_timestamp,
+ * _savepoint_creator, _filter_type and _filter_value, in any order, and the
+ * element keys of the table's unit-of-retention columns. Each following
+ * record is one (non-deleted) row. An unquoted empty field is null; a quoted
+ * empty field ("") is the empty string.
+ * <p>
+ * The rows are decoded one at a time, as the stream is read.
+ */
+public final class TableSnapshot {
+
+  private final String dataETag;
+  private final Reader in;
+  private final RowBatch batch;
+
+  private boolean headerRead = false;
+  private int headerWidth;
+  private int idxId = -1;
+  private int idxRowETag = -1;
+  private int idxFormId = -1;
+  private int idxLocale = -1;
+  private int idxSavepointType = -1;
+  private int idxSavepointTimestamp = -1;
+  private int idxSavepointCreator = -1;
+  private int idxFilterType = -1;
+  private int idxFilterValue = -1;
+  /** the positions and names of the data columns */
+  private final List<Integer> valueIndexes = new ArrayList<Integer>();
+  private final List<String> valueColumns = new ArrayList<String>();
+
+  // reused for every record
+  private final List<String> fields = new ArrayList<String>();
+  private final List<String> rowValues = new ArrayList<String>();
+  private final StringBuilder field = new StringBuilder();
+
+  /**
+   * @param dataETag
+   *          the dataETag of the table that the snapshot reflects.
+   * @param gzippedCsv
+   *          the response body. Closed by close().
+   * @param fileAttachmentColumns
+   *          the rowpath columns of the table (used to construct the SyncRows).
+   * @throws IOException
+   */
+  public TableSnapshot(String dataETag, InputStream gzippedCsv,
+      ArrayList<ColumnDefinition> fileAttachmentColumns) throws IOException {
+    this.dataETag = dataETag;
+    this.in = new BufferedReader(new InputStreamReader(new GZIPInputStream(gzippedCsv), "UTF-8"),
+        65536);
+    this.batch = new RowBatch(fileAttachmentColumns);
+  }
+
+  public String getDataETag() {
+    return dataETag;
+  }
+
+  /**
+   * Read the next row of the snapshot.
+   *
+   * @return the row, or null at the end of the snapshot.
+   * @throws IOException
+   *           if the stream cannot be read or is not a well-formed snapshot.
+   */
+  public SyncRow readRow() throws IOException {
+    if (!headerRead) {
+      readHeader();
+    }
+    if (!readRecord()) {
+      return null;
+    }
+    if (fields.size() != headerWidth) {
+      throw new IOException("snapshot record has " + fields.size() + " fields; expected "
+          + headerWidth);
+    }
+    rowValues.clear();
+    for (Integer idx : valueIndexes) {
+      rowValues.add(fields.get(idx));
+    }
+    String rowId = fields.get(idxId);
+    if (rowId == null || rowId.length() == 0) {
+      throw new IOException("snapshot record has no rowId");
+    }
+    return batch.newRow(rowId, get(idxRowETag), false, get(idxFormId), get(idxLocale),
+        get(idxSavepointType), get(idxSavepointTimestamp), get(idxSavepointCreator),
+        Scope.asScope(get(idxFilterType), get(idxFilterValue)), valueColumns, rowValues);
+  }
+
+  public void close() throws IOException {
+    in.close();
+  }
+
+  private String get(int idx) {
+    return (idx < 0) ? null : fields.get(idx);
+  }
+
+  private void readHeader() throws IOException {
+    if (!readRecord()) {
+      throw new IOException("snapshot has no header record");
+    }
+    for (int i = 0; i < fields.size(); ++i) {
+      String name = fields.get(i);
+      if (DataTableColumns.ID.equals(name)) {
+        idxId = i;
+      } else if (DataTableColumns.ROW_ETAG.equals(name)) {
+        idxRowETag = i;
+      } else if (DataTableColumns.FORM_ID.equals(name)) {
+        idxFormId = i;
+      } else if (DataTableColumns.LOCALE.equals(name)) {
+        idxLocale = i;
+      } else if (DataTableColumns.SAVEPOINT_TYPE.equals(name)) {
+        idxSavepointType = i;
+      } else if (DataTableColumns.SAVEPOINT_TIMESTAMP.equals(name)) {
+        idxSavepointTimestamp = i;
+      } else if (DataTableColumns.SAVEPOINT_CREATOR.equals(name)) {
+        idxSavepointCreator = i;
+      } else if (DataTableColumns.FILTER_TYPE.equals(name)) {
+        idxFilterType = i;
+      } else if (DataTableColumns.FILTER_VALUE.equals(name)) {
+        idxFilterValue = i;
+      } else if (name == null || name.length() == 0) {
+        throw new IOException("snapshot header has an unnamed column");
+      } else {
+        valueIndexes.add(i);
+        valueColumns.add(name);
+      }
+    }
+    if (idxId < 0 || idxRowETag < 0) {
+      throw new IOException("snapshot header lacks the " + DataTableColumns.ID + " or "
+          + DataTableColumns.ROW_ETAG + " column");
+    }
+    headerWidth = fields.size();
+    headerRead = true;
+  }
+
+  /**
+   * Read one CSV record into fields.
+   *
+   * @return false at the end of the stream.
+   * @throws IOException
+   */
+  private boolean readRecord() throws IOException {
+    fields.clear();
+    int ch = in.read();
+    if (ch == -1) {
+      return false;
+    }
+    for (;;) {
+      // at the start of a field
+      field.setLength(0);
+      boolean quoted = false;
+      if (ch == '"') {
+        quoted = true;
+        for (;;) {
+          ch = in.read();
+          if (ch == -1) {
+            throw new IOException("unterminated quoted field in snapshot");
+          }
+          if (ch == '"') {
+            ch = in.read();
+            if (ch != '"') {
+              break;
+            }
+          }
+          field.append((char) ch);
+        }
+      } else {
+        while (ch != ',' && ch != '\r' && ch != '\n' && ch != -1) {
+          field.append((char) ch);
+          ch = in.read();
+        }
+      }
+      fields.add((!quoted && field.length() == 0) ? null : field.toString());
+
+      if (ch == ',') {
+        ch = in.read();
+        continue;
+      }
+      if (ch == '\r') {
+        ch = in.read();
+        if (ch != '\n' && ch != -1) {
+          throw new IOException("malformed line end in snapshot");
+        }
+      } else if (ch != '\n' && ch != -1) {
+        throw new IOException("unexpected character after quoted field in snapshot");
+      }
+      return true;
+    }
+  }
+}
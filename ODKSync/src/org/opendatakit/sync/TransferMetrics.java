@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2015 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync;
+
+/**
+ * Counts of the app-level, table-level and attachment files transferred
+ * during a sync. Files are transferred on several threads at once, so the
+ * counts are updated under the object's lock.
+ */
+public class TransferMetrics {
+
+  private int mDownloads = 0;
+  private long mDownloadBytes = 0L;
+  private int mResumedDownloads = 0;
+  private long mResumedBytes = 0L;
+  private int mUploads = 0;
+  private long mUploadBytes = 0L;
+  private int mResumedUploads = 0;
+  private long mResumedUploadBytes = 0L;
+
+  /**
+   * Record a completed download.
+   *
+   * @param bytes
+   *          the bytes of the file received from the server in this sync
+   * @param resumedBytes
+   *          the bytes of the file that were kept from an earlier, interrupted
+   *          download and not fetched again; 0 if the download did not resume.
+   */
+  public synchronized void recordDownload(long bytes, long resumedBytes) {
+    ++mDownloads;
+    mDownloadBytes += bytes;
+    if (resumedBytes > 0L) {
+      ++mResumedDownloads;
+      mResumedBytes += resumedBytes;
+    }
+  }
+
+  public synchronized int getDownloads() {
+    return this.mDownloads;
+  }
+
+  public synchronized long getDownloadBytes() {
+    return this.mDownloadBytes;
+  }
+
+  public synchronized int getResumedDownloads() {
+    return this.mResumedDownloads;
+  }
+
+  public synchronized long getResumedBytes() {
+    return this.mResumedBytes;
+  }
+
+  /**
+   * Record a completed upload.
+   *
+   * @param bytes
+   *          the bytes of the file sent to the server in this sync
+   * @param resumedBytes
+   *          the bytes of the file the server already held from an earlier,
+   *          interrupted upload; 0 if the upload did not resume.
+   */
+  public synchronized void recordUpload(long bytes, long resumedBytes) {
+    ++mUploads;
+    mUploadBytes += bytes;
+    if (resumedBytes > 0L) {
+      ++mResumedUploads;
+      mResumedUploadBytes += resumedBytes;
+    }
+  }
+
+  public synchronized int getUploads() {
+    return this.mUploads;
+  }
+
+  public synchronized long getUploadBytes() {
+    return this.mUploadBytes;
+  }
+
+  public synchronized int getResumedUploads() {
+    return this.mResumedUploads;
+  }
+
+  public synchronized long getResumedUploadBytes() {
+    return this.mResumedUploadBytes;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "downloads: " + mDownloads + " (" + mDownloadBytes + " bytes), resumed: "
+        + mResumedDownloads + " (" + mResumedBytes + " bytes not fetched again); uploads: "
+        + mUploads + " (" + mUploadBytes + " bytes), resumed: " + mResumedUploads + " ("
+        + mResumedUploadBytes + " bytes not sent again)";
+  }
+}
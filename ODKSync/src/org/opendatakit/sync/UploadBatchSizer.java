@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2015 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync;
+
+import java.util.List;
+
+/**
+ * Splits the rows to be sent to the server by alterRows into batches by their
+ * estimated serialized size, subject to a cap on the number of rows.
+ * <p>
+ * The byte target starts at INITIAL_TARGET_BYTES and then follows the
+ * observed upload throughput so that each request takes about
+ * TARGET_UPLOAD_MS -- well within the request timeouts -- whether the rows
+ * are narrow or wide. A failed upload halves the target.
+ */
+final class UploadBatchSizer {
+
+  static final long INITIAL_TARGET_BYTES = 256L * 1024L;
+  static final long MIN_TARGET_BYTES = 16L * 1024L;
+  static final long MAX_TARGET_BYTES = 4L * 1024L * 1024L;
+
+  private static final long TARGET_UPLOAD_MS = 5000L;
+
+  /**
+   * Allowance for the JSON punctuation around each value, and for the fixed
+   * fields of each row.
+   */
+  private static final int PER_VALUE_OVERHEAD = 32;
+  private static final int PER_ROW_OVERHEAD = 256;
+
+  private final int maxRows;
+  private long targetBytes = INITIAL_TARGET_BYTES;
+
+  UploadBatchSizer(int maxRows) {
+    this.maxRows = maxRows;
+  }
+
+  private static int length(String value) {
+    return (value == null) ? 4 : value.length();
+  }
+
+  /**
+   * Estimate the size of the row as sent to the server. String lengths are
+   * used in place of their UTF-8 encoded lengths.
+   *
+   * @param row
+   * @return the estimated number of bytes
+   */
+  static long estimateBytes(SyncRow row) {
+    long bytes = PER_ROW_OVERHEAD + length(row.getRowId()) + length(row.getRowETag())
+        + length(row.getFormId()) + length(row.getLocale()) + length(row.getSavepointType())
+        + length(row.getSavepointTimestamp()) + length(row.getSavepointCreator());
+    for (int i = 0; i < row.getValueCount(); ++i) {
+      bytes += PER_VALUE_OVERHEAD + length(row.getColumn(i)) + length(row.getValue(i));
+    }
+    return bytes;
+  }
+
+  long getTargetBytes() {
+    return targetBytes;
+  }
+
+  /**
+   * Determine the end of the batch beginning at offset. The batch has at
+   * least one row, at most maxRows rows, and otherwise stops before the row
+   * that would take it past the byte target.
+   *
+   * @param rows
+   * @param offset
+   * @return the (exclusive) end index of the batch.
+   */
+  int nextBatchEnd(List<SyncRow> rows, int offset) {
+    int end = offset;
+    long bytes = 0L;
+    while (end < rows.size() && end - offset < maxRows) {
+      long rowBytes = estimateBytes(rows.get(end));
+      if (end != offset && bytes + rowBytes > targetBytes) {
+        break;
+      }
+      bytes += rowBytes;
+      ++end;
+    }
+    return end;
+  }
+
+  /**
+   * Adjust the byte target from the throughput of a completed upload.
+   *
+   * @param bytes
+   *          estimated size of the batch
+   * @param elapsedMs
+   *          time taken by the alterRows request
+   */
+  void batchCompleted(long bytes, long elapsedMs) {
+    if (bytes <= 0L) {
+      return;
+    }
+    long target = bytes * TARGET_UPLOAD_MS / Math.max(1L, elapsedMs);
+    // grow gradually, shrink immediately.
+    target = Math.min(target, 2L * targetBytes);
+    targetBytes = Math.max(MIN_TARGET_BYTES, Math.min(MAX_TARGET_BYTES, target));
+  }
+
+  /**
+   * An upload failed (e.g., timed out); send less next time.
+   */
+  void batchFailed() {
+    targetBytes = Math.max(MIN_TARGET_BYTES, targetBytes / 2L);
+  }
+}
@@ -18,7 +18,9 @@ package org.opendatakit.sync.aggregate;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.CookieHandler;
 import java.net.CookieManager;
@@ -27,8 +29,11 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.GregorianCalendar;
@@ -49,6 +54,7 @@ import org.apache.commons.lang3.CharEncoding;
 import org.apache.http.HttpStatus;
 import org.apache.wink.client.ClientConfig;
 import org.apache.wink.client.ClientResponse;
+import org.apache.wink.client.ClientRuntimeException;
 import org.apache.wink.client.ClientWebException;
 import org.apache.wink.client.EntityType;
 import org.apache.wink.client.Resource;
@@ -62,20 +68,24 @@ import org.opendatakit.aggregate.odktables.rest.entity.OdkTablesFileManifestEntr
 import org.opendatakit.aggregate.odktables.rest.entity.Row;
 import org.opendatakit.aggregate.odktables.rest.entity.RowList;
 import org.opendatakit.aggregate.odktables.rest.entity.RowOutcomeList;
-import org.opendatakit.aggregate.odktables.rest.entity.RowResourceList;
 import org.opendatakit.aggregate.odktables.rest.entity.TableDefinition;
 import org.opendatakit.aggregate.odktables.rest.entity.TableDefinitionResource;
 import org.opendatakit.aggregate.odktables.rest.entity.TableResource;
 import org.opendatakit.aggregate.odktables.rest.entity.TableResourceList;
+import org.opendatakit.common.android.data.ColumnDefinition;
 import org.opendatakit.common.android.utilities.ODKFileUtils;
 import org.opendatakit.common.android.utilities.SyncETagsUtils;
 import org.opendatakit.common.android.utilities.WebLogger;
 import org.opendatakit.common.android.utilities.WebUtils;
 import org.opendatakit.sync.R;
+import org.opendatakit.sync.RowDigests;
 import org.opendatakit.sync.SyncPreferences;
 import org.opendatakit.sync.SyncRow;
+import org.opendatakit.sync.SyncRowPage;
 import org.opendatakit.sync.SyncRowPending;
 import org.opendatakit.sync.Synchronizer;
+import org.opendatakit.sync.TableSnapshot;
+import org.opendatakit.sync.TransferMetrics;
 import org.opendatakit.sync.application.Sync;
 import org.opendatakit.sync.exceptions.InvalidAuthTokenException;
 import org.opendatakit.sync.service.SyncProgressState;
@@ -117,6 +127,22 @@ public class AggregateSynchronizer implements Synchronizer {
 
   private static final String FORWARD_SLASH = "/";
 
+  private static final String RANGE_HEADER = "Range";
+  private static final String IF_RANGE_HEADER = "If-Range";
+  private static final String CONTENT_RANGE_HEADER = "Content-Range";
+
+  /**
+   * While a file is being downloaded, the length received is recorded after
+   * every this many bytes, so an interrupted download can be resumed.
+   */
+  private static final long PARTIAL_DOWNLOAD_SAVE_INTERVAL = 512L * 1024L;
+
+  /** files larger than this are uploaded in chunks, if the server allows it */
+  private static final long CHUNKED_UPLOAD_MIN_BYTES = 1024L * 1024L;
+
+  /** under the cache folder: the chunked uploads that are not yet committed */
+  private static final String UPLOAD_SESSIONS_FOLDER = "uploads";
+
   static Map<String, String> mimeMapping;
   static {
 
@@ -170,7 +196,8 @@ public class AggregateSynchronizer implements Synchronizer {
   private final String appName;
   private final String odkClientApiVersion;
   private final String aggregateUri;
-  private String accessToken;
+  // tables may be synced concurrently; see updateAccessToken()
+  private volatile String accessToken;
   private final RestClient tokenRt;
   private final RestClient rt;
   private final Map<String, TableResource> resources;
@@ -179,6 +206,18 @@ public class AggregateSynchronizer implements Synchronizer {
   private final WebLogger log;
   // cookie manager 
   private final CookieManager cm;
+  /**
+   * false once the server has shown that it does not accept requests for the
+   * file manifests of several rows at once.
+   */
+  private volatile boolean batchInstanceManifests = true;
+
+  /**
+   * false once the server has shown that it does not accept chunked uploads.
+   */
+  private volatile boolean chunkedUploads = true;
+
+  private volatile TransferMetrics transferMetrics = new TransferMetrics();
 
 
   private final URI normalizeUri(String aggregateUri, String additionalPathPortion) {
@@ -395,7 +434,7 @@ public class AggregateSynchronizer implements Synchronizer {
 
     this.tokenRt = new RestClient(cc);
 
-    this.resources = new HashMap<String, TableResource>();
+    this.resources = Collections.synchronizedMap(new HashMap<String, TableResource>());
 
     checkAccessToken(accessToken);
     this.accessToken = accessToken;
@@ -405,7 +444,7 @@ public class AggregateSynchronizer implements Synchronizer {
   private static final String ACCOUNT_TYPE_G = "com.google";
   private final static String authString = "oauth2:https://www.googleapis.com/auth/userinfo.email";
 
-  public String updateAccessToken() throws InvalidAuthTokenException {
+  public synchronized String updateAccessToken() throws InvalidAuthTokenException {
     AccountManager accountManager = AccountManager.get(context);
     try {
       SyncPreferences prefs = new SyncPreferences(context, appName);
@@ -453,19 +492,21 @@ public class AggregateSynchronizer implements Synchronizer {
   }
 
   @Override
-  public TableResourceList getTables(String webSafeResumeCursor) throws ClientWebException, InvalidAuthTokenException {
+  public TableResourceList getTables(String webSafeResumeCursor, int fetchLimit) throws ClientWebException, InvalidAuthTokenException {
 
     TableResourceList tableResources;
     try {
       String tableFrag = getTablesUriFragment();
       tableFrag = tableFrag.substring(0, tableFrag.length() - 1);
       URI uri = normalizeUri(aggregateUri, tableFrag);
-      if ( webSafeResumeCursor == null ) {
-        tableResources = buildResource(uri).get(TableResourceList.class);
-      } else {
-        tableResources = buildResource(uri).queryParam(CURSOR_PARAMETER, webSafeResumeCursor)
-            .get(TableResourceList.class);
+      Resource resource = buildResource(uri);
+      if ( webSafeResumeCursor != null ) {
+        resource = resource.queryParam(CURSOR_PARAMETER, webSafeResumeCursor);
       }
+      if ( fetchLimit > 0 ) {
+        resource = resource.queryParam(FETCH_LIMIT, Integer.toString(fetchLimit));
+      }
+      tableResources = resource.get(TableResourceList.class);
     } catch (ClientWebException e) {
       log.e(LOGTAG, "Exception while requesting list of tables from server: " + e.toString());
       throw e;
@@ -488,6 +529,11 @@ public class AggregateSynchronizer implements Synchronizer {
     URI instanceFileUri = normalizeUri(aggregateUri, getTablesUriFragment() + tableId + "/ref/" + schemaETag + "/attachments");
     return instanceFileUri;
   }
+
+  @Override
+  public void setTransferMetrics(TransferMetrics transferMetrics) {
+    this.transferMetrics = transferMetrics;
+  }
   
   @Override
   public TableResource createTable(String tableId, String schemaETag, ArrayList<Column> columns)
@@ -544,7 +590,8 @@ public class AggregateSynchronizer implements Synchronizer {
   }
   
   @Override
-  public RowResourceList getChangeSet(TableResource table, String dataETag, boolean activeOnly, String websafeResumeCursor)
+  public SyncRowPage getChangeSet(TableResource table, String dataETag, boolean activeOnly,
+      String websafeResumeCursor, int fetchLimit, ArrayList<ColumnDefinition> fileAttachmentColumns)
       throws ClientWebException, InvalidAuthTokenException {
 
     String tableId = table.getTableId();
@@ -565,11 +612,13 @@ public class AggregateSynchronizer implements Synchronizer {
     if ( websafeResumeCursor != null ) {
       resource = resource.queryParam(CURSOR_PARAMETER, websafeResumeCursor);
     }
+    // and the page size...
+    if ( fetchLimit > 0 ) {
+      resource = resource.queryParam(FETCH_LIMIT, Integer.toString(fetchLimit));
+    }
     
-    RowResourceList rows;
     try {
-      rows = resource.get(RowResourceList.class);
-      return rows;
+      return readSyncRowPage(resource, fileAttachmentColumns);
     } catch (ClientWebException e) {
       log.e(LOGTAG, "Exception while requesting changeSet rows from server: " + tableId
           + " exception: " + e.toString());
@@ -579,7 +628,8 @@ public class AggregateSynchronizer implements Synchronizer {
 
 
   @Override
-  public RowResourceList getUpdates(TableResource table, String dataETag, String websafeResumeCursor)
+  public SyncRowPage getUpdates(TableResource table, String dataETag, String websafeResumeCursor,
+      int fetchLimit, ArrayList<ColumnDefinition> fileAttachmentColumns)
       throws ClientWebException, InvalidAuthTokenException {
 
     String tableId = table.getTableId();
@@ -596,10 +646,12 @@ public class AggregateSynchronizer implements Synchronizer {
     if ( websafeResumeCursor != null ) {
       resource = resource.queryParam(CURSOR_PARAMETER, websafeResumeCursor);
     }
-    RowResourceList rows;
+    // and the page size...
+    if ( fetchLimit > 0 ) {
+      resource = resource.queryParam(FETCH_LIMIT, Integer.toString(fetchLimit));
+    }
     try {
-      rows = resource.get(RowResourceList.class);
-      return rows;
+      return readSyncRowPage(resource, fileAttachmentColumns);
     } catch (ClientWebException e) {
       log.e(LOGTAG, "Exception while requesting list of rows from server: " + tableId
           + " exception: " + e.toString());
@@ -607,6 +659,77 @@ public class AggregateSynchronizer implements Synchronizer {
     }
   }
 
+  /**
+   * ODK Aggregate does not provide table snapshots; the rows of an empty
+   * table are pulled page by page with getUpdates.
+   */
+  @Override
+  public TableSnapshot getTableSnapshot(TableResource table,
+      ArrayList<ColumnDefinition> fileAttachmentColumns) {
+    return null;
+  }
+
+  /**
+   * ODK Aggregate does not provide row digests; a table whose dataETag has
+   * been lost is pulled in full.
+   */
+  @Override
+  public RowDigests getRowDigests(TableResource table, int bucketCount) {
+    return null;
+  }
+
+  /**
+   * ODK Aggregate does not provide row digests, or the rows of their
+   * buckets.
+   */
+  @Override
+  public SyncRowPage getRowsInBuckets(TableResource table, int bucketCount,
+      List<Integer> buckets, String websafeResumeCursor, int fetchLimit,
+      ArrayList<ColumnDefinition> fileAttachmentColumns) {
+    return null;
+  }
+
+  /**
+   * Issue the GET and decode the RowResourceList in the response directly
+   * into a SyncRowPage, one row at a time.
+   *
+   * @param resource
+   * @param fileAttachmentColumns
+   * @return the page of rows
+   * @throws ClientWebException
+   */
+  private SyncRowPage readSyncRowPage(Resource resource,
+      ArrayList<ColumnDefinition> fileAttachmentColumns) throws ClientWebException {
+    long startTime = System.currentTimeMillis();
+    ClientResponse rsp = resource.get();
+    if (rsp.getStatusCode() < 200 || rsp.getStatusCode() >= 300) {
+      rsp.consumeContent();
+      throw new ClientWebException(null, rsp);
+    }
+
+    SyncRowPage page = new SyncRowPage();
+    page.setLatencyMillis(System.currentTimeMillis() - startTime);
+    InputStream is = null;
+    try {
+      // open the InputStream of the (uncompressed) entity body...
+      is = rsp.getEntity(InputStream.class);
+      SyncRowPageReader.read(is, fileAttachmentColumns, page);
+    } catch (IOException e) {
+      log.printStackTrace(e);
+      throw new ClientWebException(null, rsp);
+    } finally {
+      if (is != null) {
+        try {
+          is.close();
+        } catch (Exception e) {
+          // no-op
+        }
+      }
+      rsp.consumeContent();
+    }
+    return page;
+  }
+
   @Override
   public RowOutcomeList alterRows(TableResource resource,
       List<SyncRow> rowsToInsertUpdateOrDelete) throws ClientWebException, InvalidAuthTokenException {
@@ -1174,6 +1297,144 @@ public class AggregateSynchronizer implements Synchronizer {
     return true;
   }
 
+  /**
+   * Upload an instance file attachment, in chunks if the server supports it
+   * and the file is large (see ChunkedUpload), otherwise in a single POST.
+   *
+   * @param instanceFileUri
+   * @param rowId
+   * @param cat
+   * @return true if the file is now on the server
+   * @throws InvalidAuthTokenException
+   */
+  private boolean uploadInstanceFile(String instanceFileUri, String rowId,
+      CommonFileAttachmentTerms cat) throws InvalidAuthTokenException {
+    File file = cat.localFile;
+    if (chunkedUploads && file.length() > CHUNKED_UPLOAD_MIN_BYTES) {
+      UploadSession request = new UploadSession();
+      request.rowId = rowId;
+      request.filename = cat.instancePath;
+      request.contentType = determineContentType(file.getName());
+      request.contentLength = file.length();
+      request.md5hash = ODKFileUtils.getMd5Hash(appName, file);
+      ChunkedUpload upload = new ChunkedUpload(new ServerUploadTransport(instanceFileUri),
+          new File(new File(context.getCacheDir(), UPLOAD_SESSIONS_FOLDER), appName));
+      try {
+        ChunkedUpload.Outcome outcome = upload.upload(cat.instanceFileDownloadUri.toString(),
+            file, request);
+        if (outcome == ChunkedUpload.Outcome.COMMITTED) {
+          transferMetrics.recordUpload(upload.getBytesSent(), upload.getBytesResumed());
+          return true;
+        } else if (outcome == ChunkedUpload.Outcome.FAILED) {
+          log.e(LOGTAG, "[uploadFile] chunked upload failed: " + cat.instanceFileDownloadUri);
+          return false;
+        }
+        // an older server; POST the whole file instead.
+        log.i(LOGTAG, "[uploadFile] server does not accept chunked uploads");
+        chunkedUploads = false;
+      } catch (IOException e) {
+        // the session is kept, and resumed by the next sync
+        log.e(LOGTAG, "[uploadFile] chunked upload interrupted after "
+            + (upload.getBytesResumed() + upload.getBytesSent()) + " bytes: " + e.toString());
+        return false;
+      }
+    }
+    if (uploadInstanceFile(file, cat.instanceFileDownloadUri)) {
+      transferMetrics.recordUpload(file.length(), 0L);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * The requests of the chunked upload protocol, made to the server.
+   */
+  private final class ServerUploadTransport implements ChunkedUpload.Transport {
+    private final String instanceFileUri;
+
+    ServerUploadTransport(String instanceFileUri) {
+      this.instanceFileUri = instanceFileUri;
+    }
+
+    private UploadSession getEntity(ClientResponse rsp, String action) throws IOException {
+      int statusCode = rsp.getStatusCode();
+      if (statusCode < 200 || statusCode >= 300
+          || !rsp.getHeaders().containsKey(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER)) {
+        rsp.consumeContent();
+        throw new IOException(action + " returns " + statusCode);
+      }
+      UploadSession session = rsp.getEntity(UploadSession.class);
+      if (session == null) {
+        throw new IOException(action + " returns no upload session");
+      }
+      return session;
+    }
+
+    @Override
+    public UploadSession createSession(UploadSession request) throws IOException,
+        InvalidAuthTokenException {
+      URI uploadsUri = normalizeUri(instanceFileUri, "uploads");
+      try {
+        ClientResponse rsp = buildResource(uploadsUri).post(request);
+        int statusCode = rsp.getStatusCode();
+        if (statusCode == HttpStatus.SC_NOT_FOUND
+            || statusCode == HttpStatus.SC_METHOD_NOT_ALLOWED) {
+          rsp.consumeContent();
+          return null;
+        }
+        return getEntity(rsp, "starting upload");
+      } catch (ClientRuntimeException e) {
+        throw new IOException("starting upload failed: " + e.toString());
+      }
+    }
+
+    @Override
+    public UploadSession getSession(String uploadUri) throws IOException,
+        InvalidAuthTokenException {
+      try {
+        ClientResponse rsp = buildResource(URI.create(uploadUri)).get();
+        int statusCode = rsp.getStatusCode();
+        if (statusCode == HttpStatus.SC_NOT_FOUND || statusCode == HttpStatus.SC_GONE) {
+          rsp.consumeContent();
+          return null;
+        }
+        return getEntity(rsp, "getting upload state");
+      } catch (ClientRuntimeException e) {
+        throw new IOException("getting upload state failed: " + e.toString());
+      }
+    }
+
+    @Override
+    public long putChunk(String uploadUri, byte[] chunk, int length, long offset,
+        long contentLength) throws IOException, InvalidAuthTokenException {
+      byte[] body = (length == chunk.length) ? chunk : Arrays.copyOf(chunk, length);
+      Resource rsc = buildResource(URI.create(uploadUri), MediaType.APPLICATION_OCTET_STREAM_TYPE);
+      rsc.header(CONTENT_RANGE_HEADER, "bytes " + offset + "-" + (offset + length - 1) + "/"
+          + contentLength);
+      try {
+        return getEntity(rsc.put(body), "uploading chunk").bytesReceived;
+      } catch (ClientRuntimeException e) {
+        throw new IOException("uploading chunk failed: " + e.toString());
+      }
+    }
+
+    @Override
+    public boolean commit(String uploadUri) throws IOException, InvalidAuthTokenException {
+      URI commitUri = normalizeUri(uploadUri, "commit");
+      try {
+        ClientResponse rsp = buildResource(commitUri).post(null);
+        int statusCode = rsp.getStatusCode();
+        rsp.consumeContent();
+        if (statusCode < 200 || statusCode >= 300) {
+          return false;
+        }
+        return rsp.getHeaders().containsKey(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER);
+      } catch (ClientRuntimeException e) {
+        throw new IOException("committing upload failed: " + e.toString());
+      }
+    }
+  }
+
   private boolean uploadInstanceFile(File file, URI instanceFileUri) throws InvalidAuthTokenException {
     log.i(LOGTAG, "[uploadFile] filePostUri: " + instanceFileUri.toString());
     String ct = determineContentType(file.getName());
@@ -1250,10 +1511,10 @@ public class AggregateSynchronizer implements Synchronizer {
         // the file doesn't exist on the system
         // filesToDL.add(newFile);
         try {
-          int statusCode = downloadFile(newFile, uri);
-          if (statusCode == HttpStatus.SC_OK) {
+          DownloadOutcome outcome = downloadFile(newFile, uri, null);
+          if (outcome.statusCode == HttpStatus.SC_OK) {
             seu.updateFileSyncETag(context, appName, uri, tableId, newFile.lastModified(),
-                entry.md5hash);
+                outcome.md5hash);
             return true;
           } else {
             return false;
@@ -1279,10 +1540,12 @@ public class AggregateSynchronizer implements Synchronizer {
           hasUpToDateEntry = false;
           // it's not up to date, we need to download it.
           try {
-            int statusCode = downloadFile(newFile, uri);
-            if (statusCode == HttpStatus.SC_OK || statusCode == HttpStatus.SC_NOT_MODIFIED) {
+            DownloadOutcome outcome = downloadFile(newFile, uri, md5hash);
+            if (outcome.statusCode == HttpStatus.SC_OK
+                || outcome.statusCode == HttpStatus.SC_NOT_MODIFIED) {
+              // record the hash of the content now on the device
               seu.updateFileSyncETag(context, appName, uri, tableId, newFile.lastModified(),
-                  md5hash);
+                  outcome.md5hash);
               return true;
             } else {
               return false;
@@ -1305,66 +1568,154 @@ public class AggregateSynchronizer implements Synchronizer {
   }
 
   /**
+   * Download a file, resuming an earlier download of the same version of the
+   * file that was interrupted part-way through (see PartialDownload). The file
+   * is written to a .tmp file that is only renamed to destFile once it is
+   * complete.
+   *
+   * The md5 hash of the file is computed as it is written, so the file need
+   * not be read again to record its hash.
    *
    * @param destFile
    * @param downloadUrl
-   * @return true if the download was successful
+   * @param localMd5Hash
+   *          the md5 hash of destFile, if it exists and the caller knows it;
+   *          otherwise null, and it is computed if destFile exists.
+   * @return the HTTP status, SC_OK if the download was successful, and the
+   *         md5 hash of destFile if it is SC_OK or SC_NOT_MODIFIED.
    * @throws Exception
    */
-  private int downloadFile(File destFile, URI downloadUrl) throws Exception {
+  private DownloadOutcome downloadFile(File destFile, URI downloadUrl, String localMd5Hash)
+      throws Exception {
 
     // WiFi network connections can be renegotiated during a large form download
     // sequence.
     // This will cause intermittent download failures. Silently retry once after
     // each
     // failure. Only if there are two consecutive failures, do we abort.
+    // The retries pick up where the failed attempt left off.
     boolean success = false;
+    String md5Hash = null;
+    int lastStatusCode = HttpStatus.SC_OK;
+    if (!destFile.exists()) {
+      localMd5Hash = null;
+    } else if (localMd5Hash == null) {
+      localMd5Hash = ODKFileUtils.getMd5Hash(appName, destFile);
+    }
     int attemptCount = 0;
     while (!success && attemptCount++ <= 2) {
 
       Resource resource = buildFileDownloadResource(downloadUrl);
-      if ( destFile.exists() ) {
-        String md5Hash = ODKFileUtils.getMd5Hash(appName, destFile);
-        resource.header(HttpHeaders.IF_NONE_MATCH, md5Hash);
+      if (localMd5Hash != null) {
+        resource.header(HttpHeaders.IF_NONE_MATCH, localMd5Hash);
       }
-      
+
+      // ask for the rest of the file, provided it has not changed since
+      // the partial download was made.
+      PartialDownload partial = PartialDownload.load(destFile);
+      if (partial != null) {
+        resource.header(RANGE_HEADER, "bytes=" + partial.length + "-");
+        resource.header(IF_RANGE_HEADER, partial.eTag);
+      }
+
       ClientResponse response = null;
       try {
         response = resource.get();
         int statusCode = response.getStatusCode();
 
-        if (statusCode != HttpStatus.SC_OK) {
+        lastStatusCode = statusCode;
+
+        if (statusCode == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE && partial != null) {
+          // the partial download is no longer of use
+          response.consumeContent();
+          log.w(LOGTAG, "downloading " + downloadUrl.toString()
+              + " could not resume after " + partial.length + " bytes");
+          PartialDownload.discard(destFile);
+          continue;
+        }
+
+        if (statusCode != HttpStatus.SC_OK && statusCode != HttpStatus.SC_PARTIAL_CONTENT) {
           response.consumeContent();
           if (statusCode == HttpStatus.SC_UNAUTHORIZED) {
             // clear the cookies -- should not be necessary?
             // ss: might just be a collect thing?
           }
           log.w(LOGTAG, "downloading " + downloadUrl.toString() + " returns " + statusCode);
-          return statusCode;
+          if (statusCode == HttpStatus.SC_NOT_MODIFIED) {
+            // the server holds the same content as destFile
+            return new DownloadOutcome(statusCode, localMd5Hash);
+          }
+          return new DownloadOutcome(statusCode, null);
         }
         
         if (!response.getHeaders().containsKey(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER)) {
           response.consumeContent();
           log.w(LOGTAG, "downloading " + downloadUrl.toString() + " appears to have been redirected.");
-          return 302;
+          return new DownloadOutcome(302, null);
         }
-        
-        File tmp = new File(destFile.getParentFile(), destFile.getName() + ".tmp");
-        int totalLen = 0;
+
+        // offsets only count the bytes of the file if the body is not
+        // compressed on the wire.
+        String contentEncoding = response.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING);
+        boolean identityEncoded = (contentEncoding == null
+            || contentEncoding.trim().length() == 0
+            || contentEncoding.trim().equalsIgnoreCase("identity"));
+
+        long offset = 0L;
+        if (statusCode == HttpStatus.SC_PARTIAL_CONTENT) {
+          if (partial == null || !identityEncoded
+              || contentRangeStart(response.getHeaders().getFirst(CONTENT_RANGE_HEADER))
+                  != partial.length) {
+            // not the remainder of the partial download
+            response.consumeContent();
+            log.w(LOGTAG, "downloading " + downloadUrl.toString()
+                + " returned an unexpected range; restarting");
+            PartialDownload.discard(destFile);
+            continue;
+          }
+          offset = partial.length;
+        }
+
+        // the ETag lets a later attempt resume this download
+        String eTag = response.getHeaders().getFirst(HttpHeaders.ETAG);
+        boolean resumable = (eTag != null && identityEncoded);
+
+        File tmp = PartialDownload.tmpFileFor(destFile);
+        File sidecar = PartialDownload.sidecarFor(destFile);
+        if (offset == 0L && sidecar.exists()) {
+          // the server sent the whole file
+          sidecar.delete();
+        }
+        long totalLen = offset;
+        boolean keepPartial = false;
         InputStream is = null;
         BufferedOutputStream os = null;
         try {
+          // hash the bytes kept from the earlier attempt; the rest are hashed
+          // as they are written.
+          MessageDigest md = MessageDigest.getInstance("MD5");
+          if (offset != 0L) {
+            digestFile(md, tmp);
+          }
+
           // open the InputStream of the (uncompressed) entity body...
           is = response.getEntity(InputStream.class);
-          os = new BufferedOutputStream(new FileOutputStream(tmp));
+          os = new BufferedOutputStream(new DigestOutputStream(
+              new FileOutputStream(tmp, offset != 0L), md));
           
           // write connection to temporary file
           byte buf[] = new byte[8192];
           int len;
+          long savedLen = offset;
           while ((len = is.read(buf, 0, buf.length)) >= 0) {
             if (len != 0) {
               totalLen += len;
               os.write(buf, 0, len);
+              if (resumable && totalLen - savedLen >= PARTIAL_DOWNLOAD_SAVE_INTERVAL) {
+                os.flush();
+                PartialDownload.save(destFile, totalLen, eTag);
+                savedLen = totalLen;
+              }
             }
           }
           is.close();
@@ -1375,6 +1726,11 @@ public class AggregateSynchronizer implements Synchronizer {
           os = null;
 
           success = tmp.renameTo(destFile);
+          if (success) {
+            md5Hash = toMd5Hash(md.digest());
+            sidecar.delete();
+            transferMetrics.recordDownload(totalLen - offset, offset);
+          }
         } catch (Exception e) {
           // most likely a socket timeout
           e.printStackTrace();
@@ -1386,7 +1742,25 @@ public class AggregateSynchronizer implements Synchronizer {
           } catch ( Exception ex ) {
             // ignore
           }
-          throw e;
+          if (resumable && os != null) {
+            // keep the bytes that reached storage for the next attempt
+            try {
+              os.flush();
+            } catch (Exception ex) {
+              // ignore
+            }
+            try {
+              os.close();
+            } catch (Exception ex) {
+              // ignore
+            }
+            os = null;
+            long savedLen = Math.min(tmp.length(), totalLen);
+            keepPartial = (savedLen > 0L && PartialDownload.save(destFile, savedLen, eTag));
+          }
+          if (!(e instanceof IOException) || attemptCount > 2) {
+            throw e;
+          }
         } finally {
           if (os != null) {
             try {
@@ -1410,8 +1784,8 @@ public class AggregateSynchronizer implements Synchronizer {
               // no-op
             }
           }
-          if (tmp.exists()) {
-            tmp.delete();
+          if (!success && !keepPartial) {
+            PartialDownload.discard(destFile);
           }
           response.consumeContent();
         }
@@ -1425,12 +1799,89 @@ public class AggregateSynchronizer implements Synchronizer {
         }
       }
     }
-    return HttpStatus.SC_OK;
+    return success ? new DownloadOutcome(HttpStatus.SC_OK, md5Hash)
+        : new DownloadOutcome(lastStatusCode, null);
+  }
+
+  /**
+   * Add the content of a file to a digest.
+   *
+   * @param md
+   * @param file
+   * @throws IOException
+   */
+  private static void digestFile(MessageDigest md, File file) throws IOException {
+    InputStream is = new FileInputStream(file);
+    try {
+      byte buf[] = new byte[8192];
+      int len;
+      while ((len = is.read(buf, 0, buf.length)) >= 0) {
+        md.update(buf, 0, len);
+      }
+    } finally {
+      is.close();
+    }
+  }
+
+  /**
+   * @param digest
+   *          an MD5 digest
+   * @return the digest in the form of ODKFileUtils.getMd5Hash(), "md5:"
+   *         followed by 32 lowercase hex digits.
+   */
+  static String toMd5Hash(byte[] digest) {
+    StringBuilder b = new StringBuilder("md5:");
+    for (byte d : digest) {
+      b.append(Character.forDigit((d >> 4) & 0xf, 16));
+      b.append(Character.forDigit(d & 0xf, 16));
+    }
+    return b.toString();
+  }
+
+  /**
+   * @param contentRange
+   *          the value of a Content-Range header, e.g., "bytes 100-199/200"
+   * @return the offset of the first byte of the range, or -1 if it cannot be
+   *         parsed.
+   */
+  private static long contentRangeStart(String contentRange) {
+    if (contentRange == null) {
+      return -1L;
+    }
+    String value = contentRange.trim();
+    if (!value.toLowerCase(Locale.US).startsWith("bytes ")) {
+      return -1L;
+    }
+    int dash = value.indexOf('-');
+    if (dash == -1) {
+      return -1L;
+    }
+    try {
+      return Long.parseLong(value.substring("bytes ".length(), dash).trim());
+    } catch (NumberFormatException e) {
+      return -1L;
+    }
+  }
+
+  /**
+   * The result of downloadFile().
+   */
+  private static final class DownloadOutcome {
+    final int statusCode;
+    /** the md5 hash of the local file; null unless SC_OK or SC_NOT_MODIFIED */
+    final String md5hash;
+
+    DownloadOutcome(int statusCode, String md5hash) {
+      this.statusCode = statusCode;
+      this.md5hash = md5hash;
+    }
   }
 
   private static final class CommonFileAttachmentTerms {
     File localFile;
     URI instanceFileDownloadUri;
+    /** path of the file relative to the instance folder */
+    String instancePath;
   }
 
   private CommonFileAttachmentTerms computeCommonFileAttachmentTerms(String instanceFileUri, String instanceId, File instanceFolder, String relativePath) {
@@ -1464,6 +1915,7 @@ public class AggregateSynchronizer implements Synchronizer {
     CommonFileAttachmentTerms cat = new CommonFileAttachmentTerms();
     cat.localFile = localFile;
     cat.instanceFileDownloadUri = instanceFileDownloadUri;
+    cat.instancePath = partialValue;
     
     return cat;
   }
@@ -1500,6 +1952,7 @@ public class AggregateSynchronizer implements Synchronizer {
       // 3) get all the files in that folder...
       List<String> relativePathsToAppFolderOnDevice = getAllFilesUnderFolder(
           instanceFolder, null);
+      Set<String> appFolderRelativeAttachmentPaths = new HashSet<String>();
 
       // 4) Iterate over all non-null file attachments in the data row
       for (String relativePath : serverRow.getUriFragments()) {
@@ -1513,6 +1966,7 @@ public class AggregateSynchronizer implements Synchronizer {
         String appFolderRelativePath = ODKFileUtils.asRelativePath(appName, cat.localFile);
         // remove it from the local files list
         relativePathsToAppFolderOnDevice.remove(appFolderRelativePath);
+        appFolderRelativeAttachmentPaths.add(appFolderRelativePath);
 
         if (!cat.localFile.exists()) {
 
@@ -1520,11 +1974,12 @@ public class AggregateSynchronizer implements Synchronizer {
             return false;
           }
 
-          int statusCode = downloadFile(cat.localFile, cat.instanceFileDownloadUri);
-          if (statusCode == HttpStatus.SC_OK || statusCode == HttpStatus.SC_NOT_MODIFIED) { 
-            String md5Hash = ODKFileUtils.getMd5Hash(appName, cat.localFile);
+          DownloadOutcome outcome = downloadFile(cat.localFile, cat.instanceFileDownloadUri,
+              null);
+          if (outcome.statusCode == HttpStatus.SC_OK
+              || outcome.statusCode == HttpStatus.SC_NOT_MODIFIED) {
             seu.updateFileSyncETag(context, appName, cat.instanceFileDownloadUri, tableId,
-                cat.localFile.lastModified(), md5Hash);
+                cat.localFile.lastModified(), outcome.md5hash);
           } else {
             success = false;
           }
@@ -1548,6 +2003,11 @@ public class AggregateSynchronizer implements Synchronizer {
       // we will resolve what to do and clean up.
       if (serverRow.shouldDeleteExtraneousLocalFiles()) {
         for (String relativePath : relativePathsToAppFolderOnDevice) {
+          // keep the partial downloads of attachments, to resume them later
+          String target = PartialDownload.targetOf(relativePath);
+          if (target != null && appFolderRelativeAttachmentPaths.contains(target)) {
+            continue;
+          }
           // remove local files that are not on server...
           File localFile = ODKFileUtils.asAppFile(appName, relativePath);
           if (!localFile.delete()) {
@@ -1594,6 +2054,7 @@ public class AggregateSynchronizer implements Synchronizer {
      * directory, or we can issue an if-none-match GET request for each file 
      * we need. If we do not get a NOT_MODIFIED return, then we upload it. 
      */
+    SyncETagsUtils seu = new SyncETagsUtils();
     boolean success = true;
     try {
       // 1) Get this row's instanceId (rowId)
@@ -1602,6 +2063,10 @@ public class AggregateSynchronizer implements Synchronizer {
       // 2) Get the folder holding the instance attachments
       File instanceFolder = new File(ODKFileUtils.getInstanceFolder(appName, tableId, instanceId));
 
+      // the hashes of the files on the server, if getServerFileHashes()
+      // retrieved them.
+      Map<String, String> serverFileHashes = localRow.getServerFileHashes();
+
       // 3) Iterate over all non-null file attachments in the data row
       for (String relativePath : localRow.getUriFragments()) {
         // clean up the value...
@@ -1611,11 +2076,42 @@ public class AggregateSynchronizer implements Synchronizer {
         
         CommonFileAttachmentTerms cat = computeCommonFileAttachmentTerms(instanceFileUri, instanceId, instanceFolder, relativePath);
 
+        String md5hash = null;
+        if (cat.localFile.exists() && serverFileHashes != null) {
+          String serverHash = serverFileHashes.get(cat.instancePath);
+          if (serverHash == null) {
+            // not on the server -- upload it.
+            if (deferInstanceAttachments) {
+              return false;
+            }
+            boolean outcome = uploadInstanceFile(instanceFileUri, instanceId, cat);
+            if (!outcome) {
+              success = false;
+            }
+            continue;
+          }
+          md5hash = seu.getFileSyncETag(context, appName, cat.instanceFileDownloadUri,
+              tableId, cat.localFile.lastModified());
+          if (md5hash == null) {
+            md5hash = ODKFileUtils.getMd5Hash(appName, cat.localFile);
+          }
+          if (serverHash.equals(md5hash)) {
+            // no-op... what is on server matches local.
+            continue;
+          }
+          // the server holds different content; resolve it as below.
+        }
+
         if (cat.localFile.exists()) {
 
           // issue a GET. If the return is NOT_MODIFIED, then we don't need to
           // POST it.
-          int statusCode = downloadFile(cat.localFile, cat.instanceFileDownloadUri);
+          if (md5hash == null) {
+            md5hash = seu.getFileSyncETag(context, appName, cat.instanceFileDownloadUri,
+                tableId, cat.localFile.lastModified());
+          }
+          int statusCode = downloadFile(cat.localFile, cat.instanceFileDownloadUri, md5hash)
+              .statusCode;
           if (statusCode == HttpStatus.SC_NOT_MODIFIED) {
             // no-op... what is on server matches local.
           } else if (statusCode == HttpStatus.SC_OK) {
@@ -1631,7 +2127,7 @@ public class AggregateSynchronizer implements Synchronizer {
             }
 
             // upload it...
-            boolean outcome = uploadInstanceFile(cat.localFile, cat.instanceFileDownloadUri);
+            boolean outcome = uploadInstanceFile(instanceFileUri, instanceId, cat);
             if (!outcome) {
               success = false;
             }
@@ -1660,4 +2156,75 @@ public class AggregateSynchronizer implements Synchronizer {
      * 
      */
   }
+
+  @Override
+  public void getServerFileHashes(String instanceFileUri, String tableId,
+      List<SyncRowPending> localRows) throws ClientWebException, InvalidAuthTokenException {
+    if (localRows.isEmpty()) {
+      return;
+    }
+    Map<String, SyncRowPending> rowsById = new HashMap<String, SyncRowPending>();
+    for (SyncRowPending localRow : localRows) {
+      rowsById.put(localRow.getRowId(), localRow);
+    }
+
+    if (batchInstanceManifests) {
+      // one request for the manifests of all the rows
+      InstanceFileManifests request = new InstanceFileManifests();
+      request.rowIds = new ArrayList<String>(rowsById.keySet());
+      URI manifestUri = normalizeUri(instanceFileUri, "manifest");
+      ClientResponse rsp = buildResource(manifestUri).post(request);
+      int statusCode = rsp.getStatusCode();
+      if (statusCode == HttpStatus.SC_NOT_FOUND || statusCode == HttpStatus.SC_METHOD_NOT_ALLOWED) {
+        // an older server; ask for the manifest of each row instead.
+        rsp.consumeContent();
+        log.i(LOGTAG, "[getServerFileHashes] server does not accept batch manifest requests");
+        batchInstanceManifests = false;
+      } else {
+        if (statusCode < 200 || statusCode >= 300
+            || !rsp.getHeaders().containsKey(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER)) {
+          throw new ClientWebException(null, rsp);
+        }
+        InstanceFileManifests response = rsp.getEntity(InstanceFileManifests.class);
+        if (response != null && response.manifests != null) {
+          for (InstanceFileManifests.RowManifest manifest : response.manifests) {
+            SyncRowPending localRow = rowsById.get(manifest.rowId);
+            if (localRow != null) {
+              localRow.setServerFileHashes(toFileHashes(manifest.files));
+            }
+          }
+        }
+        return;
+      }
+    }
+
+    for (SyncRowPending localRow : localRows) {
+      URI manifestUri = normalizeUri(instanceFileUri, localRow.getRowId() + "/manifest");
+      ClientResponse rsp = buildResource(manifestUri).get();
+      int statusCode = rsp.getStatusCode();
+      if (statusCode < 200 || statusCode >= 300
+          || !rsp.getHeaders().containsKey(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER)) {
+        // leave it to putFileAttachments() to check each file.
+        rsp.consumeContent();
+        continue;
+      }
+      OdkTablesFileManifest manifest = rsp.getEntity(OdkTablesFileManifest.class);
+      localRow.setServerFileHashes(toFileHashes((manifest == null) ? null : manifest.getFiles()));
+    }
+  }
+
+  private static Map<String, String> toFileHashes(List<OdkTablesFileManifestEntry> files) {
+    Map<String, String> hashes = new HashMap<String, String>();
+    if (files != null) {
+      for (OdkTablesFileManifestEntry entry : files) {
+        // placeholders have no content on the server
+        if (entry.filename != null && entry.md5hash != null && entry.contentLength != 0) {
+          String filename = entry.filename.startsWith("/") ? entry.filename.substring(1)
+              : entry.filename;
+          hashes.put(filename, entry.md5hash);
+        }
+      }
+    }
+    return hashes;
+  }
 }
@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2015 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync.aggregate;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+import org.opendatakit.sync.exceptions.InvalidAuthTokenException;
+
+/**
+ * Uploads a file in fixed-size chunks within an upload session that the
+ * server commits once all the chunks are received.
+ * <p>
+ * The session is recorded in a file under the sessions folder until it is
+ * committed, so an upload that is interrupted, even by the sync service being
+ * restarted, resumes from the last chunk the server acknowledged.
+ * <p>
+ * The protocol:
+ * <ul>
+ * <li>POST {instanceFileUri}/uploads with an UploadSession describing the file;
+ * the response gives the session's uploadUri and chunkSize.</li>
+ * <li>PUT each chunk to the uploadUri with a Content-Range header; the
+ * response gives the bytesReceived.</li>
+ * <li>GET the uploadUri for the bytesReceived when resuming.</li>
+ * <li>POST {uploadUri}/commit once the whole file is received.</li>
+ * </ul>
+ */
+final class ChunkedUpload {
+
+  enum Outcome {
+    COMMITTED, FAILED, UNSUPPORTED
+  }
+
+  /**
+   * The requests of the protocol.
+   */
+  interface Transport {
+    /**
+     * @param request
+     * @return the new session, or null if the server does not support
+     *         chunked uploads.
+     * @throws IOException
+     * @throws InvalidAuthTokenException
+     */
+    UploadSession createSession(UploadSession request) throws IOException,
+        InvalidAuthTokenException;
+
+    /**
+     * @param uploadUri
+     * @return the state of the session, or null if the server no longer
+     *         holds it (e.g., it expired).
+     * @throws IOException
+     * @throws InvalidAuthTokenException
+     */
+    UploadSession getSession(String uploadUri) throws IOException, InvalidAuthTokenException;
+
+    /**
+     * @param uploadUri
+     * @param chunk
+     * @param length
+     *          the number of bytes of chunk to send
+     * @param offset
+     *          the offset in the file of the first byte of chunk
+     * @param contentLength
+     *          the length of the file
+     * @return the number of bytes of the file the server now holds.
+     * @throws IOException
+     * @throws InvalidAuthTokenException
+     */
+    long putChunk(String uploadUri, byte[] chunk, int length, long offset, long contentLength)
+        throws IOException, InvalidAuthTokenException;
+
+    /**
+     * @param uploadUri
+     * @return true if the server assembled and stored the file.
+     * @throws IOException
+     * @throws InvalidAuthTokenException
+     */
+    boolean commit(String uploadUri) throws IOException, InvalidAuthTokenException;
+  }
+
+  static final int DEFAULT_CHUNK_SIZE = 512 * 1024;
+  static final int MAX_CHUNK_SIZE = 8 * 1024 * 1024;
+
+  // as in downloadFile(), give up after three consecutive failures
+  private static final int MAX_ATTEMPTS = 3;
+
+  private static final String KEY = "key";
+  private static final String UPLOAD_URI = "uploadUri";
+  private static final String CONTENT_LENGTH = "contentLength";
+  private static final String MD5_HASH = "md5hash";
+
+  private final Transport transport;
+  private final File sessionsFolder;
+
+  private long bytesSent = 0L;
+  private long bytesResumed = 0L;
+
+  /**
+   * @param transport
+   * @param sessionsFolder
+   *          where the sessions that are not yet committed are recorded.
+   */
+  ChunkedUpload(Transport transport, File sessionsFolder) {
+    this.transport = transport;
+    this.sessionsFolder = sessionsFolder;
+  }
+
+  /**
+   * @return the number of bytes sent by the last upload().
+   */
+  long getBytesSent() {
+    return bytesSent;
+  }
+
+  /**
+   * @return the number of bytes the server already held when the last
+   *         upload() resumed a session.
+   */
+  long getBytesResumed() {
+    return bytesResumed;
+  }
+
+  /**
+   * Upload a file, resuming its recorded session if there is one.
+   *
+   * @param key
+   *          identifies the file on the server, e.g., its download URI
+   * @param file
+   * @param request
+   *          describes the file; its contentLength and md5hash identify the
+   *          content being uploaded.
+   * @return COMMITTED if the file was uploaded, UNSUPPORTED if the server
+   *         does not support chunked uploads, otherwise FAILED.
+   * @throws IOException
+   *           if the server could not be reached; the session is kept to be
+   *           resumed later.
+   * @throws InvalidAuthTokenException
+   */
+  Outcome upload(String key, File file, UploadSession request) throws IOException,
+      InvalidAuthTokenException {
+    bytesSent = 0L;
+    bytesResumed = 0L;
+
+    File sessionFile = sessionFileFor(key);
+    String uploadUri = null;
+    UploadSession session = null;
+    Properties saved = load(sessionFile);
+    if (saved != null) {
+      uploadUri = saved.getProperty(UPLOAD_URI);
+      if (key.equals(saved.getProperty(KEY)) && uploadUri != null
+          && Long.toString(request.contentLength).equals(saved.getProperty(CONTENT_LENGTH))
+          && request.md5hash != null && request.md5hash.equals(saved.getProperty(MD5_HASH))) {
+        session = transport.getSession(uploadUri);
+      }
+      if (session == null) {
+        // the file changed, or the server forgot the session
+        sessionFile.delete();
+      } else {
+        bytesResumed = session.bytesReceived;
+      }
+    }
+
+    if (session == null) {
+      session = transport.createSession(request);
+      if (session == null) {
+        return Outcome.UNSUPPORTED;
+      }
+      uploadUri = session.uploadUri;
+      if (uploadUri == null) {
+        return Outcome.FAILED;
+      }
+      save(sessionFile, key, uploadUri, request);
+    }
+
+    long contentLength = request.contentLength;
+    long offset = session.bytesReceived;
+    if (offset < 0L || offset > contentLength) {
+      sessionFile.delete();
+      return Outcome.FAILED;
+    }
+    int chunkSize = session.chunkSize;
+    if (chunkSize <= 0) {
+      chunkSize = DEFAULT_CHUNK_SIZE;
+    }
+    chunkSize = (int) Math.min(Math.min(chunkSize, MAX_CHUNK_SIZE), Math.max(1L, contentLength));
+
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      byte[] chunk = new byte[chunkSize];
+      int failures = 0;
+      while (offset < contentLength) {
+        int len = (int) Math.min(chunkSize, contentLength - offset);
+        raf.seek(offset);
+        raf.readFully(chunk, 0, len);
+        long acknowledged;
+        try {
+          acknowledged = transport.putChunk(uploadUri, chunk, len, offset, contentLength);
+        } catch (IOException e) {
+          if (++failures >= MAX_ATTEMPTS) {
+            throw e;
+          }
+          // learn how much of the chunk reached the server
+          UploadSession current = transport.getSession(uploadUri);
+          if (current == null || current.bytesReceived < 0L
+              || current.bytesReceived > contentLength) {
+            sessionFile.delete();
+            return Outcome.FAILED;
+          }
+          offset = current.bytesReceived;
+          continue;
+        }
+        if (acknowledged <= offset || acknowledged > contentLength) {
+          // the server is not following the protocol; start afresh next time
+          sessionFile.delete();
+          return Outcome.FAILED;
+        }
+        bytesSent += acknowledged - offset;
+        offset = acknowledged;
+        failures = 0;
+      }
+    } finally {
+      raf.close();
+    }
+
+    boolean committed = transport.commit(uploadUri);
+    // a session that fails to commit (e.g., an md5 mismatch) cannot be resumed
+    sessionFile.delete();
+    return committed ? Outcome.COMMITTED : Outcome.FAILED;
+  }
+
+  private File sessionFileFor(String key) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("MD5");
+      byte[] digest = md.digest(key.getBytes("UTF-8"));
+      StringBuilder b = new StringBuilder();
+      for (byte d : digest) {
+        b.append(Integer.toHexString((d & 0xff) | 0x100).substring(1));
+      }
+      return new File(sessionsFolder, b.toString() + ".session");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("MD5 is not available", e);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException("UTF-8 is not available", e);
+    }
+  }
+
+  private static Properties load(File sessionFile) {
+    if (!sessionFile.exists()) {
+      return null;
+    }
+    Properties props = new Properties();
+    FileInputStream in = null;
+    try {
+      in = new FileInputStream(sessionFile);
+      props.load(in);
+      return props;
+    } catch (IOException e) {
+      sessionFile.delete();
+      return null;
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+          // ignore
+        }
+      }
+    }
+  }
+
+  private void save(File sessionFile, String key, String uploadUri, UploadSession request) {
+    Properties props = new Properties();
+    props.setProperty(KEY, key);
+    props.setProperty(UPLOAD_URI, uploadUri);
+    props.setProperty(CONTENT_LENGTH, Long.toString(request.contentLength));
+    if (request.md5hash != null) {
+      props.setProperty(MD5_HASH, request.md5hash);
+    }
+    sessionsFolder.mkdirs();
+    FileOutputStream out = null;
+    try {
+      out = new FileOutputStream(sessionFile);
+      props.store(out, null);
+      out.getFD().sync();
+    } catch (IOException e) {
+      // the upload can still complete; it just cannot be resumed
+      sessionFile.delete();
+    } finally {
+      if (out != null) {
+        try {
+          out.close();
+        } catch (IOException e) {
+          // ignore
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2015 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync.aggregate;
+
+import java.util.ArrayList;
+
+import org.opendatakit.aggregate.odktables.rest.entity.OdkTablesFileManifestEntry;
+
+/**
+ * The body of a request, POSTed to {instanceFileUri}/manifest, for the
+ * manifests of the file attachments of several rows, and of its response.
+ */
+public class InstanceFileManifests {
+
+  /**
+   * The manifest of the attachments of one row. The filenames are relative
+   * to the row's instance folder.
+   */
+  public static class RowManifest {
+    public String rowId;
+    public ArrayList<OdkTablesFileManifestEntry> files;
+  }
+
+  /** in the request: the rows whose manifests are wanted */
+  public ArrayList<String> rowIds;
+
+  /** in the response: the manifests of those rows */
+  public ArrayList<RowManifest> manifests;
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2015 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync.aggregate;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Properties;
+
+/**
+ * The part of a file received before its download was interrupted.
+ * <p>
+ * The bytes are kept in the download's .tmp file. A sidecar file next to it
+ * records how many of those bytes were flushed to storage and the ETag of
+ * the server's version of the file, so that the download can be resumed with
+ * a Range request that is only honored (If-Range) if the file has not changed.
+ */
+final class PartialDownload {
+
+  static final String TMP_SUFFIX = ".tmp";
+  static final String SIDECAR_SUFFIX = ".tmp.range";
+
+  private static final String LENGTH = "length";
+  private static final String ETAG = "etag";
+
+  /** the number of bytes of the .tmp file that may be appended to */
+  final long length;
+  /** the ETag of the version of the file being downloaded */
+  final String eTag;
+
+  private PartialDownload(long length, String eTag) {
+    this.length = length;
+    this.eTag = eTag;
+  }
+
+  static File tmpFileFor(File destFile) {
+    return new File(destFile.getParentFile(), destFile.getName() + TMP_SUFFIX);
+  }
+
+  static File sidecarFor(File destFile) {
+    return new File(destFile.getParentFile(), destFile.getName() + SIDECAR_SUFFIX);
+  }
+
+  /**
+   * @param path
+   *          path of a file
+   * @return the path of the file being downloaded if path is that of a
+   *         partial download or its sidecar, otherwise null.
+   */
+  static String targetOf(String path) {
+    if (path.endsWith(SIDECAR_SUFFIX)) {
+      return path.substring(0, path.length() - SIDECAR_SUFFIX.length());
+    }
+    if (path.endsWith(TMP_SUFFIX)) {
+      return path.substring(0, path.length() - TMP_SUFFIX.length());
+    }
+    return null;
+  }
+
+  /**
+   * Find the partial download of destFile that can be resumed, and truncate
+   * its .tmp file to the length recorded in the sidecar. Bytes past that
+   * length may not have reached storage intact.
+   *
+   * @param destFile
+   * @return the partial download, or null if there is none to resume.
+   */
+  static PartialDownload load(File destFile) {
+    File tmp = tmpFileFor(destFile);
+    File sidecar = sidecarFor(destFile);
+    if (!sidecar.exists() || !tmp.exists()) {
+      return null;
+    }
+    Properties props = new Properties();
+    FileInputStream in = null;
+    try {
+      in = new FileInputStream(sidecar);
+      props.load(in);
+      String eTag = props.getProperty(ETAG);
+      long length = Long.parseLong(props.getProperty(LENGTH, "0"));
+      if (eTag == null || length <= 0L || length > tmp.length()) {
+        discard(destFile);
+        return null;
+      }
+      if (length < tmp.length()) {
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+          raf.setLength(length);
+        } finally {
+          raf.close();
+        }
+      }
+      return new PartialDownload(length, eTag);
+    } catch (IOException e) {
+      discard(destFile);
+      return null;
+    } catch (NumberFormatException e) {
+      discard(destFile);
+      return null;
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+          // ignore
+        }
+      }
+    }
+  }
+
+  /**
+   * Record that the first length bytes of destFile's .tmp file hold the
+   * start of the version of the file with the given ETag.
+   *
+   * @param destFile
+   * @param length
+   * @param eTag
+   * @return true if the sidecar was written.
+   */
+  static boolean save(File destFile, long length, String eTag) {
+    File sidecar = sidecarFor(destFile);
+    Properties props = new Properties();
+    props.setProperty(LENGTH, Long.toString(length));
+    props.setProperty(ETAG, eTag);
+    FileOutputStream out = null;
+    try {
+      out = new FileOutputStream(sidecar);
+      props.store(out, null);
+      out.getFD().sync();
+      out.close();
+      out = null;
+      return true;
+    } catch (IOException e) {
+      sidecar.delete();
+      return false;
+    } finally {
+      if (out != null) {
+        try {
+          out.close();
+        } catch (IOException e) {
+          // ignore
+        }
+        sidecar.delete();
+      }
+    }
+  }
+
+  /**
+   * Forget the partial download of destFile; the next download starts from
+   * the first byte.
+   *
+   * @param destFile
+   */
+  static void discard(File destFile) {
+    sidecarFor(destFile).delete();
+    tmpFileFor(destFile).delete();
+  }
+}
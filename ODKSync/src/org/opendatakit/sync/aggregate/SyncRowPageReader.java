@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2015 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync.aggregate;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+import org.opendatakit.aggregate.odktables.rest.entity.Scope;
+import org.opendatakit.common.android.data.ColumnDefinition;
+import org.opendatakit.sync.RowBatch;
+import org.opendatakit.sync.SyncRow;
+import org.opendatakit.sync.SyncRowPage;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Streaming decoder for the RowResourceList JSON returned by the server.
+ * <p>
+ * Rather than binding the entire response into RowResourceList and
+ * RowResource objects, this walks the Jackson token stream and constructs a
+ * SyncRow for each row as soon as that row has been read, handing it to the
+ * SyncRowPage. The rows of a page share the column dictionary of a RowBatch.
+ * Fields of the list and of the rows that we do not use are skipped.
+ */
+public final class SyncRowPageReader {
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  // RowResourceList fields
+  private static final String LIST_ROWS = "rows";
+  private static final String LIST_DATA_ETAG = "dataETag";
+  private static final String LIST_RESUME_CURSOR = "webSafeResumeCursor";
+  private static final String LIST_HAS_MORE_RESULTS = "hasMoreResults";
+
+  // RowResource fields
+  private static final String ROW_ID = "rowId";
+  private static final String ROW_ETAG = "rowETag";
+  private static final String ROW_DELETED = "deleted";
+  private static final String ROW_FORM_ID = "formId";
+  private static final String ROW_LOCALE = "locale";
+  private static final String ROW_SAVEPOINT_TYPE = "savepointType";
+  private static final String ROW_SAVEPOINT_TIMESTAMP = "savepointTimestamp";
+  private static final String ROW_SAVEPOINT_CREATOR = "savepointCreator";
+  private static final String ROW_FILTER_SCOPE = "filterScope";
+  private static final String ROW_ORDERED_COLUMNS = "orderedColumns";
+  private static final String ROW_VALUES = "values";
+
+  // Scope fields
+  private static final String SCOPE_TYPE = "type";
+  private static final String SCOPE_VALUE = "value";
+
+  // DataKeyValue fields
+  private static final String DKV_COLUMN = "column";
+  private static final String DKV_VALUE = "value";
+
+  private SyncRowPageReader() {
+  }
+
+  /**
+   * Counts the bytes read through it.
+   */
+  private static final class CountingInputStream extends FilterInputStream {
+    private long count = 0L;
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1) {
+        ++count;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int n = super.read(buffer, offset, length);
+      if (n > 0) {
+        count += n;
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      count += skipped;
+      return skipped;
+    }
+
+    long getCount() {
+      return count;
+    }
+  }
+
+  /**
+   * Decode the RowResourceList in the stream, delivering each row to the page.
+   *
+   * @param stream
+   *          the (uncompressed) response entity
+   * @param fileAttachmentColumns
+   *          the rowpath columns of the table
+   * @param page
+   *          receives the rows, the list-level dataETag and cursor values, and
+   *          the number of bytes read
+   * @throws IOException
+   */
+  public static void read(InputStream stream, ArrayList<ColumnDefinition> fileAttachmentColumns,
+      SyncRowPage page) throws IOException {
+    CountingInputStream counter = new CountingInputStream(stream);
+    JsonParser parser = mapper.getFactory().createParser(counter);
+    try {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new IOException("expected a JSON object for the RowResourceList");
+      }
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String name = parser.getCurrentName();
+        JsonToken token = parser.nextToken();
+        if (LIST_ROWS.equals(name)) {
+          if (token == JsonToken.START_ARRAY) {
+            RowBatch batch = new RowBatch(fileAttachmentColumns);
+            ArrayList<String> rowColumns = new ArrayList<String>();
+            ArrayList<String> rowValues = new ArrayList<String>();
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+              page.addRow(readRow(parser, batch, rowColumns, rowValues));
+            }
+          } else {
+            parser.skipChildren();
+          }
+        } else if (LIST_DATA_ETAG.equals(name)) {
+          page.setDataETag(parser.getValueAsString());
+        } else if (LIST_RESUME_CURSOR.equals(name)) {
+          page.setWebSafeResumeCursor(parser.getValueAsString());
+        } else if (LIST_HAS_MORE_RESULTS.equals(name)) {
+          page.setHasMoreResults(parser.getValueAsBoolean());
+        } else {
+          parser.skipChildren();
+        }
+      }
+    } finally {
+      parser.close();
+      page.setByteCount(counter.getCount());
+    }
+  }
+
+  /**
+   * Read the fields of a single row. The parser is positioned on the
+   * START_OBJECT token of the row and is left on its END_OBJECT token. The
+   * rowColumns and rowValues lists are scratch space, reused across rows.
+   */
+  private static SyncRow readRow(JsonParser parser, RowBatch batch,
+      ArrayList<String> rowColumns, ArrayList<String> rowValues) throws IOException {
+    String rowId = null;
+    String rowETag = null;
+    boolean deleted = false;
+    String formId = null;
+    String locale = null;
+    String savepointType = null;
+    String savepointTimestamp = null;
+    String savepointCreator = null;
+    String filterType = null;
+    String filterValue = null;
+    rowColumns.clear();
+    rowValues.clear();
+
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      JsonToken token = parser.nextToken();
+      if (ROW_ID.equals(name)) {
+        rowId = parser.getValueAsString();
+      } else if (ROW_ETAG.equals(name)) {
+        rowETag = parser.getValueAsString();
+      } else if (ROW_DELETED.equals(name)) {
+        deleted = parser.getValueAsBoolean();
+      } else if (ROW_FORM_ID.equals(name)) {
+        formId = parser.getValueAsString();
+      } else if (ROW_LOCALE.equals(name)) {
+        locale = parser.getValueAsString();
+      } else if (ROW_SAVEPOINT_TYPE.equals(name)) {
+        savepointType = parser.getValueAsString();
+      } else if (ROW_SAVEPOINT_TIMESTAMP.equals(name)) {
+        savepointTimestamp = parser.getValueAsString();
+      } else if (ROW_SAVEPOINT_CREATOR.equals(name)) {
+        savepointCreator = parser.getValueAsString();
+      } else if (ROW_FILTER_SCOPE.equals(name) && token == JsonToken.START_OBJECT) {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+          String scopeField = parser.getCurrentName();
+          parser.nextToken();
+          if (SCOPE_TYPE.equals(scopeField)) {
+            filterType = parser.getValueAsString();
+          } else if (SCOPE_VALUE.equals(scopeField)) {
+            filterValue = parser.getValueAsString();
+          } else {
+            parser.skipChildren();
+          }
+        }
+      } else if ((ROW_ORDERED_COLUMNS.equals(name) || ROW_VALUES.equals(name))
+          && token == JsonToken.START_ARRAY) {
+        readValues(parser, rowColumns, rowValues);
+      } else {
+        parser.skipChildren();
+      }
+    }
+
+    return batch.newRow(rowId, rowETag, deleted, formId, locale, savepointType,
+        savepointTimestamp, savepointCreator, Scope.asScope(filterType, filterValue),
+        rowColumns, rowValues);
+  }
+
+  /**
+   * Read the array of DataKeyValue objects into the parallel column and value
+   * lists. The parser is positioned on the START_ARRAY token and is left on
+   * its END_ARRAY token.
+   */
+  private static void readValues(JsonParser parser, ArrayList<String> rowColumns,
+      ArrayList<String> rowValues) throws IOException {
+    while (parser.nextToken() == JsonToken.START_OBJECT) {
+      String column = null;
+      String value = null;
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String name = parser.getCurrentName();
+        parser.nextToken();
+        if (DKV_COLUMN.equals(name)) {
+          column = parser.getValueAsString();
+        } else if (DKV_VALUE.equals(name)) {
+          value = parser.getValueAsString();
+        } else {
+          parser.skipChildren();
+        }
+      }
+      rowColumns.add(column);
+      rowValues.add(value);
+    }
+  }
+}
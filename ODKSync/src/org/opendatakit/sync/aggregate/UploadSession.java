@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2015 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync.aggregate;
+
+/**
+ * The body of a request, POSTed to {instanceFileUri}/uploads, to start the
+ * chunked upload of a file attachment, and of the responses describing the
+ * state of that upload.
+ */
+public class UploadSession {
+
+  /** in the request: the row the file is attached to */
+  public String rowId;
+
+  /** in the request: path of the file relative to the row's instance folder */
+  public String filename;
+
+  /** in the request: the content type of the file */
+  public String contentType;
+
+  /** in the request: the length of the file */
+  public long contentLength;
+
+  /** in the request: the md5 hash of the file, checked on commit */
+  public String md5hash;
+
+  /** in the response: where the chunks are PUT and the upload is committed */
+  public String uploadUri;
+
+  /** in the response: the size of the chunks the server expects */
+  public int chunkSize;
+
+  /** in the response: the number of bytes of the file the server holds */
+  public long bytesReceived;
+}
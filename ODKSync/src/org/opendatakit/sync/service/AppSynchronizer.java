@@ -164,6 +164,7 @@ public class AppSynchronizer {
             prefs.getServerUri(), prefs.getAuthToken());
         
         SynchronizationResult syncResult = new SynchronizationResult();
+        synchronizer.setTransferMetrics(syncResult.getTransferMetrics());
         SyncExecutionContext sharedContext = new SyncExecutionContext( cntxt, appName, synchronizer, syncProgress, syncResult);
         ProcessAppAndTableLevelChanges appAndTableLevelProcessor = new ProcessAppAndTableLevelChanges(sharedContext);
         
@@ -182,9 +183,14 @@ public class AppSynchronizer {
           // was an app-level sync failure or if the particular tableId
           // experienced a table-level sync failure in the preceeding step.
   
-          rowDataProcessor.synchronizeDataRowsAndAttachments(workingListOfTables, deferInstanceAttachments);
+          rowDataProcessor.synchronizeDataRowsAndAttachments(workingListOfTables,
+              deferInstanceAttachments, prefs.getTableSyncConcurrency(),
+              prefs.getAttachmentTransferConcurrency());
         }
 
+        WebLogger.getLogger(appName).i(LOGTAG,
+            "file transfers: " + syncResult.getTransferMetrics().toString());
+
         boolean authProblems = false;
 
         String reason = "none";
@@ -0,0 +1,141 @@
+package org.opendatakit.sync;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class AttachmentTransferEngineTest extends TestCase {
+
+	private static final String HOST_URI = "https://example.org/odktables/default/tables/t/attachments";
+
+	public void testResultsInSubmissionOrder() throws Exception {
+		AttachmentTransferEngine engine = new AttachmentTransferEngine(4, 4);
+		try {
+			AttachmentTransferEngine.Batch<Integer> batch = engine.newBatch();
+			for (int i = 0; i < 4; ++i) {
+				final int value = i;
+				batch.submit(HOST_URI, new Callable<Integer>() {
+
+					@Override
+					public Integer call() throws Exception {
+						// the earlier transfers finish last
+						Thread.sleep(40 * (4 - value));
+						return value;
+					}
+				});
+			}
+			assertTrue(batch.isFull());
+			for (int i = 0; i < 4; ++i) {
+				assertEquals(i, batch.next().intValue());
+			}
+			assertTrue(batch.isEmpty());
+		} finally {
+			engine.shutdown();
+		}
+	}
+
+	public void testPerHostLimit() throws Exception {
+		AttachmentTransferEngine engine = new AttachmentTransferEngine(6, 2);
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+		try {
+			AttachmentTransferEngine.Batch<Integer> batch = engine.newBatch();
+			for (int i = 0; i < 6; ++i) {
+				batch.submit(HOST_URI, new Callable<Integer>() {
+
+					@Override
+					public Integer call() throws Exception {
+						int now = running.incrementAndGet();
+						synchronized (maxRunning) {
+							if (now > maxRunning.get()) {
+								maxRunning.set(now);
+							}
+						}
+						Thread.sleep(20);
+						running.decrementAndGet();
+						return now;
+					}
+				});
+			}
+			while (!batch.isEmpty()) {
+				batch.next();
+			}
+			assertTrue(maxRunning.get() <= 2);
+		} finally {
+			engine.shutdown();
+		}
+	}
+
+	public void testFailureIsReported() throws Exception {
+		AttachmentTransferEngine engine = new AttachmentTransferEngine(2, 2);
+		try {
+			AttachmentTransferEngine.Batch<Integer> batch = engine.newBatch();
+			batch.submit(HOST_URI, new Callable<Integer>() {
+
+				@Override
+				public Integer call() throws Exception {
+					throw new IllegalStateException("transfer failed");
+				}
+			});
+			try {
+				batch.next();
+				fail("expected the transfer's exception");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof IllegalStateException);
+			}
+		} finally {
+			engine.shutdown();
+		}
+	}
+
+	public void testInterruptedDrainWaitsForRunningTransfers() throws Exception {
+		AttachmentTransferEngine engine = new AttachmentTransferEngine(2, 2);
+		final AtomicInteger finished = new AtomicInteger();
+		final AtomicBoolean interrupted = new AtomicBoolean();
+		try {
+			AttachmentTransferEngine.Batch<Integer> batch = engine.newBatch();
+			for (int i = 0; i < 2; ++i) {
+				batch.submit(HOST_URI, new Callable<Integer>() {
+
+					@Override
+					public Integer call() throws Exception {
+						try {
+							Thread.sleep(100);
+						} catch (InterruptedException e) {
+							interrupted.set(true);
+							throw e;
+						}
+						return finished.incrementAndGet();
+					}
+				});
+			}
+			Thread.currentThread().interrupt();
+			batch.drain();
+			// the interrupt is kept, but the running transfers were not stopped
+			assertTrue(Thread.interrupted());
+			assertFalse(interrupted.get());
+			assertEquals(2, finished.get());
+			assertTrue(batch.isEmpty());
+
+			// and both host slots are free again
+			final AtomicInteger result = new AtomicInteger();
+			for (int i = 0; i < 2; ++i) {
+				batch.submit(HOST_URI, new Callable<Integer>() {
+
+					@Override
+					public Integer call() throws Exception {
+						return result.incrementAndGet();
+					}
+				});
+			}
+			batch.drain();
+			assertEquals(2, result.get());
+		} finally {
+			Thread.interrupted();
+			engine.shutdown();
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package org.opendatakit.sync;
+
+import java.util.List;
+
+import org.opendatakit.aggregate.odktables.rest.SyncState;
+import org.opendatakit.common.android.provider.DataTableColumns;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+public class ChangeJournalTest extends AndroidTestCase {
+
+	private static final String TABLE_ID = "journal_test";
+
+	private SQLiteDatabase db;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		db = SQLiteDatabase.create(null);
+		db.execSQL("CREATE TABLE \"" + TABLE_ID + "\" (" + DataTableColumns.ID
+				+ " TEXT NOT NULL, " + DataTableColumns.SYNC_STATE + " TEXT NOT NULL, name TEXT)");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		db.close();
+		super.tearDown();
+	}
+
+	private void insert(String rowId, SyncState state) {
+		db.execSQL("INSERT INTO \"" + TABLE_ID + "\" (" + DataTableColumns.ID + ", "
+				+ DataTableColumns.SYNC_STATE + ", name) VALUES (?, ?, ?)", new Object[] { rowId,
+				state.name(), rowId });
+	}
+
+	private void update(String rowId, SyncState state, String name) {
+		db.execSQL("UPDATE \"" + TABLE_ID + "\" SET " + DataTableColumns.SYNC_STATE
+				+ "=?, name=? WHERE " + DataTableColumns.ID + "=?", new Object[] { state.name(),
+				name, rowId });
+	}
+
+	private void assertRowIds(List<ChangeJournal.Entry> entries, String... rowIds) {
+		assertEquals(rowIds.length, entries.size());
+		for (int i = 0; i < rowIds.length; ++i) {
+			assertEquals(rowIds[i], entries.get(i).rowId);
+			if (i != 0) {
+				assertTrue(entries.get(i - 1).seq < entries.get(i).seq);
+			}
+		}
+	}
+
+	public void testSeededWithRowsAwaitingPush() {
+		insert("uuid:d", SyncState.deleted);
+		insert("uuid:a", SyncState.synced);
+		insert("uuid:c", SyncState.changed);
+		insert("uuid:b", SyncState.new_row);
+		insert("uuid:e", SyncState.in_conflict);
+		ChangeJournal.ensureInstalled(db, TABLE_ID);
+		assertRowIds(ChangeJournal.getPendingEntries(db, TABLE_ID), "uuid:b", "uuid:c", "uuid:d");
+
+		// installing again keeps the journal as it is
+		insert("uuid:f", SyncState.new_row);
+		ChangeJournal.ensureInstalled(db, TABLE_ID);
+		assertRowIds(ChangeJournal.getPendingEntries(db, TABLE_ID), "uuid:b", "uuid:c", "uuid:d",
+				"uuid:f");
+	}
+
+	public void testChangedRowIsListedOnceAtItsLatestChange() {
+		ChangeJournal.ensureInstalled(db, TABLE_ID);
+		insert("uuid:a", SyncState.new_row);
+		insert("uuid:b", SyncState.synced);
+		update("uuid:b", SyncState.changed, "first");
+		insert("uuid:c", SyncState.new_row);
+		update("uuid:a", SyncState.new_row, "edited");
+		update("uuid:b", SyncState.changed, "second");
+		assertRowIds(ChangeJournal.getPendingEntries(db, TABLE_ID), "uuid:c", "uuid:a", "uuid:b");
+
+		// rows returned to the synced state by a pull are not journaled
+		insert("uuid:d", SyncState.synced);
+		update("uuid:d", SyncState.synced, "pulled");
+		assertRowIds(ChangeJournal.getPendingEntries(db, TABLE_ID), "uuid:c", "uuid:a", "uuid:b");
+	}
+
+	public void testAcknowledge() {
+		ChangeJournal.ensureInstalled(db, TABLE_ID);
+		insert("uuid:a", SyncState.new_row);
+		insert("uuid:b", SyncState.new_row);
+		insert("uuid:c", SyncState.new_row);
+		List<ChangeJournal.Entry> entries = ChangeJournal.getPendingEntries(db, TABLE_ID);
+		long sentSeq = entries.get(1).seq;
+
+		// uuid:a is changed again while the push is in flight
+		update("uuid:a", SyncState.new_row, "edited");
+		ChangeJournal.acknowledge(db, TABLE_ID, sentSeq);
+		assertRowIds(ChangeJournal.getPendingEntries(db, TABLE_ID), "uuid:c", "uuid:a");
+
+		// an older acknowledgement does not bring back acknowledged entries
+		ChangeJournal.acknowledge(db, TABLE_ID, entries.get(0).seq);
+		assertRowIds(ChangeJournal.getPendingEntries(db, TABLE_ID), "uuid:c", "uuid:a");
+
+		// a row the server did not act upon is pushed again
+		ChangeJournal.record(db, TABLE_ID, "uuid:b");
+		assertRowIds(ChangeJournal.getPendingEntries(db, TABLE_ID), "uuid:c", "uuid:a", "uuid:b");
+	}
+
+	public void testDeletedRowLeavesJournal() {
+		ChangeJournal.ensureInstalled(db, TABLE_ID);
+		insert("uuid:a", SyncState.new_row);
+		insert("uuid:b", SyncState.new_row);
+		db.execSQL("DELETE FROM \"" + TABLE_ID + "\" WHERE " + DataTableColumns.ID + "=?",
+				new Object[] { "uuid:a" });
+		assertRowIds(ChangeJournal.getPendingEntries(db, TABLE_ID), "uuid:b");
+	}
+}
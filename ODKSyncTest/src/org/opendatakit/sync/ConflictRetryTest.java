@@ -0,0 +1,77 @@
+package org.opendatakit.sync;
+
+import java.util.Random;
+
+import android.test.AndroidTestCase;
+
+public class ConflictRetryTest extends AndroidTestCase {
+
+	/**
+	 * A Random that always returns the same fraction.
+	 */
+	private static final class FixedRandom extends Random {
+		private static final long serialVersionUID = 1L;
+
+		private final double fraction;
+
+		FixedRandom(double fraction) {
+			this.fraction = fraction;
+		}
+
+		@Override
+		public double nextDouble() {
+			return fraction;
+		}
+	}
+
+	private static long bound(int retry) {
+		long bound = ProcessRowDataChanges.CONFLICT_RETRY_BASE_MILLIS;
+		for (int i = 1; i < retry; ++i) {
+			bound *= 2;
+		}
+		return Math.min(bound, ProcessRowDataChanges.CONFLICT_RETRY_MAX_MILLIS);
+	}
+
+	public void testRetriesAreBounded() {
+		Random random = new Random(409L);
+		for (int retry = 1; retry <= ProcessRowDataChanges.MAX_CONFLICT_RETRIES; ++retry) {
+			assertTrue(ProcessRowDataChanges.conflictRetryDelay(retry, random) >= 0L);
+		}
+		assertEquals(-1L, ProcessRowDataChanges.conflictRetryDelay(
+				ProcessRowDataChanges.MAX_CONFLICT_RETRIES + 1, random));
+		assertEquals(-1L, ProcessRowDataChanges.conflictRetryDelay(Integer.MAX_VALUE, random));
+	}
+
+	public void testBackoffDoublesWithinBound() {
+		Random low = new FixedRandom(0.0);
+		Random high = new FixedRandom(0.999999);
+		for (int retry = 1; retry <= ProcessRowDataChanges.MAX_CONFLICT_RETRIES; ++retry) {
+			long bound = bound(retry);
+			assertEquals(bound / 2, ProcessRowDataChanges.conflictRetryDelay(retry, low));
+			long longest = ProcessRowDataChanges.conflictRetryDelay(retry, high);
+			assertTrue(longest <= bound);
+			assertTrue(longest >= bound - 1);
+		}
+		assertEquals(ProcessRowDataChanges.CONFLICT_RETRY_BASE_MILLIS / 2,
+				ProcessRowDataChanges.conflictRetryDelay(1, low));
+		assertEquals(2 * ProcessRowDataChanges.conflictRetryDelay(1, low),
+				ProcessRowDataChanges.conflictRetryDelay(2, low));
+	}
+
+	public void testDelaysAreSpreadOut() {
+		Random random = new Random(409L);
+		int retry = ProcessRowDataChanges.MAX_CONFLICT_RETRIES;
+		long bound = bound(retry);
+		long min = Long.MAX_VALUE;
+		long max = Long.MIN_VALUE;
+		for (int i = 0; i < 1000; ++i) {
+			long delay = ProcessRowDataChanges.conflictRetryDelay(retry, random);
+			assertTrue(delay >= bound / 2);
+			assertTrue(delay <= bound);
+			min = Math.min(min, delay);
+			max = Math.max(max, delay);
+		}
+		// devices contending for a table do not all retry at once
+		assertTrue(max - min > bound / 4);
+	}
+}
@@ -0,0 +1,121 @@
+package org.opendatakit.sync;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.aggregate.odktables.rest.SyncState;
+import org.opendatakit.aggregate.odktables.rest.entity.Column;
+import org.opendatakit.common.android.data.ColumnDefinition;
+import org.opendatakit.common.android.provider.DataTableColumns;
+import org.opendatakit.sync.files.SyncUtil;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+public class LocalRowCursorTest extends AndroidTestCase {
+
+	private static final String TABLE_ID = "cursor_test";
+
+	// U+FF5E, in the Basic Multilingual Plane above the surrogates
+	private static final String FULLWIDTH_TILDE = "\uff5e";
+	// U+1F600, encoded in UTF-16 as a surrogate pair
+	private static final String GRINNING_FACE = "\ud83d\ude00";
+
+	private static final String[] ROW_IDS = { "uuid:1", "uuid:" + FULLWIDTH_TILDE,
+			"uuid:" + GRINNING_FACE, "uuid:" + GRINNING_FACE + "a", "uuid:\u00e9", "uuid:\ue000",
+			"uuid:" + FULLWIDTH_TILDE + GRINNING_FACE, "uuid:\ud7ff", "uuid:\ufffd" };
+
+	private SQLiteDatabase db;
+	private RowBatch localRows;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		db = SQLiteDatabase.create(null);
+		db.execSQL("CREATE TABLE \"" + TABLE_ID + "\" (" + DataTableColumns.ID
+				+ " TEXT NOT NULL, " + DataTableColumns.ROW_ETAG + " TEXT, "
+				+ DataTableColumns.SYNC_STATE + " TEXT NOT NULL, "
+				+ DataTableColumns.CONFLICT_TYPE + " INTEGER, "
+				+ DataTableColumns.FILTER_TYPE + " TEXT, " + DataTableColumns.FILTER_VALUE
+				+ " TEXT, " + DataTableColumns.FORM_ID + " TEXT, " + DataTableColumns.LOCALE
+				+ " TEXT, " + DataTableColumns.SAVEPOINT_TYPE + " TEXT, "
+				+ DataTableColumns.SAVEPOINT_TIMESTAMP + " TEXT, "
+				+ DataTableColumns.SAVEPOINT_CREATOR + " TEXT, weight REAL)");
+
+		List<Column> columns = new ArrayList<Column>();
+		columns.add(new Column("weight", "weight", ElementDataType.number.name(), "[]"));
+		localRows = RowBatch.forLocalRows(ColumnDefinition.buildColumnDefinitions(
+				SyncUtil.getDefaultAppName(), TABLE_ID, columns), new ArrayList<ColumnDefinition>());
+
+		for (String rowId : ROW_IDS) {
+			db.execSQL("INSERT INTO \"" + TABLE_ID + "\" (" + DataTableColumns.ID + ", "
+					+ DataTableColumns.ROW_ETAG + ", " + DataTableColumns.SYNC_STATE + ", "
+					+ DataTableColumns.FILTER_TYPE + ", weight) VALUES (?, ?, ?, ?, ?)",
+					new Object[] { rowId, "etag", SyncState.synced.name(), "DEFAULT", 1.0e10 });
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		db.close();
+		super.tearDown();
+	}
+
+	private List<String> sqliteOrder() {
+		List<String> rowIds = new ArrayList<String>();
+		Cursor c = db.rawQuery("SELECT " + DataTableColumns.ID + " FROM \"" + TABLE_ID
+				+ "\" ORDER BY " + DataTableColumns.ID + " ASC", null);
+		try {
+			while (c.moveToNext()) {
+				rowIds.add(c.getString(0));
+			}
+		} finally {
+			c.close();
+		}
+		return rowIds;
+	}
+
+	private List<String> sortedRowIds() {
+		List<String> rowIds = new ArrayList<String>();
+		Collections.addAll(rowIds, ROW_IDS);
+		Collections.sort(rowIds, LocalRowCursor.ROW_ID_ORDER);
+		return rowIds;
+	}
+
+	public void testRowIdOrderMatchesSQLite() {
+		assertEquals(sqliteOrder(), sortedRowIds());
+		// String.compareTo orders the surrogate pair before U+FF5E
+		assertTrue(GRINNING_FACE.compareTo(FULLWIDTH_TILDE) < 0);
+		assertTrue(LocalRowCursor.ROW_ID_ORDER.compare(GRINNING_FACE, FULLWIDTH_TILDE) > 0);
+	}
+
+	public void testReadByRowIdsInBatches() {
+		List<String> sorted = sortedRowIds();
+		// a batch size that splits the rowIds around the non-BMP characters
+		LocalRowCursor cursor = new LocalRowCursor(db, TABLE_ID, localRows, sorted, 2);
+		List<String> read = new ArrayList<String>();
+		try {
+			while (cursor.moveToNext()) {
+				read.add(cursor.getRowId());
+			}
+		} finally {
+			cursor.close();
+		}
+		assertEquals(sorted, read);
+	}
+
+	public void testRealValuesKeepSQLiteText() {
+		LocalRowCursor cursor = new LocalRowCursor(db, TABLE_ID, localRows,
+				new SyncState[] { SyncState.synced });
+		try {
+			assertTrue(cursor.moveToNext());
+			SyncRow row = cursor.toSyncRow();
+			assertEquals("10000000000.0", row.getValue(0));
+		} finally {
+			cursor.close();
+		}
+	}
+}
@@ -0,0 +1,204 @@
+package org.opendatakit.sync;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.aggregate.odktables.rest.SyncState;
+import org.opendatakit.aggregate.odktables.rest.entity.Column;
+import org.opendatakit.aggregate.odktables.rest.entity.Scope;
+import org.opendatakit.aggregate.odktables.rest.entity.TableResource;
+import org.opendatakit.common.android.data.ColumnDefinition;
+import org.opendatakit.common.android.provider.DataTableColumns;
+import org.opendatakit.sync.files.SyncUtil;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+public class LocalRowDigestsTest extends AndroidTestCase {
+
+	private static final String TABLE_ID = "local_digests_test";
+	private static final int BUCKET_COUNT = 64;
+
+	private final ArrayList<ColumnDefinition> noAttachments = new ArrayList<ColumnDefinition>();
+
+	private SQLiteDatabase db;
+	private RowBatch localRows;
+	private StandInSynchronizer server;
+	private TableResource resource;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		db = SQLiteDatabase.create(null);
+		db.execSQL("CREATE TABLE \"" + TABLE_ID + "\" (" + DataTableColumns.ID
+				+ " TEXT NOT NULL, " + DataTableColumns.ROW_ETAG + " TEXT, "
+				+ DataTableColumns.SYNC_STATE + " TEXT NOT NULL, "
+				+ DataTableColumns.CONFLICT_TYPE + " INTEGER, "
+				+ DataTableColumns.FILTER_TYPE + " TEXT, " + DataTableColumns.FILTER_VALUE
+				+ " TEXT, " + DataTableColumns.FORM_ID + " TEXT, " + DataTableColumns.LOCALE
+				+ " TEXT, " + DataTableColumns.SAVEPOINT_TYPE + " TEXT, "
+				+ DataTableColumns.SAVEPOINT_TIMESTAMP + " TEXT, "
+				+ DataTableColumns.SAVEPOINT_CREATOR + " TEXT, name TEXT)");
+		RowFingerprints.ensureTable(db);
+
+		List<Column> columns = new ArrayList<Column>();
+		columns.add(new Column("name", "name", ElementDataType.string.name(), "[]"));
+		ArrayList<ColumnDefinition> orderedColumns = ColumnDefinition.buildColumnDefinitions(
+				SyncUtil.getDefaultAppName(), TABLE_ID, columns);
+		localRows = RowBatch.forLocalRows(orderedColumns, noAttachments);
+
+		server = new StandInSynchronizer();
+		resource = new TableResource();
+		resource.setTableId(TABLE_ID);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		db.close();
+		super.tearDown();
+	}
+
+	private SyncRow makeRow(String rowId, String rowETag, String name) {
+		return localRows.newLocalRow(rowId, rowETag, "form", "en", "COMPLETE",
+				"2015-01-01T00:00:00.000000000", "creator", Scope.asScope("DEFAULT", null),
+				new String[] { name });
+	}
+
+	private void insert(SyncRow row, SyncState state) {
+		ContentValues cv = new ContentValues();
+		cv.put(DataTableColumns.ID, row.getRowId());
+		cv.put(DataTableColumns.ROW_ETAG, row.getRowETag());
+		cv.put(DataTableColumns.SYNC_STATE, state.name());
+		cv.put(DataTableColumns.FILTER_TYPE, "DEFAULT");
+		cv.put(DataTableColumns.FORM_ID, row.getFormId());
+		cv.put(DataTableColumns.LOCALE, row.getLocale());
+		cv.put(DataTableColumns.SAVEPOINT_TYPE, row.getSavepointType());
+		cv.put(DataTableColumns.SAVEPOINT_TIMESTAMP, row.getSavepointTimestamp());
+		cv.put(DataTableColumns.SAVEPOINT_CREATOR, row.getSavepointCreator());
+		cv.put("name", row.getValue(0));
+		db.insertOrThrow("\"" + TABLE_ID + "\"", null, cv);
+	}
+
+	/**
+	 * Put count rows on the server and, in the given state, in the local table.
+	 * The new_row rows are those the server acknowledged (e.g., a push whose
+	 * response was lost), so their fingerprints are recorded.
+	 */
+	private List<SyncRow> putRows(int count, SyncState state) {
+		List<SyncRow> rows = new ArrayList<SyncRow>();
+		for (int i = 0; i < count; ++i) {
+			SyncRow row = makeRow("uuid:" + i, "etag-" + i, "name-" + i);
+			rows.add(row);
+			insert(row, state);
+			if (state == SyncState.new_row) {
+				RowFingerprints.record(db, TABLE_ID, row);
+			}
+		}
+		server.putRows(TABLE_ID, "dataETag-1", rows);
+		return rows;
+	}
+
+	private boolean[] differingBuckets(LocalRowDigests local) {
+		RowDigests serverDigests = server.getRowDigests(resource, BUCKET_COUNT);
+		boolean[] pulled = new boolean[BUCKET_COUNT];
+		for (int i = 0; i < BUCKET_COUNT; ++i) {
+			pulled[i] = local.unverified[i]
+					|| local.bucketDigests[i] != serverDigests.getBucketDigest(i);
+		}
+		return pulled;
+	}
+
+	private String syncStateOf(String rowId) {
+		Cursor c = db.rawQuery("SELECT " + DataTableColumns.SYNC_STATE + " FROM \"" + TABLE_ID
+				+ "\" WHERE " + DataTableColumns.ID + "=?", new String[] { rowId });
+		try {
+			assertTrue(c.moveToFirst());
+			return c.getString(0);
+		} finally {
+			c.close();
+		}
+	}
+
+	public void testSyncedTableMatchesServer() {
+		putRows(300, SyncState.synced);
+		LocalRowDigests local = LocalRowDigests.compute(db, TABLE_ID, localRows, BUCKET_COUNT, 50);
+		boolean[] pulled = differingBuckets(local);
+		for (int i = 0; i < BUCKET_COUNT; ++i) {
+			assertFalse(pulled[i]);
+		}
+	}
+
+	public void testChangedServerRowIsPulled() {
+		List<SyncRow> rows = putRows(300, SyncState.synced);
+		rows.set(123, makeRow("uuid:123", "etag-123-revised", "revised"));
+		server.putRows(TABLE_ID, "dataETag-2", rows);
+
+		LocalRowDigests local = LocalRowDigests.compute(db, TABLE_ID, localRows, BUCKET_COUNT, 50);
+		boolean[] pulled = differingBuckets(local);
+		int expectedBucket = RowDigests.bucketOf("uuid:123", BUCKET_COUNT);
+		List<Integer> buckets = new ArrayList<Integer>();
+		for (int i = 0; i < BUCKET_COUNT; ++i) {
+			assertEquals(i == expectedBucket, pulled[i]);
+			if (pulled[i]) {
+				buckets.add(i);
+			}
+		}
+
+		SyncRowPage page = server.getRowsInBuckets(resource, BUCKET_COUNT, buckets, null, 0,
+				noAttachments);
+		boolean found = false;
+		for (SyncRow row : page.getRows()) {
+			assertEquals(expectedBucket, RowDigests.bucketOf(row.getRowId(), BUCKET_COUNT));
+			if (row.getRowId().equals("uuid:123")) {
+				assertEquals("etag-123-revised", row.getRowETag());
+				found = true;
+			}
+		}
+		assertTrue(found);
+	}
+
+	public void testUnacknowledgedNewRowIsUnverified() {
+		putRows(300, SyncState.new_row);
+		// changed locally since the server acknowledged it
+		db.execSQL("UPDATE \"" + TABLE_ID + "\" SET name='edited' WHERE " + DataTableColumns.ID
+				+ "='uuid:7'");
+
+		LocalRowDigests local = LocalRowDigests.compute(db, TABLE_ID, localRows, BUCKET_COUNT, 50);
+		int editedBucket = RowDigests.bucketOf("uuid:7", BUCKET_COUNT);
+		for (int i = 0; i < BUCKET_COUNT; ++i) {
+			assertEquals(i == editedBucket, local.unverified[i]);
+		}
+		// the rowETags are unchanged, so the digests alone would not show the edit
+		RowDigests serverDigests = server.getRowDigests(resource, BUCKET_COUNT);
+		assertEquals(serverDigests.getBucketDigest(editedBucket),
+				local.bucketDigests[editedBucket]);
+	}
+
+	public void testMarkRowsSyncedSkipsPulledBuckets() {
+		putRows(300, SyncState.new_row);
+		boolean[] pulled = new boolean[BUCKET_COUNT];
+		int pulledBucket = RowDigests.bucketOf("uuid:5", BUCKET_COUNT);
+		pulled[pulledBucket] = true;
+
+		int expected = 0;
+		for (int i = 0; i < 300; ++i) {
+			if (RowDigests.bucketOf("uuid:" + i, BUCKET_COUNT) != pulledBucket) {
+				++expected;
+			}
+		}
+		// a batch size that does not divide the row count
+		assertEquals(expected, LocalRowDigests.markRowsSynced(db, TABLE_ID, pulled,
+				SyncState.synced, 7));
+		for (int i = 0; i < 300; ++i) {
+			String rowId = "uuid:" + i;
+			if (RowDigests.bucketOf(rowId, BUCKET_COUNT) == pulledBucket) {
+				assertEquals(SyncState.new_row.name(), syncStateOf(rowId));
+			} else {
+				assertEquals(SyncState.synced.name(), syncStateOf(rowId));
+			}
+		}
+	}
+}
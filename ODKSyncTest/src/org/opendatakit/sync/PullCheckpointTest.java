@@ -0,0 +1,68 @@
+package org.opendatakit.sync;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+public class PullCheckpointTest extends AndroidTestCase {
+
+	private static final String TABLE_ID = "checkpoint_test";
+
+	private SQLiteDatabase db;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		db = SQLiteDatabase.create(null);
+		PullCheckpoint.ensureTable(db);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		db.close();
+		super.tearDown();
+	}
+
+	public void testResumeAtSameDataETag() {
+		new PullCheckpoint(TABLE_ID, "dataETag-1", "dataETag-5", "cursor-3", 2).save(db);
+		PullCheckpoint checkpoint = PullCheckpoint.load(db, TABLE_ID, "dataETag-1");
+		assertNotNull(checkpoint);
+		assertEquals(TABLE_ID, checkpoint.tableId);
+		assertEquals("dataETag-1", checkpoint.startDataETag);
+		assertEquals("dataETag-5", checkpoint.firstDataETag);
+		assertEquals("cursor-3", checkpoint.resumeCursor);
+		assertEquals(2, checkpoint.changeSetIndex);
+
+		// saving the next page replaces the checkpoint
+		new PullCheckpoint(TABLE_ID, "dataETag-1", "dataETag-5", "cursor-4", 2).save(db);
+		assertEquals("cursor-4", PullCheckpoint.load(db, TABLE_ID, "dataETag-1").resumeCursor);
+	}
+
+	public void testClearedWhenStartDataETagChanges() {
+		new PullCheckpoint(TABLE_ID, "dataETag-1", "dataETag-5", "cursor-3", 0).save(db);
+		assertNull(PullCheckpoint.load(db, TABLE_ID, "dataETag-2"));
+		// the stale checkpoint was removed, not just ignored
+		assertNull(PullCheckpoint.load(db, TABLE_ID, "dataETag-1"));
+	}
+
+	public void testInitialPull() {
+		// a pull of a table that had no dataETag
+		new PullCheckpoint(TABLE_ID, null, "dataETag-5", "cursor-3", 0).save(db);
+		assertNotNull(PullCheckpoint.load(db, TABLE_ID, null));
+
+		// the table has since received a dataETag
+		assertNull(PullCheckpoint.load(db, TABLE_ID, "dataETag-5"));
+		assertNull(PullCheckpoint.load(db, TABLE_ID, null));
+
+		// the table's dataETag was reset
+		new PullCheckpoint(TABLE_ID, "dataETag-5", "dataETag-6", "cursor-1", 0).save(db);
+		assertNull(PullCheckpoint.load(db, TABLE_ID, null));
+	}
+
+	public void testCheckpointsArePerTable() {
+		new PullCheckpoint(TABLE_ID, "dataETag-1", "dataETag-5", "cursor-3", 0).save(db);
+		new PullCheckpoint("other", "dataETag-7", "dataETag-8", "cursor-9", 0).save(db);
+		PullCheckpoint.discard(db, "other");
+		assertNull(PullCheckpoint.load(db, "other", "dataETag-7"));
+		assertNotNull(PullCheckpoint.load(db, TABLE_ID, "dataETag-1"));
+	}
+}
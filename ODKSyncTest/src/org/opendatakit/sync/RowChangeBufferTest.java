@@ -0,0 +1,183 @@
+package org.opendatakit.sync;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.opendatakit.aggregate.odktables.rest.entity.Scope;
+import org.opendatakit.common.android.data.ColumnDefinition;
+
+import android.test.AndroidTestCase;
+
+public class RowChangeBufferTest extends AndroidTestCase {
+
+	private final ArrayList<ColumnDefinition> noAttachments = new ArrayList<ColumnDefinition>();
+
+	private File spillDir;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		spillDir = File.createTempFile("spill", "");
+		spillDir.delete();
+		spillDir.mkdirs();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		File[] files = spillDir.listFiles();
+		assertNotNull(files);
+		// every buffer was closed, so no temp file is left behind
+		assertEquals(0, files.length);
+		spillDir.delete();
+		super.tearDown();
+	}
+
+	private static String longString() {
+		StringBuilder b = new StringBuilder();
+		while (b.length() < 100000) {
+			// 3 bytes in UTF-8, so well over writeUTF()'s 64k limit
+			b.append("\u4e2d");
+		}
+		return b.toString();
+	}
+
+	private SyncRow makeRow(RowBatch batch, String rowId, List<String> columns,
+			List<String> values, Scope filterScope) {
+		return batch.newRow(rowId, "etag-" + rowId, false, "form", null, "COMPLETE",
+				"2015-01-01T00:00:00.000000000", null, filterScope, columns, values);
+	}
+
+	private List<SyncRowDataChanges> makeChanges() {
+		RowBatch batch = new RowBatch(noAttachments);
+		List<String> columns = Arrays.asList("name", "notes");
+		List<SyncRowDataChanges> changes = new ArrayList<SyncRowDataChanges>();
+		for (int i = 0; i < 20; ++i) {
+			SyncRow serverRow = makeRow(batch, "uuid:" + i, columns,
+					Arrays.asList("name-" + i, (i % 2 == 0) ? null : "notes-" + i),
+					Scope.asScope("DEFAULT", null));
+			SyncRow localRow = (i % 3 == 0) ? null : makeRow(batch, "uuid:" + i, columns,
+					Arrays.asList("local-" + i, longString()), Scope.asScope("MODIFY", "user-" + i));
+			changes.add(new SyncRowDataChanges(serverRow, localRow, i % 4 == 0, i));
+		}
+		// the server adds a column part way through the page
+		SyncRow serverRow = makeRow(batch, "uuid:20", Arrays.asList("age", "name", "notes"),
+				Arrays.asList("7", "name-20", null), Scope.asScope("DEFAULT", null));
+		changes.add(new SyncRowDataChanges(serverRow, null, false));
+		return changes;
+	}
+
+	private static void assertSameRow(SyncRow expected, SyncRow actual) {
+		if (expected == null) {
+			assertNull(actual);
+			return;
+		}
+		assertEquals(expected.getRowId(), actual.getRowId());
+		assertEquals(expected.getRowETag(), actual.getRowETag());
+		assertEquals(expected.isDeleted(), actual.isDeleted());
+		assertEquals(expected.getFormId(), actual.getFormId());
+		assertEquals(expected.getLocale(), actual.getLocale());
+		assertEquals(expected.getSavepointType(), actual.getSavepointType());
+		assertEquals(expected.getSavepointTimestamp(), actual.getSavepointTimestamp());
+		assertEquals(expected.getSavepointCreator(), actual.getSavepointCreator());
+		assertEquals(expected.getFilterScope().getType(), actual.getFilterScope().getType());
+		assertEquals(expected.getFilterScope().getValue(), actual.getFilterScope().getValue());
+		assertTrue(Arrays.equals(expected.getColumns(), actual.getColumns()));
+		assertEquals(expected.getValueCount(), actual.getValueCount());
+		for (int i = 0; i < expected.getValueCount(); ++i) {
+			assertEquals(expected.getValue(i), actual.getValue(i));
+		}
+		assertEquals(expected.getFingerprint(), actual.getFingerprint());
+	}
+
+	private void assertSameChanges(List<SyncRowDataChanges> expected, RowChangeBuffer buffer) {
+		assertEquals(expected.size(), buffer.size());
+		Iterator<SyncRowDataChanges> it = buffer.iterator();
+		for (SyncRowDataChanges change : expected) {
+			assertTrue(it.hasNext());
+			SyncRowDataChanges actual = it.next();
+			assertEquals(change.isRestPendingFiles, actual.isRestPendingFiles);
+			assertEquals(change.localRowConflictType, actual.localRowConflictType);
+			assertSameRow(change.serverRow, actual.serverRow);
+			assertSameRow(change.localRow, actual.localRow);
+		}
+		assertFalse(it.hasNext());
+	}
+
+	public void testInMemory() throws Exception {
+		List<SyncRowDataChanges> changes = makeChanges();
+		RowChangeBuffer buffer = new RowChangeBuffer(spillDir, new RowChangeBuffer.MemoryBudget(
+				Long.MAX_VALUE / 2), noAttachments);
+		try {
+			for (SyncRowDataChanges change : changes) {
+				buffer.append(change);
+			}
+			assertEquals(0, buffer.getSpilledCount());
+			assertSameChanges(changes, buffer);
+		} finally {
+			buffer.close();
+		}
+	}
+
+	public void testSpillRoundTrip() throws Exception {
+		List<SyncRowDataChanges> changes = makeChanges();
+		// room for the first few entries only
+		RowChangeBuffer.MemoryBudget budget = new RowChangeBuffer.MemoryBudget(2000L);
+		RowChangeBuffer buffer = new RowChangeBuffer(spillDir, budget, noAttachments);
+		try {
+			for (SyncRowDataChanges change : changes) {
+				buffer.append(change);
+			}
+			assertTrue(buffer.getSpilledCount() > 0);
+			assertTrue(buffer.getSpilledCount() < changes.size());
+			assertSameChanges(changes, buffer);
+			// and again, reading the temp file afresh
+			assertSameChanges(changes, buffer);
+
+			// the rows read back share their column dictionaries again
+			String[] columns = null;
+			int inMemory = buffer.size() - buffer.getSpilledCount();
+			int count = 0;
+			for (SyncRowDataChanges change : buffer) {
+				if (inMemory-- > 0 || change.serverRow.getColumns().length != 2) {
+					continue;
+				}
+				if (columns == null) {
+					columns = change.serverRow.getColumns();
+				}
+				assertSame(columns, change.serverRow.getColumns());
+				if (change.localRow != null) {
+					assertSame(columns, change.localRow.getColumns());
+				}
+				++count;
+			}
+			assertEquals(changes.size() - 1 - (buffer.size() - buffer.getSpilledCount()), count);
+		} finally {
+			buffer.close();
+		}
+		// the memory was returned to the budget
+		assertTrue(budget.reserve(2000L));
+	}
+
+	public void testBudgetIsShared() throws Exception {
+		List<SyncRowDataChanges> changes = makeChanges();
+		// room for one small entry, not two
+		RowChangeBuffer.MemoryBudget budget = new RowChangeBuffer.MemoryBudget(1000L);
+		RowChangeBuffer first = new RowChangeBuffer(spillDir, budget, noAttachments);
+		RowChangeBuffer second = new RowChangeBuffer(spillDir, budget, noAttachments);
+		try {
+			first.append(changes.get(0));
+			second.append(changes.get(0));
+			assertEquals(0, first.getSpilledCount());
+			assertEquals(1, second.getSpilledCount());
+			assertSameChanges(changes.subList(0, 1), first);
+			assertSameChanges(changes.subList(0, 1), second);
+		} finally {
+			first.close();
+			second.close();
+		}
+		assertTrue(budget.reserve(1000L));
+	}
+}
@@ -0,0 +1,94 @@
+package org.opendatakit.sync;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.opendatakit.aggregate.odktables.rest.entity.DataKeyValue;
+import org.opendatakit.aggregate.odktables.rest.entity.Scope;
+import org.opendatakit.aggregate.odktables.rest.entity.TableResource;
+import org.opendatakit.common.android.data.ColumnDefinition;
+
+import android.test.AndroidTestCase;
+
+public class RowDigestsTest extends AndroidTestCase {
+
+	private static final String TABLE_ID = "digests_test";
+
+	private final ArrayList<ColumnDefinition> noAttachments = new ArrayList<ColumnDefinition>();
+
+	private SyncRow makeRow(String rowId, String rowETag) {
+		ArrayList<DataKeyValue> values = new ArrayList<DataKeyValue>();
+		values.add(new DataKeyValue("name", rowId));
+		return new SyncRow(rowId, rowETag, false, "form", "en", "COMPLETE",
+				"2015-01-01T00:00:00.000000000", "creator", Scope.asScope("DEFAULT", null),
+				values, noAttachments);
+	}
+
+	private List<SyncRow> makeRows(int count) {
+		List<SyncRow> rows = new ArrayList<SyncRow>();
+		for (int i = 0; i < count; ++i) {
+			rows.add(makeRow("uuid:" + i, "etag-" + i));
+		}
+		return rows;
+	}
+
+	private RowDigests digestsOf(List<SyncRow> rows, int bucketCount) {
+		StandInSynchronizer server = new StandInSynchronizer();
+		server.putRows(TABLE_ID, "dataETag-1", rows);
+		TableResource resource = new TableResource();
+		resource.setTableId(TABLE_ID);
+		return server.getRowDigests(resource, bucketCount);
+	}
+
+	public void testBucketCount() {
+		assertEquals(RowDigests.MIN_BUCKET_COUNT, RowDigests.bucketCountFor(0));
+		assertEquals(RowDigests.MIN_BUCKET_COUNT, RowDigests.bucketCountFor(1000));
+		assertEquals(128, RowDigests.bucketCountFor(1025));
+		assertEquals(RowDigests.MAX_BUCKET_COUNT, RowDigests.bucketCountFor(100000000L));
+	}
+
+	public void testDigestsIgnoreRowOrder() {
+		List<SyncRow> rows = makeRows(500);
+		RowDigests expected = digestsOf(rows, 64);
+		Collections.reverse(rows);
+		RowDigests actual = digestsOf(rows, 64);
+		for (int i = 0; i < 64; ++i) {
+			assertEquals(expected.getBucketDigest(i), actual.getBucketDigest(i));
+		}
+	}
+
+	public void testChangedRowDiffersInOneBucket() {
+		List<SyncRow> rows = makeRows(500);
+		RowDigests before = digestsOf(rows, 64);
+		rows.set(123, makeRow("uuid:123", "etag-123-revised"));
+		RowDigests after = digestsOf(rows, 64);
+
+		int expectedBucket = RowDigests.bucketOf("uuid:123", 64);
+		for (int i = 0; i < 64; ++i) {
+			if (i == expectedBucket) {
+				assertTrue(before.getBucketDigest(i) != after.getBucketDigest(i));
+			} else {
+				assertEquals(before.getBucketDigest(i), after.getBucketDigest(i));
+			}
+		}
+	}
+
+	public void testRowsInBuckets() {
+		List<SyncRow> rows = makeRows(500);
+		StandInSynchronizer server = new StandInSynchronizer();
+		server.putRows(TABLE_ID, "dataETag-1", rows);
+		TableResource resource = new TableResource();
+		resource.setTableId(TABLE_ID);
+
+		List<Integer> buckets = new ArrayList<Integer>();
+		buckets.add(RowDigests.bucketOf("uuid:42", 64));
+		SyncRowPage page = server.getRowsInBuckets(resource, 64, buckets, null, 0, noAttachments);
+		boolean found = false;
+		for (SyncRow row : page.getRows()) {
+			assertEquals(buckets.get(0).intValue(), RowDigests.bucketOf(row.getRowId(), 64));
+			found |= row.getRowId().equals("uuid:42");
+		}
+		assertTrue(found);
+	}
+}
@@ -0,0 +1,141 @@
+package org.opendatakit.sync;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.aggregate.odktables.rest.entity.Column;
+import org.opendatakit.aggregate.odktables.rest.entity.DataKeyValue;
+import org.opendatakit.aggregate.odktables.rest.entity.Scope;
+import org.opendatakit.common.android.data.ColumnDefinition;
+import org.opendatakit.sync.files.SyncUtil;
+
+import android.test.AndroidTestCase;
+
+public class RowEquivalenceTest extends AndroidTestCase {
+
+	private static final String TABLE_ID = "equivalence_test";
+
+	private final ArrayList<ColumnDefinition> noAttachments = new ArrayList<ColumnDefinition>();
+
+	/**
+	 * The number comparison RowEquivalence replaces: step from the local value
+	 * towards the server value up to 128 times with Math.nextAfter().
+	 */
+	private static boolean nextAfterEqual(String localValue, String serverValue) {
+		Double localNumber = Double.valueOf(localValue);
+		Double serverNumber = Double.valueOf(serverValue);
+		if (localNumber.equals(serverNumber)) {
+			return true;
+		} else if (localNumber.isInfinite() && serverNumber.isInfinite()) {
+			return Math.signum(localNumber) == Math.signum(serverNumber);
+		} else if (localNumber.isNaN() || localNumber.isInfinite() || serverNumber.isNaN()
+				|| serverNumber.isInfinite()) {
+			return false;
+		}
+		double localDbl = localNumber;
+		double serverDbl = serverNumber;
+		if (localDbl == serverDbl) {
+			return true;
+		}
+		double localNear = localDbl;
+		int idist;
+		int idistMax = 128;
+		for (idist = 0; idist < idistMax; ++idist) {
+			localNear = Math.nextAfter(localNear, serverDbl);
+			if (localNear == serverDbl) {
+				break;
+			}
+		}
+		return idist < idistMax;
+	}
+
+	private static double step(double value, int steps) {
+		double direction = (steps < 0) ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+		for (int i = 0; i < Math.abs(steps); ++i) {
+			value = Math.nextAfter(value, direction);
+		}
+		return value;
+	}
+
+	private static void assertSameAsNextAfter(String localValue, String serverValue) {
+		assertEquals(localValue + " vs " + serverValue, nextAfterEqual(localValue, serverValue),
+				RowEquivalence.nearlyEqual(localValue, serverValue));
+		assertEquals(serverValue + " vs " + localValue, nextAfterEqual(serverValue, localValue),
+				RowEquivalence.nearlyEqual(serverValue, localValue));
+	}
+
+	public void testSpecialValues() {
+		String[] values = { "0", "0.0", "-0.0", "NaN", "Infinity", "-Infinity", "1", "9.8",
+				"9.80", "-9.8", "4.9E-324", "-4.9E-324", "1.7976931348623157E308",
+				"-1.7976931348623157E308", "2.2250738585072014E-308" };
+		for (String a : values) {
+			for (String b : values) {
+				assertSameAsNextAfter(a, b);
+			}
+		}
+		assertTrue(RowEquivalence.nearlyEqual("0.0", "-0.0"));
+		assertTrue(RowEquivalence.nearlyEqual("NaN", "NaN"));
+		assertFalse(RowEquivalence.nearlyEqual("NaN", "0"));
+		assertFalse(RowEquivalence.nearlyEqual("Infinity", "1.7976931348623157E308"));
+	}
+
+	public void testBoundaryOfUlpDistance() {
+		double[] origins = { 9.8, -9.8, 0.0, -0.0, Double.MIN_VALUE, -Double.MIN_VALUE,
+				Double.MIN_NORMAL, 1.0, 1.0e300, -1.0e-300, Double.MAX_VALUE };
+		for (double origin : origins) {
+			for (int steps = -260; steps <= 260; ++steps) {
+				double other = step(origin, steps);
+				assertSameAsNextAfter(Double.toString(origin), Double.toString(other));
+			}
+		}
+		assertTrue(RowEquivalence.nearlyEqual("1.0", Double.toString(step(1.0, 128))));
+		assertFalse(RowEquivalence.nearlyEqual("1.0", Double.toString(step(1.0, 129))));
+		// across zero
+		assertTrue(RowEquivalence.nearlyEqual(Double.toString(step(0.0, 64)),
+				Double.toString(step(-0.0, -63))));
+	}
+
+	public void testRandomValues() {
+		Random random = new Random(20150601L);
+		for (int i = 0; i < 2000; ++i) {
+			double origin = Double.longBitsToDouble(random.nextLong());
+			if (Double.isNaN(origin)) {
+				continue;
+			}
+			double other = step(origin, random.nextInt(400) - 200);
+			assertSameAsNextAfter(Double.toString(origin), Double.toString(other));
+		}
+	}
+
+	private SyncRow makeRow(String count, String weight) {
+		ArrayList<DataKeyValue> values = new ArrayList<DataKeyValue>();
+		values.add(new DataKeyValue("count", count));
+		values.add(new DataKeyValue("weight", weight));
+		return new SyncRow("uuid:1", "etag-1", false, "form", "en", "COMPLETE",
+				"2015-01-01T00:00:00.000000000", "creator", Scope.asScope("DEFAULT", null),
+				values, noAttachments);
+	}
+
+	public void testOnlyNumberColumnsAreNearlyEqual() {
+		List<Column> columns = new ArrayList<Column>();
+		columns.add(new Column("count", "count", ElementDataType.integer.name(), "[]"));
+		columns.add(new Column("weight", "weight", ElementDataType.number.name(), "[]"));
+		RowEquivalence equivalence = new RowEquivalence(ColumnDefinition.buildColumnDefinitions(
+				SyncUtil.getDefaultAppName(), TABLE_ID, columns));
+
+		SyncRow local = makeRow("12", "9.8");
+		assertTrue(equivalence.identicalValuesExceptRowETagAndFilterScope(makeRow("12", "9.80"),
+				local));
+		assertTrue(equivalence.identicalValuesExceptRowETagAndFilterScope(makeRow("12",
+				Double.toString(step(9.8, 100))), local));
+		assertFalse(equivalence.identicalValuesExceptRowETagAndFilterScope(makeRow("12",
+				Double.toString(step(9.8, 200))), local));
+		// integers must be textually identical
+		assertFalse(equivalence.identicalValuesExceptRowETagAndFilterScope(makeRow("12.0", "9.8"),
+				local));
+		assertFalse(equivalence.identicalValuesExceptRowETagAndFilterScope(makeRow("012", "9.8"),
+				local));
+	}
+}
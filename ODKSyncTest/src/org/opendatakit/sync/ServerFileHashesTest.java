@@ -0,0 +1,85 @@
+package org.opendatakit.sync;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.aggregate.odktables.rest.entity.Column;
+import org.opendatakit.aggregate.odktables.rest.entity.DataKeyValue;
+import org.opendatakit.aggregate.odktables.rest.entity.Scope;
+import org.opendatakit.common.android.data.ColumnDefinition;
+import org.opendatakit.common.android.utilities.WebLogger;
+import org.opendatakit.sync.files.SyncUtil;
+
+import android.test.AndroidTestCase;
+
+public class ServerFileHashesTest extends AndroidTestCase {
+
+	private static final String TABLE_ID = "attachments_test";
+	private static final String INSTANCE_FILES_URI = "https://example.org/odktables/default/tables/attachments_test/ref/1/attachments";
+
+	private ArrayList<ColumnDefinition> fileAttachmentColumns() {
+		List<Column> columns = new ArrayList<Column>();
+		columns.add(new Column("photo", "photo", ElementDataType.rowpath.name(), "[]"));
+		ArrayList<ColumnDefinition> fileAttachmentColumns = new ArrayList<ColumnDefinition>();
+		for (ColumnDefinition cd : ColumnDefinition.buildColumnDefinitions(
+				SyncUtil.getDefaultAppName(), TABLE_ID, columns)) {
+			if (cd.getType().getDataType() == ElementDataType.rowpath) {
+				fileAttachmentColumns.add(cd);
+			}
+		}
+		return fileAttachmentColumns;
+	}
+
+	private SyncRowPending makePending(String rowId, String photo, boolean getOnly) {
+		ArrayList<DataKeyValue> values = new ArrayList<DataKeyValue>();
+		values.add(new DataKeyValue("photo", photo));
+		SyncRow row = new SyncRow(rowId, "etag-" + rowId, false, "form", "en", "COMPLETE",
+				"2015-01-01T00:00:00.000000000", "creator", Scope.asScope("DEFAULT", null),
+				values, fileAttachmentColumns());
+		return new SyncRowPending(row, getOnly, true, true);
+	}
+
+	public void testHashesAreRequestedInBatches() {
+		StandInSynchronizer server = new StandInSynchronizer();
+		Map<String, String> hashes = new HashMap<String, String>();
+		hashes.put("photo.jpg", "md5:0123456789abcdef0123456789abcdef");
+		server.putFileHashes("uuid:8", hashes);
+
+		// the even rows push their files; the odd rows only get theirs.
+		List<SyncRowPending> rows = new ArrayList<SyncRowPending>();
+		for (int i = 0; i < 120; ++i) {
+			rows.add(makePending("uuid:" + i, "photo.jpg", (i % 2) == 1));
+		}
+		WebLogger log = WebLogger.getLogger(SyncUtil.getDefaultAppName());
+		for (int from = 0; from < rows.size(); from += 50) {
+			ProcessRowDataChanges.requestServerFileHashes(server, INSTANCE_FILES_URI, TABLE_ID,
+					rows, from, 50, log);
+		}
+		assertEquals(3, server.getFileHashRequests());
+		for (int i = 0; i < rows.size(); ++i) {
+			Map<String, String> serverHashes = rows.get(i).getServerFileHashes();
+			if ((i % 2) == 1) {
+				assertNull(serverHashes);
+			} else if (i == 8) {
+				assertEquals(hashes, serverHashes);
+			} else {
+				assertNotNull(serverHashes);
+				assertTrue(serverHashes.isEmpty());
+			}
+		}
+	}
+
+	public void testRowsWithoutAttachmentsAreSkipped() {
+		StandInSynchronizer server = new StandInSynchronizer();
+		List<SyncRowPending> rows = new ArrayList<SyncRowPending>();
+		for (int i = 0; i < 10; ++i) {
+			rows.add(makePending("uuid:" + i, null, false));
+		}
+		ProcessRowDataChanges.requestServerFileHashes(server, INSTANCE_FILES_URI, TABLE_ID, rows,
+				0, 50, WebLogger.getLogger(SyncUtil.getDefaultAppName()));
+		assertEquals(0, server.getFileHashRequests());
+	}
+}
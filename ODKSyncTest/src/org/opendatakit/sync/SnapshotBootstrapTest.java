@@ -0,0 +1,208 @@
+package org.opendatakit.sync;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.aggregate.odktables.rest.SyncState;
+import org.opendatakit.aggregate.odktables.rest.entity.Column;
+import org.opendatakit.aggregate.odktables.rest.entity.DataKeyValue;
+import org.opendatakit.aggregate.odktables.rest.entity.Scope;
+import org.opendatakit.aggregate.odktables.rest.entity.TableResource;
+import org.opendatakit.common.android.data.ColumnDefinition;
+import org.opendatakit.common.android.data.TableDefinitionEntry;
+import org.opendatakit.common.android.provider.DataTableColumns;
+import org.opendatakit.common.android.utilities.ODKDatabaseUtils;
+import org.opendatakit.sync.files.SyncUtil;
+import org.opendatakit.sync.service.SyncNotification;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+public class SnapshotBootstrapTest extends AndroidTestCase {
+
+	private static final String TABLE_ID = "snapshot_bootstrap_test";
+	private static final String SCHEMA_ETAG = "schemaETag-1";
+	private static final int ROW_COUNT = 5000;
+
+	private final ArrayList<ColumnDefinition> noAttachments = new ArrayList<ColumnDefinition>();
+
+	private String appName;
+	private StandInSynchronizer server;
+	private SyncExecutionContext sc;
+	private ArrayList<ColumnDefinition> orderedColumns;
+	private TableResource resource;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		appName = SyncUtil.getDefaultAppName();
+		server = new StandInSynchronizer();
+		sc = new SyncExecutionContext(getContext(), appName, server, new SyncNotification(
+				getContext(), appName), new SynchronizationResult());
+
+		List<Column> columns = new ArrayList<Column>();
+		columns.add(new Column("name", "name", ElementDataType.string.name(), "[]"));
+		columns.add(new Column("notes", "notes", ElementDataType.string.name(), "[]"));
+		SQLiteDatabase db = null;
+		try {
+			db = sc.getDatabase();
+			db.beginTransaction();
+			orderedColumns = ODKDatabaseUtils.get().createOrOpenDBTableWithColumns(db, appName,
+					TABLE_ID, columns);
+			ODKDatabaseUtils.get().updateDBTableETags(db, TABLE_ID, SCHEMA_ETAG, null);
+			db.setTransactionSuccessful();
+		} finally {
+			if (db != null) {
+				db.endTransaction();
+				db.close();
+			}
+		}
+
+		resource = new TableResource();
+		resource.setTableId(TABLE_ID);
+		resource.setSchemaETag(SCHEMA_ETAG);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		SQLiteDatabase db = null;
+		try {
+			db = sc.getDatabase();
+			db.beginTransaction();
+			ODKDatabaseUtils.get().deleteDBTableAndAllData(db, appName, TABLE_ID);
+			db.setTransactionSuccessful();
+		} finally {
+			if (db != null) {
+				db.endTransaction();
+				db.close();
+			}
+		}
+		super.tearDown();
+	}
+
+	private List<SyncRow> makeRows() {
+		List<SyncRow> rows = new ArrayList<SyncRow>();
+		for (int i = 0; i < ROW_COUNT; ++i) {
+			ArrayList<DataKeyValue> values = new ArrayList<DataKeyValue>();
+			values.add(new DataKeyValue("name", "name-" + i));
+			values.add(new DataKeyValue("notes", (i % 3 == 0) ? null : "notes for row " + i));
+			rows.add(new SyncRow("uuid:" + i, "etag-" + i, false, "form", "en", "COMPLETE",
+					"2015-01-01T00:00:00.000000000", "creator", Scope.asScope("DEFAULT", null),
+					values, noAttachments));
+		}
+		return rows;
+	}
+
+	private TableDefinitionEntry getTableDefinitionEntry() {
+		SQLiteDatabase db = null;
+		try {
+			db = sc.getDatabase();
+			return ODKDatabaseUtils.get().getTableDefinitionEntry(db, TABLE_ID);
+		} finally {
+			if (db != null) {
+				db.close();
+			}
+		}
+	}
+
+	private long countRows() {
+		SQLiteDatabase db = null;
+		try {
+			db = sc.getDatabase();
+			return DatabaseUtils.queryNumEntries(db, "\"" + TABLE_ID + "\"");
+		} finally {
+			if (db != null) {
+				db.close();
+			}
+		}
+	}
+
+	public void testSnapshotLoadsEmptyTable() {
+		List<SyncRow> rows = makeRows();
+		server.putRows(TABLE_ID, "dataETag-9", rows);
+
+		TableDefinitionEntry te = getTableDefinitionEntry();
+		List<SyncRowPending> rowsToPushFileAttachments = new ArrayList<SyncRowPending>();
+		ProcessRowDataChanges worker = new ProcessRowDataChanges(sc);
+		assertTrue(worker.loadTableSnapshot(resource, te, orderedColumns, noAttachments,
+				rowsToPushFileAttachments));
+
+		assertEquals("dataETag-9", te.getLastDataETag());
+		assertEquals("dataETag-9", resource.getDataETag());
+		assertEquals("dataETag-9", getTableDefinitionEntry().getLastDataETag());
+		assertTrue(rowsToPushFileAttachments.isEmpty());
+		assertEquals(ROW_COUNT, countRows());
+
+		SQLiteDatabase db = null;
+		Cursor c = null;
+		try {
+			db = sc.getDatabase();
+			c = db.rawQuery("SELECT " + DataTableColumns.ID + ", " + DataTableColumns.ROW_ETAG
+					+ ", " + DataTableColumns.SYNC_STATE + ", name, notes FROM \"" + TABLE_ID
+					+ "\" WHERE " + DataTableColumns.ID + " IN (?, ?)", new String[] { "uuid:3",
+					"uuid:4" });
+			int found = 0;
+			while (c.moveToNext()) {
+				String rowId = c.getString(0);
+				int i = Integer.parseInt(rowId.substring("uuid:".length()));
+				assertEquals("etag-" + i, c.getString(1));
+				assertEquals(SyncState.synced.name(), c.getString(2));
+				assertEquals("name-" + i, c.getString(3));
+				if (i % 3 == 0) {
+					assertTrue(c.isNull(4));
+				} else {
+					assertEquals("notes for row " + i, c.getString(4));
+				}
+				++found;
+			}
+			assertEquals(2, found);
+		} finally {
+			if (c != null) {
+				c.close();
+			}
+			if (db != null) {
+				db.close();
+			}
+		}
+	}
+
+	public void testTruncatedSnapshotLeavesTableRepullable() {
+		server.putRows(TABLE_ID, "dataETag-9", makeRows());
+		server.setSnapshotsTruncated(true);
+
+		TableDefinitionEntry te = getTableDefinitionEntry();
+		List<SyncRowPending> rowsToPushFileAttachments = new ArrayList<SyncRowPending>();
+		ProcessRowDataChanges worker = new ProcessRowDataChanges(sc);
+		boolean committed = worker.loadTableSnapshot(resource, te, orderedColumns, noAttachments,
+				rowsToPushFileAttachments);
+
+		// only whole transactions of rows are kept, and no dataETag is recorded,
+		// so the pull starts over from the beginning of the table.
+		long count = countRows();
+		assertEquals(count != 0, committed);
+		assertTrue(count < ROW_COUNT);
+		assertEquals(0, count % ProcessRowDataChanges.BOOTSTRAP_ROWS_PER_TRANSACTION);
+		assertNull(te.getLastDataETag());
+		assertNull(resource.getDataETag());
+		assertNull(getTableDefinitionEntry().getLastDataETag());
+
+		SyncRowPage page = server.getUpdates(resource, te.getLastDataETag(), null, 0,
+				noAttachments);
+		assertEquals(ROW_COUNT, page.getRows().size());
+	}
+
+	public void testUnsupportedSnapshotLeavesTableEmpty() {
+		server.putRows(TABLE_ID, "dataETag-9", makeRows());
+		server.setSnapshotsSupported(false);
+
+		TableDefinitionEntry te = getTableDefinitionEntry();
+		ProcessRowDataChanges worker = new ProcessRowDataChanges(sc);
+		assertFalse(worker.loadTableSnapshot(resource, te, orderedColumns, noAttachments,
+				new ArrayList<SyncRowPending>()));
+		assertEquals(0, countRows());
+		assertNull(getTableDefinitionEntry().getLastDataETag());
+	}
+}
@@ -0,0 +1,280 @@
+package org.opendatakit.sync;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.opendatakit.aggregate.odktables.rest.entity.ChangeSetList;
+import org.opendatakit.aggregate.odktables.rest.entity.Column;
+import org.opendatakit.aggregate.odktables.rest.entity.RowOutcomeList;
+import org.opendatakit.aggregate.odktables.rest.entity.Scope;
+import org.opendatakit.aggregate.odktables.rest.entity.TableDefinitionResource;
+import org.opendatakit.aggregate.odktables.rest.entity.TableResource;
+import org.opendatakit.aggregate.odktables.rest.entity.TableResourceList;
+import org.opendatakit.common.android.data.ColumnDefinition;
+import org.opendatakit.common.android.provider.DataTableColumns;
+
+/**
+ * An in-memory stand-in for the server, holding the current rows of each
+ * table under a dataETag. Only the row retrieval calls are supported.
+ */
+public class StandInSynchronizer implements Synchronizer {
+
+	private static final String[] METADATA_COLUMNS = { DataTableColumns.ID,
+			DataTableColumns.ROW_ETAG, DataTableColumns.FORM_ID,
+			DataTableColumns.LOCALE, DataTableColumns.SAVEPOINT_TYPE,
+			DataTableColumns.SAVEPOINT_TIMESTAMP,
+			DataTableColumns.SAVEPOINT_CREATOR, DataTableColumns.FILTER_TYPE,
+			DataTableColumns.FILTER_VALUE };
+
+	private final Map<String, List<SyncRow>> rows = new HashMap<String, List<SyncRow>>();
+	private final Map<String, String> dataETags = new HashMap<String, String>();
+	private boolean snapshotsSupported = true;
+	private boolean snapshotsTruncated = false;
+	private final Map<String, Map<String, String>> fileHashes = new HashMap<String, Map<String, String>>();
+	private int fileHashRequests = 0;
+
+	/**
+	 * Replace the rows of the table on the stand-in server.
+	 */
+	public void putRows(String tableId, String dataETag, List<SyncRow> tableRows) {
+		rows.put(tableId, new ArrayList<SyncRow>(tableRows));
+		dataETags.put(tableId, dataETag);
+	}
+
+	public void setSnapshotsSupported(boolean snapshotsSupported) {
+		this.snapshotsSupported = snapshotsSupported;
+	}
+
+	/**
+	 * Serve only the first half of each snapshot, as when the connection is
+	 * lost part way through the download.
+	 */
+	public void setSnapshotsTruncated(boolean snapshotsTruncated) {
+		this.snapshotsTruncated = snapshotsTruncated;
+	}
+
+	/**
+	 * Set the md5 hashes of the attachments the stand-in server holds for a
+	 * row, by their path relative to the row's instance folder.
+	 */
+	public void putFileHashes(String rowId, Map<String, String> hashes) {
+		fileHashes.put(rowId, new HashMap<String, String>(hashes));
+	}
+
+	/**
+	 * @return the number of getServerFileHashes() requests made.
+	 */
+	public int getFileHashRequests() {
+		return fileHashRequests;
+	}
+
+	@Override
+	public void getServerFileHashes(String instanceFileUri, String tableId,
+			List<SyncRowPending> localRows) {
+		++fileHashRequests;
+		for (SyncRowPending localRow : localRows) {
+			Map<String, String> hashes = fileHashes.get(localRow.getRowId());
+			localRow.setServerFileHashes((hashes == null) ? new HashMap<String, String>()
+					: new HashMap<String, String>(hashes));
+		}
+	}
+
+	@Override
+	public TableSnapshot getTableSnapshot(TableResource tableResource,
+			ArrayList<ColumnDefinition> fileAttachmentColumns) throws IOException {
+		String tableId = tableResource.getTableId();
+		if (!snapshotsSupported || !rows.containsKey(tableId)) {
+			return null;
+		}
+		byte[] bytes = writeSnapshot(rows.get(tableId));
+		int length = snapshotsTruncated ? bytes.length / 2 : bytes.length;
+		return new TableSnapshot(dataETags.get(tableId), new ByteArrayInputStream(bytes, 0,
+				length), fileAttachmentColumns);
+	}
+
+	/**
+	 * Write the rows as a gzip-compressed CSV snapshot.
+	 */
+	static byte[] writeSnapshot(List<SyncRow> tableRows) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Writer out = new OutputStreamWriter(new GZIPOutputStream(bytes), "UTF-8");
+		String[] columns = tableRows.isEmpty() ? new String[0] : tableRows.get(0).getColumns();
+		List<String> header = new ArrayList<String>();
+		for (String column : METADATA_COLUMNS) {
+			header.add(column);
+		}
+		for (String column : columns) {
+			header.add(column);
+		}
+		writeRecord(out, header);
+		for (SyncRow row : tableRows) {
+			Scope scope = row.getFilterScope();
+			List<String> record = new ArrayList<String>();
+			record.add(row.getRowId());
+			record.add(row.getRowETag());
+			record.add(row.getFormId());
+			record.add(row.getLocale());
+			record.add(row.getSavepointType());
+			record.add(row.getSavepointTimestamp());
+			record.add(row.getSavepointCreator());
+			record.add((scope == null || scope.getType() == null) ? null : scope.getType().name());
+			record.add((scope == null) ? null : scope.getValue());
+			for (int i = 0; i < row.getValueCount(); ++i) {
+				record.add(row.getValue(i));
+			}
+			writeRecord(out, record);
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static void writeRecord(Writer out, List<String> fields) throws IOException {
+		for (int i = 0; i < fields.size(); ++i) {
+			if (i != 0) {
+				out.write(',');
+			}
+			String field = fields.get(i);
+			if (field == null) {
+				continue;
+			}
+			out.write('"');
+			out.write(field.replace("\"", "\"\""));
+			out.write('"');
+		}
+		out.write("\r\n");
+	}
+
+	@Override
+	public SyncRowPage getUpdates(TableResource tableResource, String dataETag,
+			String websafeResumeCursor, int fetchLimit,
+			ArrayList<ColumnDefinition> fileAttachmentColumns) {
+		String tableId = tableResource.getTableId();
+		SyncRowPage page = new SyncRowPage();
+		page.setDataETag(dataETags.get(tableId));
+		page.setHasMoreResults(false);
+		String current = dataETags.get(tableId);
+		if (dataETag == null || current == null || !current.equals(dataETag)) {
+			List<SyncRow> tableRows = rows.get(tableId);
+			if (tableRows != null) {
+				for (SyncRow row : tableRows) {
+					page.addRow(row);
+				}
+			}
+		}
+		return page;
+	}
+
+	@Override
+	public RowDigests getRowDigests(TableResource tableResource, int bucketCount) {
+		String tableId = tableResource.getTableId();
+		long[] bucketDigests = new long[bucketCount];
+		List<SyncRow> tableRows = rows.get(tableId);
+		if (tableRows != null) {
+			for (SyncRow row : tableRows) {
+				RowDigests.add(bucketDigests, row.getRowId(), row.getRowETag());
+			}
+		}
+		return new RowDigests(dataETags.get(tableId), bucketDigests);
+	}
+
+	@Override
+	public SyncRowPage getRowsInBuckets(TableResource tableResource, int bucketCount,
+			List<Integer> buckets, String websafeResumeCursor, int fetchLimit,
+			ArrayList<ColumnDefinition> fileAttachmentColumns) {
+		String tableId = tableResource.getTableId();
+		SyncRowPage page = new SyncRowPage();
+		page.setDataETag(dataETags.get(tableId));
+		page.setHasMoreResults(false);
+		List<SyncRow> tableRows = rows.get(tableId);
+		if (tableRows != null) {
+			for (SyncRow row : tableRows) {
+				if (buckets.contains(RowDigests.bucketOf(row.getRowId(), bucketCount))) {
+					page.addRow(row);
+				}
+			}
+		}
+		return page;
+	}
+
+	@Override
+	public SyncRowPage getChangeSet(TableResource tableResource, String dataETag,
+			boolean activeOnly, String websafeResumeCursor, int fetchLimit,
+			ArrayList<ColumnDefinition> fileAttachmentColumns) {
+		throw new UnsupportedOperationException("getChangeSet");
+	}
+
+	@Override
+	public ChangeSetList getChangeSets(TableResource tableResource, String dataETag) {
+		throw new UnsupportedOperationException("getChangeSets");
+	}
+
+	@Override
+	public TableResourceList getTables(String webSafeResumeCursor, int fetchLimit) {
+		throw new UnsupportedOperationException("getTables");
+	}
+
+	@Override
+	public TableDefinitionResource getTableDefinition(String tableDefinitionUri) {
+		throw new UnsupportedOperationException("getTableDefinition");
+	}
+
+	@Override
+	public TableResource createTable(String tableId, String schemaETag,
+			ArrayList<Column> columns) {
+		throw new UnsupportedOperationException("createTable");
+	}
+
+	@Override
+	public void deleteTable(TableResource table) {
+		throw new UnsupportedOperationException("deleteTable");
+	}
+
+	@Override
+	public RowOutcomeList alterRows(TableResource tableResource,
+			List<SyncRow> rowsToInsertUpdateOrDelete) {
+		throw new UnsupportedOperationException("alterRows");
+	}
+
+	@Override
+	public boolean syncAppLevelFiles(boolean pushLocalFiles,
+			String serverReportedAppLevelETag, SynchronizerStatus syncStatus) {
+		throw new UnsupportedOperationException("syncAppLevelFiles");
+	}
+
+	@Override
+	public void syncTableLevelFiles(String tableId, String serverReportedTableLevelETag,
+			OnTablePropertiesChanged onChange, boolean pushLocal, SynchronizerStatus syncStatus) {
+		throw new UnsupportedOperationException("syncTableLevelFiles");
+	}
+
+	@Override
+	public boolean getFileAttachments(String instanceFileUri, String tableId,
+			SyncRowPending serverRow, boolean deferInstanceAttachments) {
+		throw new UnsupportedOperationException("getFileAttachments");
+	}
+
+	@Override
+	public boolean putFileAttachments(String instanceFileUri, String tableId,
+			SyncRowPending localRow, boolean deferInstanceAttachments) {
+		throw new UnsupportedOperationException("putFileAttachments");
+	}
+
+	@Override
+	public URI constructTableInstanceFileUri(String tableId, String schemaETag) {
+		throw new UnsupportedOperationException("constructTableInstanceFileUri");
+	}
+
+	@Override
+	public void setTransferMetrics(TransferMetrics transferMetrics) {
+		// no files are transferred
+	}
+}
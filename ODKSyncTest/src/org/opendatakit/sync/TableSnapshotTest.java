@@ -0,0 +1,102 @@
+package org.opendatakit.sync;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opendatakit.aggregate.odktables.rest.entity.DataKeyValue;
+import org.opendatakit.aggregate.odktables.rest.entity.Scope;
+import org.opendatakit.aggregate.odktables.rest.entity.TableResource;
+import org.opendatakit.common.android.data.ColumnDefinition;
+
+import android.test.AndroidTestCase;
+
+public class TableSnapshotTest extends AndroidTestCase {
+
+	private static final String TABLE_ID = "snapshot_test";
+
+	private final ArrayList<ColumnDefinition> noAttachments = new ArrayList<ColumnDefinition>();
+
+	private SyncRow makeRow(String rowId, String name, String notes) {
+		ArrayList<DataKeyValue> values = new ArrayList<DataKeyValue>();
+		values.add(new DataKeyValue("name", name));
+		values.add(new DataKeyValue("notes", notes));
+		return new SyncRow(rowId, "etag-" + rowId, false, "form", "en", "COMPLETE",
+				"2015-01-01T00:00:00.000000000", "creator", Scope.asScope("DEFAULT", null),
+				values, noAttachments);
+	}
+
+	private void assertSameRow(SyncRow expected, SyncRow actual) {
+		assertEquals(expected.getRowId(), actual.getRowId());
+		assertEquals(expected.getRowETag(), actual.getRowETag());
+		assertEquals(expected.getFormId(), actual.getFormId());
+		assertEquals(expected.getLocale(), actual.getLocale());
+		assertEquals(expected.getSavepointType(), actual.getSavepointType());
+		assertEquals(expected.getSavepointTimestamp(), actual.getSavepointTimestamp());
+		assertEquals(expected.getSavepointCreator(), actual.getSavepointCreator());
+		assertEquals(expected.getFilterScope().getType(), actual.getFilterScope().getType());
+		assertEquals(expected.getFilterScope().getValue(), actual.getFilterScope().getValue());
+		assertEquals(expected.getValueCount(), actual.getValueCount());
+		for (int i = 0; i < expected.getValueCount(); ++i) {
+			assertEquals(expected.getColumn(i), actual.getColumn(i));
+			assertEquals(expected.getValue(i), actual.getValue(i));
+		}
+	}
+
+	public void testSnapshotRoundTrip() throws IOException {
+		List<SyncRow> rows = new ArrayList<SyncRow>();
+		rows.add(makeRow("uuid:1", "plain", null));
+		rows.add(makeRow("uuid:2", "comma, \"quote\"", ""));
+		rows.add(makeRow("uuid:3", "line\r\nbreak", "\u00e9\u4e2d"));
+
+		StandInSynchronizer server = new StandInSynchronizer();
+		server.putRows(TABLE_ID, "dataETag-7", rows);
+		TableResource resource = new TableResource();
+		resource.setTableId(TABLE_ID);
+
+		TableSnapshot snapshot = server.getTableSnapshot(resource, noAttachments);
+		assertNotNull(snapshot);
+		assertEquals("dataETag-7", snapshot.getDataETag());
+		try {
+			for (SyncRow expected : rows) {
+				SyncRow actual = snapshot.readRow();
+				assertNotNull(actual);
+				assertSameRow(expected, actual);
+			}
+			assertNull(snapshot.readRow());
+		} finally {
+			snapshot.close();
+		}
+	}
+
+	public void testUnsupportedSnapshot() throws IOException {
+		StandInSynchronizer server = new StandInSynchronizer();
+		server.putRows(TABLE_ID, "dataETag-1", new ArrayList<SyncRow>());
+		server.setSnapshotsSupported(false);
+		TableResource resource = new TableResource();
+		resource.setTableId(TABLE_ID);
+		assertNull(server.getTableSnapshot(resource, noAttachments));
+	}
+
+	public void testTruncatedSnapshot() throws IOException {
+		List<SyncRow> rows = new ArrayList<SyncRow>();
+		rows.add(makeRow("uuid:1", "plain", "notes"));
+		byte[] bytes = StandInSynchronizer.writeSnapshot(rows);
+		// drop the end of the gzip stream
+		byte[] truncated = new byte[bytes.length / 2];
+		System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+
+		TableSnapshot snapshot = new TableSnapshot("dataETag-1", new ByteArrayInputStream(
+				truncated), noAttachments);
+		try {
+			snapshot.readRow();
+			snapshot.readRow();
+			fail("a truncated snapshot should not read cleanly");
+		} catch (IOException e) {
+			// expected
+		} finally {
+			snapshot.close();
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package org.opendatakit.sync.aggregate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class ChunkedUploadTest extends TestCase {
+
+	private static final String KEY = "https://example.org/odktables/default/tables/t/attachments/r1/file/video.mp4";
+	private static final int CHUNK_SIZE = 1000;
+
+	/**
+	 * An in-memory stand-in for the server's side of the chunked upload
+	 * protocol. It can be told to drop the connection after a number of chunks.
+	 */
+	private static final class StandInUploadServer implements ChunkedUpload.Transport {
+		private final Map<String, ByteArrayOutputStream> sessions = new HashMap<String, ByteArrayOutputStream>();
+		private final Map<String, byte[]> committed = new HashMap<String, byte[]>();
+		private int nextSession = 1;
+		private int chunksUntilFailure = -1;
+		private int chunksReceived = 0;
+		private boolean supported = true;
+
+		@Override
+		public UploadSession createSession(UploadSession request) {
+			if (!supported) {
+				return null;
+			}
+			UploadSession session = new UploadSession();
+			session.uploadUri = "https://example.org/uploads/" + (nextSession++);
+			session.chunkSize = CHUNK_SIZE;
+			session.bytesReceived = 0L;
+			sessions.put(session.uploadUri, new ByteArrayOutputStream());
+			return session;
+		}
+
+		@Override
+		public UploadSession getSession(String uploadUri) {
+			ByteArrayOutputStream received = sessions.get(uploadUri);
+			if (received == null) {
+				return null;
+			}
+			UploadSession session = new UploadSession();
+			session.uploadUri = uploadUri;
+			session.chunkSize = CHUNK_SIZE;
+			session.bytesReceived = received.size();
+			return session;
+		}
+
+		@Override
+		public long putChunk(String uploadUri, byte[] chunk, int length, long offset,
+				long contentLength) throws IOException {
+			if (chunksUntilFailure == 0) {
+				throw new IOException("connection reset");
+			}
+			--chunksUntilFailure;
+			ByteArrayOutputStream received = sessions.get(uploadUri);
+			assertEquals(received.size(), offset);
+			received.write(chunk, 0, length);
+			++chunksReceived;
+			return received.size();
+		}
+
+		@Override
+		public boolean commit(String uploadUri) {
+			ByteArrayOutputStream received = sessions.remove(uploadUri);
+			committed.put(uploadUri, received.toByteArray());
+			return true;
+		}
+	}
+
+	private File dir;
+	private File sessionsFolder;
+	private File file;
+	private byte[] content;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		dir = File.createTempFile("chunked", "");
+		dir.delete();
+		dir.mkdirs();
+		sessionsFolder = new File(dir, "uploads");
+		file = new File(dir, "video.mp4");
+		content = new byte[4500];
+		for (int i = 0; i < content.length; ++i) {
+			content[i] = (byte) i;
+		}
+		FileOutputStream os = new FileOutputStream(file);
+		try {
+			os.write(content);
+		} finally {
+			os.close();
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		File[] sessions = sessionsFolder.listFiles();
+		if (sessions != null) {
+			for (File f : sessions) {
+				f.delete();
+			}
+		}
+		sessionsFolder.delete();
+		file.delete();
+		dir.delete();
+		super.tearDown();
+	}
+
+	private UploadSession request() {
+		UploadSession request = new UploadSession();
+		request.rowId = "r1";
+		request.filename = "video.mp4";
+		request.contentLength = content.length;
+		request.md5hash = "md5:0123";
+		return request;
+	}
+
+	public void testUploadInChunks() throws Exception {
+		StandInUploadServer server = new StandInUploadServer();
+		ChunkedUpload upload = new ChunkedUpload(server, sessionsFolder);
+		assertEquals(ChunkedUpload.Outcome.COMMITTED, upload.upload(KEY, file, request()));
+		assertEquals(5, server.chunksReceived);
+		assertEquals(content.length, upload.getBytesSent());
+		assertEquals(0L, upload.getBytesResumed());
+		assertTrue(Arrays.equals(content, server.committed.values().iterator().next()));
+	}
+
+	public void testResumeAfterRestart() throws Exception {
+		StandInUploadServer server = new StandInUploadServer();
+		server.chunksUntilFailure = 2;
+		try {
+			new ChunkedUpload(server, sessionsFolder).upload(KEY, file, request());
+			fail("expected the upload to be interrupted");
+		} catch (IOException e) {
+			// expected
+		}
+		assertTrue(server.committed.isEmpty());
+
+		// a new ChunkedUpload, as after the sync service is restarted
+		server.chunksUntilFailure = -1;
+		ChunkedUpload upload = new ChunkedUpload(server, sessionsFolder);
+		assertEquals(ChunkedUpload.Outcome.COMMITTED, upload.upload(KEY, file, request()));
+		assertEquals(2L * CHUNK_SIZE, upload.getBytesResumed());
+		assertEquals(content.length - 2L * CHUNK_SIZE, upload.getBytesSent());
+		assertEquals(5, server.chunksReceived);
+		assertTrue(Arrays.equals(content, server.committed.values().iterator().next()));
+	}
+
+	public void testChangedFileStartsNewSession() throws Exception {
+		StandInUploadServer server = new StandInUploadServer();
+		server.chunksUntilFailure = 2;
+		try {
+			new ChunkedUpload(server, sessionsFolder).upload(KEY, file, request());
+			fail("expected the upload to be interrupted");
+		} catch (IOException e) {
+			// expected
+		}
+
+		server.chunksUntilFailure = -1;
+		UploadSession request = request();
+		request.md5hash = "md5:4567";
+		ChunkedUpload upload = new ChunkedUpload(server, sessionsFolder);
+		assertEquals(ChunkedUpload.Outcome.COMMITTED, upload.upload(KEY, file, request));
+		assertEquals(0L, upload.getBytesResumed());
+		assertEquals(content.length, upload.getBytesSent());
+	}
+
+	public void testUnsupportedServer() throws Exception {
+		StandInUploadServer server = new StandInUploadServer();
+		server.supported = false;
+		ChunkedUpload upload = new ChunkedUpload(server, sessionsFolder);
+		assertEquals(ChunkedUpload.Outcome.UNSUPPORTED, upload.upload(KEY, file, request()));
+	}
+}
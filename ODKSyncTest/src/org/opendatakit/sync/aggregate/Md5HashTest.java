@@ -0,0 +1,22 @@
+package org.opendatakit.sync.aggregate;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+
+import junit.framework.TestCase;
+
+public class Md5HashTest extends TestCase {
+
+	public void testMatchesFileUtilsFormat() throws Exception {
+		String[] contents = { "", "a", "hello world", "\u0000\u0001 leading zero bytes" };
+		for (String content : contents) {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(content.getBytes("UTF-8"));
+			// the form produced by ODKFileUtils.getMd5Hash()
+			String expected = new BigInteger(1, digest).toString(16);
+			while (expected.length() < 32) {
+				expected = "0" + expected;
+			}
+			assertEquals("md5:" + expected, AggregateSynchronizer.toMd5Hash(digest));
+		}
+	}
+}
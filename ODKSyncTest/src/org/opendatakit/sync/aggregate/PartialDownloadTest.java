@@ -0,0 +1,70 @@
+package org.opendatakit.sync.aggregate;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+public class PartialDownloadTest extends TestCase {
+
+	private File dir;
+	private File destFile;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		dir = File.createTempFile("partial", "");
+		dir.delete();
+		dir.mkdirs();
+		destFile = new File(dir, "video.mp4");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		PartialDownload.discard(destFile);
+		destFile.delete();
+		dir.delete();
+		super.tearDown();
+	}
+
+	private void writeTmp(int length) throws IOException {
+		FileOutputStream os = new FileOutputStream(PartialDownload.tmpFileFor(destFile));
+		try {
+			os.write(new byte[length]);
+		} finally {
+			os.close();
+		}
+	}
+
+	public void testNothingToResume() throws Exception {
+		assertNull(PartialDownload.load(destFile));
+		writeTmp(100);
+		// no sidecar -- the bytes were not validated
+		assertNull(PartialDownload.load(destFile));
+	}
+
+	public void testResumeTruncatesToSavedLength() throws Exception {
+		writeTmp(100);
+		assertTrue(PartialDownload.save(destFile, 60, "\"etag-1\""));
+		PartialDownload partial = PartialDownload.load(destFile);
+		assertNotNull(partial);
+		assertEquals(60L, partial.length);
+		assertEquals("\"etag-1\"", partial.eTag);
+		assertEquals(60L, PartialDownload.tmpFileFor(destFile).length());
+	}
+
+	public void testSavedLengthBeyondTmpIsDiscarded() throws Exception {
+		writeTmp(10);
+		assertTrue(PartialDownload.save(destFile, 60, "\"etag-1\""));
+		assertNull(PartialDownload.load(destFile));
+		assertFalse(PartialDownload.tmpFileFor(destFile).exists());
+		assertFalse(PartialDownload.sidecarFor(destFile).exists());
+	}
+
+	public void testTargetOf() {
+		assertEquals("a/b.jpg", PartialDownload.targetOf("a/b.jpg.tmp"));
+		assertEquals("a/b.jpg", PartialDownload.targetOf("a/b.jpg.tmp.range"));
+		assertNull(PartialDownload.targetOf("a/b.jpg"));
+	}
+}